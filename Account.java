@@ -1,12 +1,197 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Accounts are immutable; edits build a replacement through toBuilder(),
+// which keeps the id. The id identifies the entry across copies of a vault.
+//
+// Website, username, password, tags and timestamps are the hot fields used by
+// the list and by search. Notes, URLs, custom fields, the password history,
+// the TOTP secret and attachment references are cold: a loaded account keeps them as the still-encoded bytes from the
+// vault and decodes them only when one of them is first read.
+//
+// The password, the previous passwords in the history and the TOTP secret are
+// held in SecretBuffers, off the heap, and wipe() destroys them together with
+// the encoded cold section and the attachment keys when the vault is locked.
 public class Account {
-    private String website;
-    private String username;
-    private String password;
+    private final UUID id;
+    private final String website;
+    private final String username;
+    private final SecretBuffer password;
+    private final List<String> tags;
+    private final long created;
+    private final long modified;
+    private final long lastUsed;
+
+    private final byte[] coldData;
+    private volatile Cold cold;
+
+    static final class Cold {
+        static final Cold EMPTY = new Cold("", Collections.emptyList(), Collections.emptyMap(),
+                Collections.emptyList(), SecretBuffer.EMPTY, Collections.emptyList());
+
+        final String notes;
+        final List<String> urls;
+        final Map<String, String> customFields;
+        final List<HistoryEntry> history;
+        final SecretBuffer totp;
+        final List<Attachment> attachments;
+
+        Cold(String notes, List<String> urls, Map<String, String> customFields, List<HistoryEntry> history,
+                SecretBuffer totp, List<Attachment> attachments) {
+            this.notes = notes;
+            this.urls = urls;
+            this.customFields = customFields;
+            this.history = history;
+            this.totp = totp;
+            this.attachments = attachments;
+        }
+    }
+
+    // A file in the vault's AttachmentStore, known by the SHA-256 of its
+    // content and encrypted with its own key, which only the vault record holds
+    public static final class Attachment {
+        private final String name;
+        private final byte[] hash;
+        private final long size;
+        private final byte[] key;
+
+        Attachment(String name, byte[] hash, long size, byte[] key) {
+            this.name = name;
+            this.hash = hash;
+            this.size = size;
+            this.key = key;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // Hex SHA-256 of the plaintext; only the vault holds it, the file in
+        // the store is named by a keyed hash of it
+        public String getHash() {
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+
+        byte[] hashBytes() {
+            return hash;
+        }
+
+        byte[] key() {
+            return key;
+        }
+
+        Attachment withName(String newName) {
+            return new Attachment(newName, hash, size, key);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // A password the account used before, and when it was replaced
+    public static final class HistoryEntry {
+        private final SecretBuffer password;
+        private final long changedAt;
+
+        public HistoryEntry(String password, long changedAt) {
+            this(SecretBuffer.of(password), changedAt);
+        }
+
+        HistoryEntry(SecretBuffer password, long changedAt) {
+            this.password = password;
+            this.changedAt = changedAt;
+        }
+
+        // A heap copy for display or the clipboard
+        public String getPassword() {
+            return password.reveal();
+        }
+
+        SecretBuffer secretPassword() {
+            return password;
+        }
+
+        public long getChangedAt() {
+            return changedAt;
+        }
+    }
 
     public Account(String website, String username, String password) {
-        this.website = website;
-        this.username = username;
-        this.password = password;
+        this(builder().website(website).username(username).password(password));
+    }
+
+    private Account(Builder builder) {
+        this.id = builder.id != null ? builder.id : legacyId(builder.website, builder.username, builder.created);
+        this.website = builder.website;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.tags = Collections.unmodifiableList(new ArrayList<>(builder.tags));
+        this.created = builder.created;
+        this.modified = builder.modified;
+        this.lastUsed = builder.lastUsed;
+        if (builder.coldLoaded) {
+            this.coldData = null;
+            this.cold = new Cold(builder.notes,
+                    Collections.unmodifiableList(new ArrayList<>(builder.urls)),
+                    Collections.unmodifiableMap(new LinkedHashMap<>(builder.customFields)),
+                    Collections.unmodifiableList(new ArrayList<>(builder.history)),
+                    builder.totp,
+                    Collections.unmodifiableList(new ArrayList<>(builder.attachments)));
+        } else {
+            this.coldData = builder.coldData;
+            this.cold = builder.coldData == null ? Cold.EMPTY : null;
+        }
+    }
+
+    public static Builder builder() {
+        long now = System.currentTimeMillis();
+        return new Builder().id(UUID.randomUUID()).created(now).modified(now);
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder()
+                .id(id)
+                .website(website)
+                .username(username)
+                .password(password)
+                .tags(tags)
+                .created(created)
+                .modified(modified)
+                .lastUsed(lastUsed);
+        if (coldData != null) {
+            // Carried over still encoded unless a cold field gets changed
+            builder.coldData = coldData;
+        } else {
+            Cold decoded = cold();
+            builder.notes = decoded.notes;
+            builder.urls = new ArrayList<>(decoded.urls);
+            builder.customFields = new LinkedHashMap<>(decoded.customFields);
+            builder.history = new ArrayList<>(decoded.history);
+            builder.totp = decoded.totp;
+            builder.attachments = new ArrayList<>(decoded.attachments);
+            builder.coldLoaded = true;
+        }
+        return builder;
+    }
+
+    public UUID getId() {
+        return id;
     }
 
     public String getWebsite() {
@@ -17,24 +202,266 @@ public class Account {
         return username;
     }
 
+    // A heap copy for display, the clipboard or output; compare passwords
+    // with samePassword() instead
     public String getPassword() {
+        return password.reveal();
+    }
+
+    SecretBuffer secretPassword() {
         return password;
     }
 
+    public boolean samePassword(Account other) {
+        return password.contentEquals(other.password);
+    }
+
+    public boolean hasPassword(String candidate) {
+        return password.contentEquals(candidate);
+    }
+
+    // Overwrites the password, the still-encoded cold fields and the secrets
+    // of the decoded ones; the account is unusable afterwards. Versions of an
+    // entry built with toBuilder() share these, so only call it when the
+    // whole store goes away.
+    void wipe() {
+        password.wipe();
+        if (coldData != null) {
+            Arrays.fill(coldData, (byte) 0);
+        }
+        Cold decoded = cold;
+        if (decoded != null) {
+            for (HistoryEntry entry : decoded.history) {
+                entry.password.wipe();
+            }
+            decoded.totp.wipe();
+            for (Attachment attachment : decoded.attachments) {
+                Arrays.fill(attachment.key, (byte) 0);
+            }
+        }
+        cold = Cold.EMPTY;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public String getNotes() {
+        return cold().notes;
+    }
+
+    public List<String> getUrls() {
+        return cold().urls;
+    }
+
+    public Map<String, String> getCustomFields() {
+        return cold().customFields;
+    }
+
+    // Newest first
+    public List<HistoryEntry> getPasswordHistory() {
+        return cold().history;
+    }
+
+    // Base32 secret or otpauth:// URI, empty if the account has no TOTP; a
+    // heap copy for display, export or a Totp generator
+    public String getTotp() {
+        return cold().totp.reveal();
+    }
+
+    SecretBuffer secretTotp() {
+        return cold().totp;
+    }
+
+    public List<Attachment> getAttachments() {
+        return cold().attachments;
+    }
+
+    // Encoded cold section as read from the vault, or null for edited accounts
+    byte[] getColdData() {
+        return coldData;
+    }
+
+    Cold cold() {
+        Cold decoded = cold;
+        if (decoded == null) {
+            // Racing threads decode the same bytes to equal values, so no lock
+            decoded = RecordCodec.decodeCold(coldData);
+            cold = decoded;
+        }
+        return decoded;
+    }
+
     @Override
     public String toString() {
         return website;
     }
-    
-    public String toDataString() {
-        return website + "," + username + "," + password;
-    }
 
+    // Reads a record from vaults written before the binary record format
     public static Account fromString(String data) {
         String[] parts = data.split(",", -1);
         if (parts.length != 3) {
             throw new IllegalArgumentException("Invalid account data format");
         }
-        return new Account(parts[0], parts[1], parts[2]);
+        return builder().id(null).website(parts[0]).username(parts[1]).password(parts[2])
+                .created(0).modified(0).build();
+    }
+
+    // Records written before ids existed get one derived from their content, so
+    // every copy of such a vault assigns the same id to the same entry
+    private static UUID legacyId(String website, String username, long created) {
+        String key = website + '\u0000' + username + '\u0000' + created;
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static class Builder {
+        private UUID id;
+        private String website = "";
+        private String username = "";
+        private SecretBuffer password = SecretBuffer.EMPTY;
+        private List<String> tags = new ArrayList<>();
+        private long created;
+        private long modified;
+        private long lastUsed;
+
+        private byte[] coldData;
+        private boolean coldLoaded;
+        private String notes = "";
+        private List<String> urls = new ArrayList<>();
+        private Map<String, String> customFields = new LinkedHashMap<>();
+        private List<HistoryEntry> history = new ArrayList<>();
+        private SecretBuffer totp = SecretBuffer.EMPTY;
+        private List<Attachment> attachments = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder id(UUID id) {
+            this.id = id;
+            return this;
+        }
+
+        public Builder website(String website) {
+            this.website = website;
+            return this;
+        }
+
+        public Builder username(String username) {
+            this.username = username;
+            return this;
+        }
+
+        public Builder password(String password) {
+            this.password = SecretBuffer.of(password);
+            return this;
+        }
+
+        // Copies the characters; the caller wipes its array
+        public Builder password(char[] password) {
+            this.password = SecretBuffer.of(password);
+            return this;
+        }
+
+        Builder password(SecretBuffer password) {
+            this.password = password;
+            return this;
+        }
+
+        public Builder tags(List<String> tags) {
+            this.tags = new ArrayList<>(tags);
+            return this;
+        }
+
+        public Builder created(long created) {
+            this.created = created;
+            return this;
+        }
+
+        public Builder modified(long modified) {
+            this.modified = modified;
+            return this;
+        }
+
+        public Builder lastUsed(long lastUsed) {
+            this.lastUsed = lastUsed;
+            return this;
+        }
+
+        public Builder notes(String notes) {
+            loadCold();
+            this.notes = notes;
+            return this;
+        }
+
+        public Builder urls(List<String> urls) {
+            loadCold();
+            this.urls = new ArrayList<>(urls);
+            return this;
+        }
+
+        public Builder customFields(Map<String, String> customFields) {
+            loadCold();
+            this.customFields = new LinkedHashMap<>(customFields);
+            return this;
+        }
+
+        public Builder passwordHistory(List<HistoryEntry> history) {
+            loadCold();
+            this.history = new ArrayList<>(history);
+            return this;
+        }
+
+        public Builder totp(String totp) {
+            loadCold();
+            this.totp = SecretBuffer.of(totp);
+            return this;
+        }
+
+        public Builder attachments(List<Attachment> attachments) {
+            loadCold();
+            this.attachments = new ArrayList<>(attachments);
+            return this;
+        }
+
+        // Used by RecordCodec to hand over the cold section without decoding it
+        Builder coldData(byte[] coldData) {
+            this.coldData = coldData;
+            this.coldLoaded = false;
+            return this;
+        }
+
+        // Setting one cold field keeps the others, so decode them first
+        private void loadCold() {
+            if (coldLoaded) {
+                return;
+            }
+            if (coldData != null) {
+                Cold decoded = RecordCodec.decodeCold(coldData);
+                notes = decoded.notes;
+                urls = new ArrayList<>(decoded.urls);
+                customFields = new LinkedHashMap<>(decoded.customFields);
+                history = new ArrayList<>(decoded.history);
+                totp = decoded.totp;
+                attachments = new ArrayList<>(decoded.attachments);
+                coldData = null;
+            }
+            coldLoaded = true;
+        }
+
+        public Account build() {
+            return new Account(this);
+        }
     }
 }
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Encrypted file attachments kept next to a vault, in "<vault>.attachments/".
+// Each file is encrypted with a random per-file key (ChunkedCipher) and named
+// by an HMAC of its content hash under that key, so the directory does not
+// tell anyone which files the vault holds. The key and the content hash live
+// only in the referencing Account.Attachment, i.e. inside the encrypted
+// vault, so changing the master password never has to touch attachment
+// files. A stored file is never replaced: the saved vault or a backup may
+// still hold its key.
+//
+// Older stores named files by the hex content hash, alone or followed by a
+// key id. Such files are still read, and prune() copies them to their new
+// names before removing them.
+//
+// Data always streams through channels in ChunkedCipher-sized pieces; nothing
+// is decrypted until an attachment is saved or opened.
+public class AttachmentStore {
+    private static final String DIRECTORY_SUFFIX = ".attachments";
+    private static final int KEY_LENGTH = 32;
+
+    private final Path directory;
+
+    public AttachmentStore(String vaultFile) {
+        this.directory = directoryOf(vaultFile);
+    }
+
+    // Where the attachments of a vault are stored
+    static Path directoryOf(String vaultFile) {
+        return Paths.get(vaultFile + DIRECTORY_SUFFIX);
+    }
+
+    // Encrypts the file into the store. Content already stored for another
+    // entry is reused instead of being written again; vaultAccounts should
+    // hold the saved accounts as well as the current ones, so that content
+    // removed since the last save is found too.
+    public Account.Attachment add(Path source, Collection<Account> vaultAccounts) throws IOException {
+        createDirectory();
+        Path temp = Files.createTempFile(directory, "incoming", ".tmp");
+        try {
+            byte[] key = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            MessageDigest digest = sha256();
+            long size = 0;
+
+            try (InputStream in = Files.newInputStream(source);
+                 FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 OutputStream out = ChunkedCipher.encrypting(channel, new SecretKeySpec(key, "AES"))) {
+                byte[] buffer = new byte[ChunkedCipher.CHUNK_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    size += read;
+                }
+            }
+
+            String name = source.getFileName().toString();
+            Account.Attachment attachment = new Account.Attachment(name, digest.digest(), size, key);
+            Account.Attachment existing = find(vaultAccounts, attachment.hashBytes());
+            if (existing != null) {
+                Arrays.fill(key, (byte) 0);
+                return existing.withName(name);
+            }
+            Files.move(temp, directory.resolve(storedName(attachment)), StandardCopyOption.ATOMIC_MOVE);
+            return attachment;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Decrypts the attachment to target, checking the content hash on the way
+    public void save(Account.Attachment attachment, Path target) throws IOException {
+        Path stored = fileOf(attachment);
+        if (!Files.exists(stored)) {
+            throw new IOException("Attachment file is missing: " + attachment.getName());
+        }
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(stored, StandardOpenOption.READ);
+             InputStream in = ChunkedCipher.decrypting(channel, new SecretKeySpec(attachment.key(), "AES"));
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            restrictPermissions(target);
+            byte[] buffer = new byte[ChunkedCipher.CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        if (!Arrays.equals(digest.digest(), attachment.hashBytes())) {
+            Files.deleteIfExists(target);
+            throw new IOException("Attachment content does not match its hash: " + attachment.getName());
+        }
+    }
+
+    // Copies the files the accounts reference into the store of another vault,
+    // used when the vault is saved under a new name
+    public void copyTo(AttachmentStore target, Collection<Account> accounts) throws IOException {
+        if (target.directory.equals(directory)) {
+            return;
+        }
+        for (Account account : accounts) {
+            for (Account.Attachment attachment : account.getAttachments()) {
+                Path source = fileOf(attachment);
+                Path copy = target.directory.resolve(storedName(attachment));
+                if (Files.exists(source) && !Files.exists(copy)) {
+                    target.createDirectory();
+                    Files.copy(source, copy);
+                }
+            }
+        }
+    }
+
+    // Deletes stored files no account references any more; returns how many.
+    // Files the accounts reference under an old name move to their new one.
+    public int prune(Collection<Account> accounts) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        Set<String> referenced = new HashSet<>();
+        for (Account account : accounts) {
+            for (Account.Attachment attachment : account.getAttachments()) {
+                String name = storedName(attachment);
+                if (referenced.add(name)) {
+                    rename(attachment, name);
+                }
+            }
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!referenced.contains(name) && !name.endsWith(".tmp")) {
+                    Files.delete(file);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // The file an attachment is stored in, under its name or an old one
+    private Path fileOf(Account.Attachment attachment) {
+        Path stored = directory.resolve(storedName(attachment));
+        if (Files.exists(stored)) {
+            return stored;
+        }
+        for (String name : oldNames(attachment)) {
+            Path old = directory.resolve(name);
+            if (Files.exists(old)) {
+                return old;
+            }
+        }
+        return stored;
+    }
+
+    // A copy under the new name that appears whole or not at all; the old
+    // file goes with the next prune once nothing else needs it
+    private void rename(Account.Attachment attachment, String name) throws IOException {
+        Path source = fileOf(attachment);
+        Path target = directory.resolve(name);
+        if (source.equals(target) || !Files.exists(source)) {
+            return;
+        }
+        Path temp = Files.createTempFile(directory, "rename", ".tmp");
+        try {
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // 128 bits of HMAC-SHA256 of the content hash under the file's own key:
+    // unique per stored file, and without the key it says nothing about the
+    // content
+    static String storedName(Account.Attachment attachment) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(attachment.key(), "HmacSHA256"));
+            return hex(mac.doFinal(attachment.hashBytes()), 16);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    // The content hash, followed by a key id in stores from before names
+    // were keyed
+    private static String[] oldNames(Account.Attachment attachment) {
+        return new String[] {attachment.getHash() + '-' + hex(sha256Quietly(attachment.key()), 8), attachment.getHash()};
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            hex.append(String.format("%02x", bytes[i]));
+        }
+        return hex.toString();
+    }
+
+    // An attachment with this content whose file is still there
+    private Account.Attachment find(Collection<Account> accounts, byte[] hash) {
+        for (Account account : accounts) {
+            for (Account.Attachment attachment : account.getAttachments()) {
+                if (Arrays.equals(attachment.hashBytes(), hash) && Files.exists(fileOf(attachment))) {
+                    return attachment;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void createDirectory() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+            try {
+                Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+            } catch (UnsupportedOperationException e) {
+                // Non-POSIX file system
+            }
+        }
+    }
+
+    private static void restrictPermissions(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Non-POSIX file system
+        }
+    }
+
+    private static byte[] sha256Quietly(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,563 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+// Point-in-time copies of a vault file in "<vault>.backups/", one version per
+// save. Files are cut into content-defined chunks with a gear rolling hash, so
+// an edit only moves the chunk boundaries around it; each chunk is stored once
+// under its SHA-256 in chunks/ and a version is a manifest in versions/ that
+// lists its chunks. Saves write unchanged records back byte for byte, so
+// consecutive versions share nearly all of their chunks.
+//
+// The vault file is stored as it is on disk: records stay encrypted and a
+// restored version opens with the master password it was saved with. The
+// attachment files next to the vault are chunked into the version as well,
+// already encrypted, so pruning them from the vault never loses them for a
+// version. A stored attachment file never changes, so one the newest version
+// already holds is not read again.
+public class BackupStore {
+    private static final String DIRECTORY_SUFFIX = ".backups";
+    // Version 2 added "attachment <name> <chunk>..." lines
+    private static final String MANIFEST_MAGIC = "#LBXBACKUP2";
+    private static final String MANIFEST_MAGIC_V1 = "#LBXBACKUP1";
+    private static final String ATTACHMENT_LINE = "attachment ";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    // Chunk sizes: boundaries are only looked for past MIN_CHUNK, the mask
+    // has 13 bits for an average of about 8 KiB, and MAX_CHUNK cuts anyway
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    private static final long MASK = spreadMask(13);
+    // Fixed seed: the table is part of the format, other values would cut
+    // the same file differently and defeat deduplication against old versions
+    private static final long[] GEAR = gearTable(0x4c4258L);
+
+    // Backups run one at a time, after the save that triggered them returned
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "lockbox-backup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // How many of the newest hourly, daily and weekly versions to keep; a
+    // version is kept if any of the three wants it, and the newest always is
+    public static class Retention {
+        private final int hourly;
+        private final int daily;
+        private final int weekly;
+
+        public Retention(int hourly, int daily, int weekly) {
+            this.hourly = hourly;
+            this.daily = daily;
+            this.weekly = weekly;
+        }
+    }
+
+    public static class Version {
+        private final long created;
+        private final long size;
+        private final String sha256;
+        private final List<String> chunks;
+        // Attachment file name to its chunks
+        private final Map<String, List<String>> attachments;
+        private final Path manifest;
+
+        Version(long created, long size, String sha256, List<String> chunks,
+                Map<String, List<String>> attachments, Path manifest) {
+            this.created = created;
+            this.size = size;
+            this.sha256 = sha256;
+            this.chunks = chunks;
+            this.attachments = attachments;
+            this.manifest = manifest;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkCount() {
+            return chunks.size();
+        }
+    }
+
+    private final Path vaultFile;
+    private final Path attachmentDirectory;
+    private final Path directory;
+    private final Path chunkDirectory;
+    private final Path versionDirectory;
+
+    public BackupStore(String vaultFile) {
+        this.vaultFile = Paths.get(vaultFile);
+        this.attachmentDirectory = AttachmentStore.directoryOf(vaultFile);
+        this.directory = Paths.get(vaultFile + DIRECTORY_SUFFIX);
+        this.chunkDirectory = directory.resolve("chunks");
+        this.versionDirectory = directory.resolve("versions");
+    }
+
+    // Backs up the vault file and applies the retention policy on the backup
+    // thread; completes with the new version, or null if nothing changed
+    public CompletableFuture<Version> backupInBackground(Retention retention) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Version version = backup();
+                if (version != null) {
+                    applyRetention(retention);
+                }
+                return version;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, BACKGROUND);
+    }
+
+    // Stores the current vault file as a new version unless it is identical
+    // to the newest one; returns null in that case
+    public Version backup() throws IOException {
+        createDirectories();
+        // A save may still be writing the file; retry until it reads the same before and after
+        for (int attempt = 0; ; attempt++) {
+            VaultWatcher.Fingerprint before = VaultWatcher.Fingerprint.of(vaultFile.toString());
+            if (before == null) {
+                throw new NoSuchFileException(vaultFile.toString());
+            }
+            Version version = store();
+            if (before.equals(VaultWatcher.Fingerprint.of(vaultFile.toString()))) {
+                List<Version> versions = listVersions();
+                // The new one is the newest; drop it again if the files did not change
+                if (versions.size() > 1 && versions.get(1).sha256.equals(version.sha256)
+                        && versions.get(1).attachments.keySet().equals(version.attachments.keySet())) {
+                    Files.delete(version.manifest);
+                    return null;
+                }
+                return version;
+            }
+            Files.deleteIfExists(version.manifest);
+            if (attempt == 4) {
+                throw new IOException("The vault file kept changing while it was backed up");
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Backup interrupted");
+            }
+        }
+    }
+
+    // Versions, newest first
+    public List<Version> listVersions() throws IOException {
+        List<Version> versions = new ArrayList<>();
+        if (!Files.isDirectory(versionDirectory)) {
+            return versions;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(versionDirectory, "*" + MANIFEST_SUFFIX)) {
+            for (Path file : files) {
+                versions.add(readManifest(file));
+            }
+        }
+        versions.sort(Comparator.comparingLong(Version::getCreated).reversed());
+        return versions;
+    }
+
+    // Reassembles a version into target, checking every chunk and the whole
+    // file. Its attachment files go next to target unless they are there.
+    public void restore(Version version, Path target) throws IOException {
+        Path attachments = AttachmentStore.directoryOf(target.toString());
+        for (Map.Entry<String, List<String>> attachment : version.attachments.entrySet()) {
+            Path file = attachments.resolve(attachment.getKey());
+            if (Files.exists(file)) {
+                continue;
+            }
+            Files.createDirectories(attachments);
+            Path temp = attachments.resolve(attachment.getKey() + ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    for (String chunk : attachment.getValue()) {
+                        out.write(readChunk(chunk));
+                    }
+                }
+                restrictPermissions(temp);
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "restore", ".tmp");
+        try {
+            MessageDigest fileDigest = sha256();
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                for (String chunk : version.chunks) {
+                    byte[] data = readChunk(chunk);
+                    fileDigest.update(data);
+                    out.write(data);
+                }
+            }
+            if (!HexFormat.of().formatHex(fileDigest.digest()).equals(version.sha256)) {
+                throw new IOException("Restored file does not match the backup's checksum");
+            }
+            restrictPermissions(temp);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Problems found in the version: missing or damaged chunks, or a whole
+    // file that no longer matches; empty if it restores correctly
+    public List<String> verify(Version version) throws IOException {
+        List<String> problems = new ArrayList<>();
+        MessageDigest fileDigest = sha256();
+        long size = 0;
+        for (String chunk : version.chunks) {
+            try {
+                byte[] data = readChunk(chunk);
+                fileDigest.update(data);
+                size += data.length;
+            } catch (IOException e) {
+                problems.add(e.getMessage());
+                return problems;
+            }
+        }
+        if (size != version.size || !HexFormat.of().formatHex(fileDigest.digest()).equals(version.sha256)) {
+            problems.add("Version does not match its checksum");
+        }
+        // Attachments are checked chunk by chunk; their files are sealed and
+        // checked against their content hash when they are opened
+        for (List<String> chunks : version.attachments.values()) {
+            for (String chunk : chunks) {
+                try {
+                    readChunk(chunk);
+                } catch (IOException e) {
+                    problems.add(e.getMessage());
+                    return problems;
+                }
+            }
+        }
+        return problems;
+    }
+
+    // Deletes the versions the policy does not keep and then the chunks no
+    // remaining version uses; returns how many versions were deleted
+    public int applyRetention(Retention retention) throws IOException {
+        List<Version> versions = listVersions();
+        Set<Version> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (!versions.isEmpty()) {
+            keep.add(versions.get(0));
+        }
+        keepNewestPerPeriod(versions, retention.hourly, keep,
+                time -> time.truncatedTo(ChronoUnit.HOURS));
+        keepNewestPerPeriod(versions, retention.daily, keep,
+                time -> time.truncatedTo(ChronoUnit.DAYS));
+        keepNewestPerPeriod(versions, retention.weekly, keep,
+                time -> time.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)));
+
+        int deleted = 0;
+        for (Version version : versions) {
+            if (!keep.contains(version)) {
+                Files.deleteIfExists(version.manifest);
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Set<String> used = new HashSet<>();
+            for (Version version : keep) {
+                used.addAll(version.chunks);
+                for (List<String> chunks : version.attachments.values()) {
+                    used.addAll(chunks);
+                }
+            }
+            sweepChunks(used);
+        }
+        return deleted;
+    }
+
+    // versions is newest first: the first version seen in each period is the newest of it
+    private static void keepNewestPerPeriod(List<Version> versions, int periods, Set<Version> keep,
+                                            Function<ZonedDateTime, ZonedDateTime> period) {
+        ZonedDateTime last = null;
+        int kept = 0;
+        for (Version version : versions) {
+            if (kept >= periods) {
+                break;
+            }
+            ZonedDateTime start = period.apply(Instant.ofEpochMilli(version.created).atZone(ZoneId.systemDefault()));
+            if (!start.equals(last)) {
+                keep.add(version);
+                last = start;
+                kept++;
+            }
+        }
+    }
+
+    private Version store() throws IOException {
+        long created = System.currentTimeMillis();
+        MessageDigest fileDigest = sha256();
+        MessageDigest chunkDigest = sha256();
+        List<String> chunks = new ArrayList<>();
+        long size = storeChunks(vaultFile, chunks, fileDigest, chunkDigest);
+        Map<String, List<String>> attachments = storeAttachments(chunkDigest);
+
+        String sha = HexFormat.of().formatHex(fileDigest.digest());
+        Path manifest = versionDirectory.resolve(created + MANIFEST_SUFFIX);
+        Path temp = versionDirectory.resolve(created + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_MAGIC + " created=" + created + " size=" + size + " sha256=" + sha);
+            writer.newLine();
+            for (String name : chunks) {
+                writer.write(name);
+                writer.newLine();
+            }
+            for (Map.Entry<String, List<String>> attachment : attachments.entrySet()) {
+                writer.write(ATTACHMENT_LINE + attachment.getKey());
+                for (String name : attachment.getValue()) {
+                    writer.write(' ');
+                    writer.write(name);
+                }
+                writer.newLine();
+            }
+        }
+        Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Version(created, size, sha, chunks, attachments, manifest);
+    }
+
+    // Cuts the file into chunks, stores the new ones and adds their names to
+    // chunks; returns the file size
+    private long storeChunks(Path file, List<String> chunks, MessageDigest fileDigest,
+                             MessageDigest chunkDigest) throws IOException {
+        long size = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(MAX_CHUNK);
+            byte[] buffer = new byte[MAX_CHUNK];
+            long hash = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (fileDigest != null) {
+                    fileDigest.update(buffer, 0, read);
+                }
+                size += read;
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    int length = chunk.size() + i - start + 1;
+                    if ((length >= MIN_CHUNK && (hash & MASK) == 0) || length >= MAX_CHUNK) {
+                        chunk.write(buffer, start, i - start + 1);
+                        chunks.add(writeChunk(chunk, chunkDigest));
+                        start = i + 1;
+                        hash = 0;
+                    }
+                }
+                chunk.write(buffer, start, read - start);
+            }
+            if (chunk.size() > 0) {
+                chunks.add(writeChunk(chunk, chunkDigest));
+            }
+        }
+        return size;
+    }
+
+    // The attachment files next to the vault, by name. A name stands for one
+    // content and key and a stored file never changes, so one the newest
+    // version already holds keeps its chunks without being read.
+    private Map<String, List<String>> storeAttachments(MessageDigest chunkDigest) throws IOException {
+        Map<String, List<String>> attachments = new TreeMap<>();
+        if (!Files.isDirectory(attachmentDirectory)) {
+            return attachments;
+        }
+        List<Version> versions = listVersions();
+        Map<String, List<String>> previous = versions.isEmpty()
+                ? Collections.emptyMap() : versions.get(0).attachments;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(attachmentDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp") || name.indexOf(' ') >= 0) {
+                    continue;
+                }
+                List<String> chunks = previous.get(name);
+                if (chunks == null) {
+                    chunks = new ArrayList<>();
+                    try {
+                        storeChunks(file, chunks, null, chunkDigest);
+                    } catch (NoSuchFileException e) {
+                        // Pruned while the backup ran, so the vault no longer names it
+                        continue;
+                    }
+                }
+                attachments.put(name, chunks);
+            }
+        }
+        return attachments;
+    }
+
+    // Stores the chunk under its hash unless it is already there, and empties it
+    private String writeChunk(ByteArrayOutputStream chunk, MessageDigest digest) throws IOException {
+        byte[] data = chunk.toByteArray();
+        chunk.reset();
+        String name = HexFormat.of().formatHex(digest.digest(data));
+        Path target = chunkPath(name);
+        if (!Files.exists(target)) {
+            Files.createDirectories(target.getParent());
+            Path temp = target.resolveSibling(name + ".tmp");
+            Files.write(temp, data);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return name;
+    }
+
+    private byte[] readChunk(String name) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(chunkPath(name));
+        } catch (NoSuchFileException e) {
+            throw new IOException("Backup chunk is missing: " + name);
+        }
+        if (!HexFormat.of().formatHex(sha256().digest(data)).equals(name)) {
+            throw new IOException("Backup chunk is damaged: " + name);
+        }
+        return data;
+    }
+
+    private Version readManifest(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(MANIFEST_MAGIC + " ") && !header.startsWith(MANIFEST_MAGIC_V1 + " ")) {
+                throw new IOException("Not a backup manifest: " + file.getFileName());
+            }
+            long created = 0;
+            long size = -1;
+            String sha = null;
+            for (String token : header.split(" ")) {
+                if (token.startsWith("created=")) {
+                    created = Long.parseLong(token.substring(8));
+                } else if (token.startsWith("size=")) {
+                    size = Long.parseLong(token.substring(5));
+                } else if (token.startsWith("sha256=")) {
+                    sha = token.substring(7);
+                }
+            }
+            List<String> chunks = new ArrayList<>();
+            Map<String, List<String>> attachments = new TreeMap<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(ATTACHMENT_LINE)) {
+                    String[] names = line.substring(ATTACHMENT_LINE.length()).split(" ");
+                    attachments.put(names[0], Arrays.asList(names).subList(1, names.length));
+                } else if (!line.isEmpty()) {
+                    chunks.add(line);
+                }
+            }
+            return new Version(created, size, Objects.requireNonNull(sha, "sha256"), chunks, attachments, file);
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IOException("Damaged backup manifest: " + file.getFileName());
+        }
+    }
+
+    private void sweepChunks(Set<String> used) throws IOException {
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunkDirectory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(prefix)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        if (!used.contains(name) && !name.endsWith(".tmp")) {
+                            Files.delete(file);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Two-level layout keeps directories small for large histories
+    private Path chunkPath(String name) {
+        return chunkDirectory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private void createDirectories() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+            try {
+                Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+            } catch (UnsupportedOperationException e) {
+                // Non-POSIX file system
+            }
+        }
+        Files.createDirectories(chunkDirectory);
+        Files.createDirectories(versionDirectory);
+    }
+
+    private static void restrictPermissions(Path file) throws IOException {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Non-POSIX file system
+        }
+    }
+
+    private static long[] gearTable(long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+
+    // Mask bits spread over the upper half of the hash, where the gear hash
+    // has mixed in the most recent bytes
+    private static long spreadMask(int bits) {
+        long mask = 0;
+        for (int i = 0; i < bits; i++) {
+            mask |= 1L << (63 - i * 2);
+        }
+        return mask;
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// Streaming AES-GCM in fixed-size authenticated chunks, so large payloads can
+// be encrypted and decrypted through channels in constant memory.
+//
+// Stream layout: noncePrefix[4] { length:u32 ciphertext+tag }*
+// Each chunk uses nonce = noncePrefix || chunkIndex (u64) and the associated
+// data chunkIndex || finalFlag, so reordered, dropped or truncated chunks fail
+// authentication. The last chunk is always written, even when empty.
+public class ChunkedCipher {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final int TAG_BYTES = GCM_TAG_LENGTH / 8;
+    private static final int NONCE_PREFIX_LENGTH = 4;
+
+    private ChunkedCipher() {
+    }
+
+    public static OutputStream encrypting(WritableByteChannel channel, SecretKey key) throws IOException {
+        return new EncryptingStream(channel, key);
+    }
+
+    public static InputStream decrypting(ReadableByteChannel channel, SecretKey key) throws IOException {
+        return new DecryptingStream(channel, key);
+    }
+
+    private static byte[] nonce(byte[] prefix, long index) {
+        byte[] nonce = new byte[12];
+        System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 8).putLong(index);
+        return nonce;
+    }
+
+    private static byte[] aad(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Encrypted stream is truncated");
+            }
+        }
+        return true;
+    }
+
+    private static class EncryptingStream extends OutputStream {
+        private final WritableByteChannel channel;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        private final ByteBuffer plain = ByteBuffer.allocate(CHUNK_SIZE);
+        private final ByteBuffer sealed = ByteBuffer.allocate(4 + CHUNK_SIZE + TAG_BYTES);
+        private long index;
+        private boolean closed;
+
+        EncryptingStream(WritableByteChannel channel, SecretKey key) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            try {
+                this.cipher = Cipher.getInstance(ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cipher not available", e);
+            }
+            new SecureRandom().nextBytes(noncePrefix);
+            writeFully(channel, ByteBuffer.wrap(noncePrefix));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!plain.hasRemaining()) {
+                flushChunk(false);
+            }
+            plain.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!plain.hasRemaining()) {
+                    flushChunk(false);
+                }
+                int n = Math.min(len, plain.remaining());
+                plain.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk(boolean last) throws IOException {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce(noncePrefix, index)));
+                cipher.updateAAD(aad(index, last));
+                plain.flip();
+                sealed.clear();
+                sealed.putInt(plain.remaining() + TAG_BYTES);
+                cipher.doFinal(plain, sealed);
+                sealed.flip();
+                writeFully(channel, sealed);
+                plain.clear();
+                index++;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flushChunk(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class DecryptingStream extends InputStream {
+        private final ReadableByteChannel channel;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private final ByteBuffer sealed = ByteBuffer.allocate(CHUNK_SIZE + TAG_BYTES);
+        private final ByteBuffer plain = ByteBuffer.allocate(CHUNK_SIZE);
+        private long index;
+        private boolean finished;
+
+        DecryptingStream(ReadableByteChannel channel, SecretKey key) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            try {
+                this.cipher = Cipher.getInstance(ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cipher not available", e);
+            }
+            if (!readFully(channel, ByteBuffer.wrap(noncePrefix))) {
+                throw new EOFException("Encrypted stream is empty");
+            }
+            plain.flip();
+        }
+
+        // Reads and authenticates the next chunk; returns false after the last one
+        private boolean nextChunk() throws IOException {
+            if (finished) {
+                return false;
+            }
+            header.clear();
+            if (!readFully(channel, header)) {
+                throw new EOFException("Encrypted stream is truncated");
+            }
+            int length = header.getInt(0);
+            if (length < TAG_BYTES || length > sealed.capacity()) {
+                throw new IOException("Corrupted chunk header");
+            }
+            sealed.clear().limit(length);
+            if (!readFully(channel, sealed)) {
+                throw new EOFException("Encrypted stream is truncated");
+            }
+            sealed.flip();
+
+            // A chunk shorter than CHUNK_SIZE can only be the final one
+            boolean last = length < CHUNK_SIZE + TAG_BYTES;
+            try {
+                plain.clear();
+                decrypt(last);
+            } catch (GeneralSecurityException e) {
+                if (last) {
+                    throw new IOException("Encrypted stream failed authentication", e);
+                }
+                // A full-size chunk may still be the final one
+                try {
+                    sealed.rewind();
+                    plain.clear();
+                    last = true;
+                    decrypt(true);
+                } catch (GeneralSecurityException again) {
+                    throw new IOException("Encrypted stream failed authentication", again);
+                }
+            }
+            plain.flip();
+            index++;
+            finished = last;
+            return true;
+        }
+
+        private void decrypt(boolean last) throws GeneralSecurityException {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce(noncePrefix, index)));
+            cipher.updateAAD(aad(index, last));
+            cipher.doFinal(sealed, plain);
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (!plain.hasRemaining()) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            return plain.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!plain.hasRemaining()) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, plain.remaining());
+            plain.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Puts copied secrets on a clipboard and takes them off again after a delay.
+// Only the latest copy is remembered: copying again replaces the pending
+// clear instead of adding one. The clipboard is only cleared if it still
+// holds what we put there, so whatever the user copied since (in LockBox or
+// another program) is left alone.
+public class ClipboardCleaner {
+    // One thread for every pending clear; copies never start threads or timers
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lockbox-clipboard");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Another program may hold the system clipboard open for a moment
+    private static final long RETRY_MILLIS = 250;
+    private static final int RETRIES = 8;
+
+    private final Clipboard clipboard;
+    private long delayMillis;
+    private StringSelection copied;
+    private String copiedText;
+    private ScheduledFuture<?> pending;
+
+    // A delay of 0 never clears on its own, only through clear()
+    public ClipboardCleaner(Clipboard clipboard, long delayMillis) {
+        this.clipboard = clipboard;
+        this.delayMillis = delayMillis;
+    }
+
+    public synchronized void setDelay(long delayMillis) {
+        this.delayMillis = delayMillis;
+        if (copied != null) {
+            schedule(delayMillis, RETRIES);
+        }
+    }
+
+    public synchronized void copy(String text) {
+        StringSelection selection = new StringSelection(text);
+        clipboard.setContents(selection, null);
+        copied = selection;
+        copiedText = text;
+        schedule(delayMillis, RETRIES);
+    }
+
+    // Clears right away if the clipboard still holds our value; for lock and exit
+    public synchronized void clear() {
+        cancelPending();
+        clearIfOurs(0);
+    }
+
+    private void schedule(long delay, int retries) {
+        cancelPending();
+        if (delay > 0) {
+            pending = SCHEDULER.schedule(() -> {
+                synchronized (this) {
+                    pending = null;
+                    clearIfOurs(retries);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    private void clearIfOurs(int retries) {
+        if (copied == null) {
+            return;
+        }
+        try {
+            if (holdsCopied()) {
+                clipboard.setContents(new StringSelection(""), null);
+            }
+        } catch (IllegalStateException e) {
+            if (retries > 0) {
+                schedule(RETRY_MILLIS, retries - 1);
+                return;
+            }
+        }
+        copied = null;
+        copiedText = null;
+    }
+
+    private boolean holdsCopied() {
+        Transferable contents = clipboard.getContents(null);
+        if (contents == copied) {
+            return true;
+        }
+        // The system clipboard may hand back a copy of our own contents
+        try {
+            return contents != null && contents.isDataFlavorSupported(DataFlavor.stringFlavor)
+                    && copiedText.equals(contents.getTransferData(DataFlavor.stringFlavor));
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
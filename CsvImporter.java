@@ -0,0 +1,454 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Streams password exports from Chrome, Firefox, Bitwarden and KeePass into a
+// PasswordManager. Rows are parsed one at a time and inserted in batches, so
+// the export file is never held in memory as a whole.
+public class CsvImporter {
+    private static final int BATCH_SIZE = 1000;
+    private static final int PREVIEW_SIZE = 20;
+
+    // Header names per target field, checked in order of preference
+    private static final String[] NAME_COLUMNS = {"name", "title", "account"};
+    private static final String[] URL_COLUMNS = {"url", "login_uri", "web site", "website", "hostname"};
+    private static final String[] USERNAME_COLUMNS = {"username", "login_username", "login name", "user name", "email"};
+    private static final String[] PASSWORD_COLUMNS = {"password", "login_password"};
+    private static final String[] NOTES_COLUMNS = {"notes", "note", "comments", "extra"};
+    // A folder or group becomes a tag, a tags column may hold several
+    private static final String[] TAGS_COLUMNS = {"tags", "folder", "group", "grouping"};
+    // A TOTP secret or otpauth:// URI
+    private static final String[] TOTP_COLUMNS = {"totp", "login_totp", "otpauth", "otp"};
+    // Every URL one per line, from LockBox's own export; url holds the first
+    private static final String[] URLS_COLUMNS = {"urls"};
+    // A JSON object from LockBox's export, or Bitwarden's "name: value" lines
+    private static final String[] FIELDS_COLUMNS = {"custom_fields", "fields"};
+
+    private final PasswordManager manager;
+
+    public CsvImporter(PasswordManager manager) {
+        this.manager = manager;
+    }
+
+    public static class ImportResult {
+        private int imported;
+        private int duplicates;
+        private int skipped;
+        private final List<Account> preview = new ArrayList<>();
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        // The first few entries that were (or in a dry run would be) imported
+        public List<Account> getPreview() {
+            return preview;
+        }
+    }
+
+    public ImportResult importFile(Path file, boolean dryRun) throws IOException {
+        try (Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            return importFrom(reader, dryRun);
+        }
+    }
+
+    public ImportResult importArchive(Path archive, char[] archivePassword, boolean dryRun) throws IOException {
+        try (Reader reader = new BufferedReader(VaultExporter.openArchive(archive, archivePassword))) {
+            return importFrom(reader, dryRun);
+        }
+    }
+
+    public ImportResult importFrom(Reader reader, boolean dryRun) throws IOException {
+        CsvReader csv = new CsvReader(reader);
+        List<String> header = csv.readRecord();
+        if (header == null) {
+            throw new IOException("The file is empty");
+        }
+
+        int nameColumn = findColumn(header, NAME_COLUMNS);
+        int urlColumn = findColumn(header, URL_COLUMNS);
+        int usernameColumn = findColumn(header, USERNAME_COLUMNS);
+        int passwordColumn = findColumn(header, PASSWORD_COLUMNS);
+        int notesColumn = findColumn(header, NOTES_COLUMNS);
+        int tagsColumn = findColumn(header, TAGS_COLUMNS);
+        int totpColumn = findColumn(header, TOTP_COLUMNS);
+        int urlsColumn = findColumn(header, URLS_COLUMNS);
+        int fieldsColumn = findColumn(header, FIELDS_COLUMNS);
+        if (passwordColumn < 0 || (nameColumn < 0 && urlColumn < 0)) {
+            throw new IOException("Unrecognized CSV header: " + String.join(",", header));
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (Account account : manager.getAccounts()) {
+            seen.add(dedupKey(account.getWebsite(), account.getUsername()));
+        }
+
+        ImportResult result = new ImportResult();
+        List<Account> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> record;
+        while ((record = csv.readRecord()) != null) {
+            String name = field(record, nameColumn);
+            String url = field(record, urlColumn);
+            String username = field(record, usernameColumn);
+            String password = rawField(record, passwordColumn);
+
+            String website = !name.isEmpty() ? name : hostOf(url);
+            if (website.isEmpty() || password.isEmpty()) {
+                result.skipped++;
+                continue;
+            }
+            if (!seen.add(dedupKey(website, username))) {
+                result.duplicates++;
+                continue;
+            }
+
+            Account.Builder builder = Account.builder().website(website).username(username).password(password);
+            String urls = field(record, urlsColumn);
+            if (!urls.isEmpty()) {
+                builder.urls(splitLines(urls));
+            } else if (!url.isEmpty()) {
+                builder.urls(Collections.singletonList(url));
+            }
+            String fields = rawField(record, fieldsColumn);
+            if (!fields.isBlank()) {
+                builder.customFields(parseFields(fields));
+            }
+            String notes = rawField(record, notesColumn);
+            if (!notes.isBlank()) {
+                builder.notes(notes);
+            }
+            String tags = field(record, tagsColumn);
+            if (!tags.isEmpty()) {
+                builder.tags(splitTags(tags));
+            }
+            String totp = rawField(record, totpColumn);
+            if (!totp.isBlank()) {
+                builder.totp(totp);
+            }
+            Account account = builder.build();
+            if (result.preview.size() < PREVIEW_SIZE) {
+                result.preview.add(account);
+            }
+            result.imported++;
+
+            if (!dryRun) {
+                batch.add(account);
+                if (batch.size() == BATCH_SIZE) {
+                    manager.addAccounts(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+        }
+
+        if (!dryRun) {
+            manager.addAccounts(batch);
+            manager.sortAccountsByWebsite();
+        }
+        return result;
+    }
+
+    // Splits on ';' only, so a tag may hold a comma; "\;" and "\\" stand
+    // for a literal ';' and backslash as VaultExporter writes them
+    static List<String> splitTags(String value) {
+        List<String> tags = new ArrayList<>();
+        StringBuilder tag = new StringBuilder();
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i < value.length() ? value.charAt(i) : ';';
+            if (c == '\\' && i + 1 < value.length()
+                    && (value.charAt(i + 1) == ';' || value.charAt(i + 1) == '\\')) {
+                tag.append(value.charAt(++i));
+            } else if (c != ';') {
+                tag.append(c);
+            } else {
+                String trimmed = tag.toString().trim();
+                if (!trimmed.isEmpty() && !tags.contains(trimmed)) {
+                    tags.add(trimmed);
+                }
+                tag.setLength(0);
+            }
+        }
+        return tags;
+    }
+
+    private static List<String> splitLines(String value) {
+        List<String> lines = new ArrayList<>();
+        for (String line : value.split("\r?\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    // Custom fields from a flat JSON object of strings, or from "name: value"
+    // lines as Bitwarden writes them
+    static Map<String, String> parseFields(String value) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        if (!value.strip().startsWith("{")) {
+            for (String line : value.split("\r?\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    int start = line.startsWith(" ", colon + 1) ? colon + 2 : colon + 1;
+                    fields.put(line.substring(0, colon).trim(), line.substring(start));
+                }
+            }
+            return fields;
+        }
+        JsonStrings json = new JsonStrings(value);
+        json.expect('{');
+        if (json.peek() == '}') {
+            json.expect('}');
+            return fields;
+        }
+        do {
+            String key = json.string();
+            json.expect(':');
+            fields.put(key, json.string());
+        } while (json.next(',', '}') == ',');
+        return fields;
+    }
+
+    // Reads the strings of a flat JSON object, enough for custom fields
+    private static class JsonStrings {
+        private final String text;
+        private int pos;
+
+        JsonStrings(String text) {
+            this.text = text;
+        }
+
+        char peek() throws IOException {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            if (pos == text.length()) {
+                throw new IOException("Invalid custom fields: " + text);
+            }
+            return text.charAt(pos);
+        }
+
+        void expect(char c) throws IOException {
+            next(c, c);
+        }
+
+        // Consumes one of the two characters and returns it
+        char next(char a, char b) throws IOException {
+            char c = peek();
+            if (c != a && c != b) {
+                throw new IOException("Invalid custom fields: " + text);
+            }
+            pos++;
+            return c;
+        }
+
+        String string() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos == text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IOException("Invalid custom fields: " + text);
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Invalid custom fields: " + text);
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        // \" \\ and \/
+                        value.append(escaped);
+                }
+            }
+            throw new IOException("Invalid custom fields: " + text);
+        }
+    }
+
+    private static int findColumn(List<String> header, String[] candidates) {
+        for (String candidate : candidates) {
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).trim().equalsIgnoreCase(candidate)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String field(List<String> record, int column) {
+        if (column < 0 || column >= record.size()) {
+            return "";
+        }
+        return record.get(column).trim();
+    }
+
+    // Secrets and free text are kept exactly as exported; a password with a
+    // trailing space must not silently become a different password
+    private static String rawField(List<String> record, int column) {
+        if (column < 0 || column >= record.size()) {
+            return "";
+        }
+        return record.get(column);
+    }
+
+    // Normalized site plus username, so "https://www.GitHub.com/login" and
+    // "github.com" count as the same entry
+    static String dedupKey(String website, String username) {
+        return hostOf(website).toLowerCase(Locale.ROOT) + '\u0000' + username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    static String hostOf(String url) {
+        String host = url.trim();
+        int scheme = host.indexOf("://");
+        if (scheme >= 0) {
+            host = host.substring(scheme + 3);
+        }
+        int end = host.length();
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        host = host.substring(0, end);
+        if (host.regionMatches(true, 0, "www.", 0, 4)) {
+            host = host.substring(4);
+        }
+        return host;
+    }
+
+    // Minimal RFC 4180 reader: quoted fields may contain commas, doubled
+    // quotes and line breaks; records end at CRLF or a bare LF.
+    static class CsvReader {
+        private final Reader reader;
+        private final StringBuilder field = new StringBuilder();
+        private int pushedBack = -2;
+        private boolean firstChar = true;
+
+        CsvReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        private int read() throws IOException {
+            if (pushedBack != -2) {
+                int c = pushedBack;
+                pushedBack = -2;
+                return c;
+            }
+            int c = reader.read();
+            if (firstChar) {
+                firstChar = false;
+                if (c == '\uFEFF') {
+                    c = reader.read();
+                }
+            }
+            return c;
+        }
+
+        // Returns null at end of input; blank lines are skipped
+        List<String> readRecord() throws IOException {
+            List<String> record = new ArrayList<>();
+            field.setLength(0);
+            boolean inQuotes = false;
+            boolean quoted = false;
+            boolean any = false;
+
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    if (!any) {
+                        return null;
+                    }
+                    record.add(field.toString());
+                    return record;
+                }
+                any = true;
+
+                if (inQuotes) {
+                    if (c == '"') {
+                        int next = read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            inQuotes = false;
+                            pushedBack = next;
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"') {
+                    inQuotes = true;
+                    quoted = true;
+                } else if (c == ',') {
+                    record.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\r' || c == '\n') {
+                    if (c == '\r') {
+                        int next = read();
+                        if (next != '\n') {
+                            pushedBack = next;
+                        }
+                    }
+                    if (record.isEmpty() && field.length() == 0 && !quoted) {
+                        any = false;
+                        continue;
+                    }
+                    record.add(field.toString());
+                    return record;
+                } else {
+                    field.append((char) c);
+                }
+            }
+        }
+    }
+}
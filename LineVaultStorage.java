@@ -0,0 +1,324 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The default layout: the header line, then one line per record. Every save
+// writes the whole file into a temporary file that then replaces the vault,
+// but records that did not change are written back byte for byte from the
+// line they were read from or last written as, so only changed records are
+// sealed.
+//
+// In files with a vault id a line is "<record key>:<version>:<sealed>", and
+// the record is sealed with the vault id, its key and its version as
+// associated data. A record therefore opens only in its own vault and under
+// its own key, so one copied from another vault or duplicated within the file
+// is refused, and a single line can be checked or replaced on its own. The
+// version goes up every time the record is sealed with new contents. Older
+// files hold the Base64 sealed record alone.
+public class LineVaultStorage implements VaultStorage {
+    static final String NAME = "lines";
+
+    // The encrypted line each account was last read from or written as. A
+    // save writes unchanged accounts back byte for byte instead of sealing
+    // them again, so a rewritten file differs only in the records that
+    // changed and a reload decrypts only those.
+    private final Map<Account, String> sealedLines = Collections.synchronizedMap(new WeakHashMap<>());
+    // The version each account was read or written with, and the highest
+    // version seen for each record key. Unlike the lines they stay valid
+    // when the key or cipher changes, so resealing a record that did not
+    // change keeps its version and versions never go back.
+    private final Map<Account, Long> versions = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Map<UUID, Long> latestVersions = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void invalidate() {
+        sealedLines.clear();
+    }
+
+    @Override
+    public void write(String filename, VaultHeader header, List<Account> snapshot, CryptoUtils key) throws Exception {
+        CryptoUtils.Aead aead = header.getCipher();
+        RecordCompressor compressor = header.newCompressor();
+        UUID vaultId = header.getVaultId();
+        Map<UUID, Integer> occurrences = new HashMap<>();
+        Base64.Encoder base64 = Base64.getEncoder();
+        ByteBuffer record = ByteBuffer.allocate(1024);
+        Path vault = Paths.get(filename);
+        Path temp = vault.resolveSibling(vault.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(header.format());
+            writer.newLine();
+            for (Account account : snapshot) {
+                UUID recordKey = vaultId != null ? VaultStorage.recordKey(account, occurrences) : null;
+                String line = sealedLines.get(account);
+                if (line != null && vaultId != null && !line.startsWith(recordKey + ":")) {
+                    // A copy sharing the id moved ahead of it; the key changed
+                    line = null;
+                }
+                if (line == null) {
+                    // One reusable buffer for every record, grown only for huge entries
+                    record = RecordCodec.encodeReusing(account, record);
+                    ByteBuffer payload = compressor != null ? compressor.compress(record) : record;
+                    if (vaultId == null) {
+                        line = base64.encodeToString(key.encryptBytes(aead, payload));
+                    } else {
+                        long version = versionFor(account, recordKey);
+                        line = recordKey + ":" + version + ":"
+                                + base64.encodeToString(key.encryptBytes(aead, payload, recordAad(vaultId, recordKey, version)));
+                    }
+                    sealedLines.put(account, line);
+                }
+                writer.write(line);
+                writer.newLine();
+            }
+        } catch (Exception e) {
+            // A save that fails halfway leaves the vault as it was
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            // Plaintext of the last records
+            Arrays.fill(record.array(), (byte) 0);
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+        Files.move(temp, vault, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The version to seal an account with: the one it has if it was sealed
+    // before, one more than its record had otherwise
+    private long versionFor(Account account, UUID recordKey) {
+        Long version = versions.get(account);
+        if (version == null) {
+            version = latestVersions.getOrDefault(recordKey, 0L) + 1;
+            versions.put(account, version);
+        }
+        latestVersions.merge(recordKey, version, Math::max);
+        return version;
+    }
+
+    private static byte[] recordAad(UUID vaultId, UUID recordKey, long version) {
+        return ByteBuffer.allocate(16 + 16 + 8)
+                .putLong(vaultId.getMostSignificantBits()).putLong(vaultId.getLeastSignificantBits())
+                .putLong(recordKey.getMostSignificantBits()).putLong(recordKey.getLeastSignificantBits())
+                .putLong(version).array();
+    }
+
+    // A "<record key>:<version>:<sealed>" line split up, with its associated data
+    private static final class Label {
+        final UUID recordKey;
+        final long version;
+        final String sealed;
+
+        Label(String line) throws Exception {
+            int first = line.indexOf(':');
+            int second = line.indexOf(':', first + 1);
+            if (first < 0 || second < 0) {
+                throw new Exception("Failed to decrypt data. Incorrect master password or corrupted file.");
+            }
+            try {
+                recordKey = UUID.fromString(line.substring(0, first));
+                version = Long.parseLong(line.substring(first + 1, second));
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Failed to decrypt data. Incorrect master password or corrupted file.");
+            }
+            sealed = line.substring(second + 1);
+        }
+    }
+
+    @Override
+    public List<Account> read(String filename, VaultHeader header, CryptoUtils key) throws Exception {
+        Map<String, Account> known = knownLines();
+        List<Account> loaded = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line = reader.readLine();
+            // Files without a header are the original comma-separated format
+            if (header != null) {
+                line = reader.readLine();
+            }
+            CryptoUtils.Aead aead = header != null ? header.getCipher() : CryptoUtils.Aead.AES_GCM;
+            RecordCompressor compressor = header != null ? header.newCompressor() : null;
+            UUID vaultId = header != null ? header.getVaultId() : null;
+            Map<UUID, Integer> occurrences = new HashMap<>();
+
+            Base64.Decoder base64 = Base64.getDecoder();
+            try {
+                for (; line != null; line = reader.readLine()) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    Label label = vaultId != null ? new Label(line) : null;
+                    // A line read or written before opens to the same account without
+                    // decrypting it again, and gets the same checks
+                    Account account = known.get(line);
+                    if (account == null) {
+                        try {
+                            if (header == null) {
+                                account = Account.fromString(key.decrypt(line));
+                            } else {
+                                ByteBuffer decrypted = label == null ? key.decryptBytes(aead, base64.decode(line))
+                                        : key.decryptBytes(aead, base64.decode(label.sealed),
+                                                recordAad(vaultId, label.recordKey, label.version));
+                                ByteBuffer payload = compressor != null ? compressor.decompress(decrypted) : decrypted;
+                                account = RecordCodec.decode(payload);
+                                // The account holds copies; the plaintext record goes
+                                Arrays.fill(decrypted.array(), (byte) 0);
+                                Arrays.fill(payload.array(), (byte) 0);
+                            }
+                        } catch (Exception e) {
+                            throw new Exception("Failed to decrypt data. Incorrect master password or corrupted file.");
+                        }
+                    }
+                    if (label != null) {
+                        // Sealed for this key, but a second copy of a line gets the key of a second copy
+                        if (!label.recordKey.equals(VaultStorage.recordKey(account, occurrences))) {
+                            throw new Exception("The vault file is damaged (record " + label.recordKey + " is duplicated)");
+                        }
+                        versions.put(account, label.version);
+                        latestVersions.merge(label.recordKey, label.version, Math::max);
+                    }
+                    if (header != null) {
+                        sealedLines.put(account, line);
+                    }
+                    loaded.add(account);
+                }
+            } finally {
+                if (compressor != null) {
+                    compressor.end();
+                }
+            }
+            return loaded;
+        } catch (IOException e) {
+            throw new Exception("Error reading file: " + e.getMessage());
+        }
+    }
+
+    // Sealed line to account for every account this storage still knows
+    private Map<String, Account> knownLines() {
+        synchronized (sealedLines) {
+            Map<String, Account> known = new HashMap<>(sealedLines.size() * 2);
+            for (Map.Entry<Account, String> entry : sealedLines.entrySet()) {
+                known.put(entry.getValue(), entry.getKey());
+            }
+            return known;
+        }
+    }
+
+    // A header of the same length, as after sealing the data key with a new
+    // password, is overwritten in place with one write smaller than a disk
+    // sector and forced to disk, which lands whole or not at all. Otherwise
+    // the records are copied behind the new header into a temporary file that
+    // replaces the vault atomically.
+    @Override
+    public void writeHeader(String filename, VaultHeader header, CryptoUtils key) throws IOException {
+        Path vault = Paths.get(filename);
+        String line = header.format();
+        String current;
+        try (BufferedReader reader = Files.newBufferedReader(vault, StandardCharsets.UTF_8)) {
+            current = reader.readLine();
+        }
+        if (current != null && current.length() == line.length()) {
+            try (FileChannel channel = FileChannel.open(vault, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, bytes.position());
+                }
+                channel.force(true);
+            }
+            return;
+        }
+        Path temp = vault.resolveSibling(vault.getFileName() + ".tmp");
+        try (BufferedReader reader = Files.newBufferedReader(vault, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            writer.write(line);
+            writer.newLine();
+            for (String record = reader.readLine(); record != null; record = reader.readLine()) {
+                writer.write(record);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, vault, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Each line is opened and sealed again into a temporary file that then
+    // replaces the vault; records are never decoded
+    @Override
+    public void reencrypt(String filename, VaultHeader header, CryptoUtils key, CryptoUtils.Aead target) throws Exception {
+        CryptoUtils.Aead source = header.getCipher();
+        UUID vaultId = header.getVaultId();
+        Map<String, Account> known = knownLines();
+        Map<Account, String> resealed = new IdentityHashMap<>(known.size() * 2);
+        Path vault = Paths.get(filename);
+        Path temp = vault.resolveSibling(vault.getFileName() + ".tmp");
+        VaultHeader rewritten = header.upgraded();
+        rewritten.put(VaultHeader.CIPHER, target.getId());
+        Base64.Decoder decoder = Base64.getDecoder();
+        Base64.Encoder encoder = Base64.getEncoder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename));
+             BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            writer.write(rewritten.format());
+            writer.newLine();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                // The label and so the associated data stay as they are
+                Label label = vaultId != null ? new Label(line) : null;
+                byte[] aad = label != null ? recordAad(vaultId, label.recordKey, label.version) : null;
+                ByteBuffer payload;
+                try {
+                    payload = key.decryptBytes(source, decoder.decode(label != null ? label.sealed : line), aad);
+                } catch (Exception e) {
+                    throw new Exception("Failed to decrypt data. Incorrect master password or corrupted file.");
+                }
+                String sealed = encoder.encodeToString(key.encryptBytes(target, payload, aad));
+                if (label != null) {
+                    sealed = label.recordKey + ":" + label.version + ":" + sealed;
+                }
+                Arrays.fill(payload.array(), (byte) 0);
+                Account account = known.get(line);
+                if (account != null) {
+                    resealed.put(account, sealed);
+                }
+                writer.write(sealed);
+                writer.newLine();
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, vault, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sealedLines.clear();
+        sealedLines.putAll(resealed);
+    }
+}
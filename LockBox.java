@@ -2,17 +2,28 @@ import javax.swing.*;
 import javax.swing.border.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
-import java.awt.datatransfer.StringSelection;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.prefs.Preferences;
 
 public class LockBox extends JFrame {
     private static final String APP_TITLE = "LockBox Password Manager";
     private static final String APP_AUTHOR = "Made by lytexdev (Immanuel Mruk)";
     private static final String FILE_EXTENSION = "lbx";
+    private static final String ALL_VAULTS = "All Vaults";
     
     // Lila/Pink Theme mit Dark Mode
     private static final Color PRIMARY_COLOR = new Color(186, 104, 200);     // Lila
@@ -27,6 +38,9 @@ public class LockBox extends JFrame {
     private static final Font NORMAL_FONT = new Font("Segoe UI", Font.PLAIN, 14);
     private static final Font SMALL_FONT = new Font("Segoe UI", Font.PLAIN, 12);
     
+    // manager and currentFileName always mirror activeVault
+    private final Workspace workspace = new Workspace();
+    private Workspace.Vault activeVault;
     private PasswordManager manager;
     private JPanel mainPanel;
     private JPanel welcomePanel;
@@ -42,23 +56,87 @@ public class LockBox extends JFrame {
     private JButton generateButton;
     private JSpinner lengthSpinner;
     private JCheckBox showPasswordCheckBox;
+    private JTextField tagsField;
+    private JTextArea urlsArea;
+    private JTextArea notesArea;
+    private JTextArea customFieldsArea;
+    private DefaultListModel<Account.Attachment> attachmentsModel;
+    private JList<Account.Attachment> attachmentsList;
+    private JLabel timestampsLabel;
+    private JTextField totpField;
+    private JPanel totpPanel;
+    private JLabel totpCodeLabel;
+    private JLabel totpCountdownLabel;
+    // One timer for the whole window, ticking on second boundaries while a
+    // TOTP code is shown; the code itself is recomputed once per time step
+    private Timer totpTimer;
+    private Totp displayedTotp;
+    private long displayedTotpWindow = -1;
     private String currentFileName = null;
     private Preferences prefs;
     private JTextField searchField;
+    private JTextField tagFilterField;
     private JPanel detailsPanel;
     private JLabel lockIcon;
+    // Auto-lock: every key or mouse event anywhere in the application only
+    // stores its time, and one slow timer compares that with the deadline
+    private static final int AUTO_LOCK_CHECK_MILLIS = 5000;
+    private volatile long lastActivity = System.currentTimeMillis();
     private Timer autoLockTimer;
     private int autoLockMinutes = 5;
+    private int historyMaxEntries;
+    private int historyMaxAgeDays;
+    private boolean compressVaults;
+    private boolean autoSave;
+    private int autoSaveSeconds;
+    private boolean backupsEnabled;
+    private int clipboardClearSeconds;
+    // Cipher id for new vaults, or "auto" for the faster one on this machine
+    private String vaultCipher;
+    // New vaults in fixed-size pages, saved by rewriting only changed pages
+    private boolean pagedVaults;
+    private ClipboardCleaner clipboardCleaner;
+    private int backupHourly;
+    private int backupDaily;
+    private int backupWeekly;
+    private JComboBox<Object> vaultSelector;
+    private boolean updatingVaultSelector;
+    // Source vault of each listed entry while the merged view is shown
+    private final Map<Account, Workspace.Vault> accountSources = new IdentityHashMap<>();
+    // Notices when another program or a sync client rewrites an open vault
+    private VaultWatcher vaultWatcher;
+    private boolean handlingExternalChange;
     
     public LockBox() {
         setTitle(APP_TITLE);
         setSize(1000, 700);
         setMinimumSize(new Dimension(800, 600));
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Closing the window goes through exitApplication so edits are saved first
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                exitApplication();
+            }
+        });
         setLocationRelativeTo(null);
         
         // Load application preferences
         prefs = Preferences.userNodeForPackage(LockBox.class);
+        historyMaxEntries = prefs.getInt("historyMaxEntries", 10);
+        historyMaxAgeDays = prefs.getInt("historyMaxAgeDays", 365);
+        compressVaults = prefs.getBoolean("compressVaults", true);
+        autoSave = prefs.getBoolean("autoSave", true);
+        autoSaveSeconds = prefs.getInt("autoSaveSeconds", 10);
+        backupsEnabled = prefs.getBoolean("backupsEnabled", true);
+        backupHourly = prefs.getInt("backupHourly", 24);
+        backupDaily = prefs.getInt("backupDaily", 30);
+        backupWeekly = prefs.getInt("backupWeekly", 12);
+        clipboardClearSeconds = prefs.getInt("clipboardClearSeconds", 30);
+        vaultCipher = prefs.get("vaultCipher", "auto");
+        pagedVaults = prefs.getBoolean("pagedVaults", false);
+        clipboardCleaner = new ClipboardCleaner(Toolkit.getDefaultToolkit().getSystemClipboard(),
+                clipboardClearSeconds * 1000L);
         
         // Set application icon
         setIconImage(createLockIcon(32).getImage());
@@ -68,6 +146,10 @@ public class LockBox extends JFrame {
         
         // Initialize auto-lock timer first
         initAutoLockTimer();
+        initTotpTimer();
+        initVaultWatcher();
+        // Measure the ciphers while the user picks a vault
+        CompletableFuture.runAsync(CryptoUtils.Aead::fastest);
         
         // Initialize components
         initializeComponents();
@@ -79,25 +161,108 @@ public class LockBox extends JFrame {
     }
     
     private void initAutoLockTimer() {
-        autoLockTimer = new Timer(autoLockMinutes * 60 * 1000, e -> {
-            if (manager != null) {
-                logout();
-                JOptionPane.showMessageDialog(this, 
-                    "LockBox has been automatically locked due to inactivity.", 
-                    "Auto-Lock", JOptionPane.INFORMATION_MESSAGE);
+        Toolkit.getDefaultToolkit().addAWTEventListener(e -> lastActivity = System.currentTimeMillis(),
+                AWTEvent.KEY_EVENT_MASK | AWTEvent.MOUSE_EVENT_MASK
+                        | AWTEvent.MOUSE_MOTION_EVENT_MASK | AWTEvent.MOUSE_WHEEL_EVENT_MASK);
+        autoLockTimer = new Timer(AUTO_LOCK_CHECK_MILLIS, e -> checkAutoLock());
+        autoLockTimer.start();
+    }
+    
+    private void checkAutoLock() {
+        if (manager == null
+                || System.currentTimeMillis() - lastActivity < autoLockMinutes * 60_000L) {
+            return;
+        }
+        // Nobody is there to answer a save prompt; whatever cannot be saved
+        // is sealed next to its vault and offered again at the next unlock
+        List<String> lost = new ArrayList<>();
+        for (Workspace.Vault vault : workspace.getVaults()) {
+            String problem = keepUnsavedChanges(vault);
+            if (problem != null) {
+                lost.add(vault.getName() + ": " + problem);
             }
-        });
-        autoLockTimer.setRepeats(false);
+        }
+        closeAllVaults();
+        String message = "LockBox has been automatically locked due to inactivity.";
+        if (!lost.isEmpty()) {
+            message += "\n\nUnsaved changes could not be kept:\n" + String.join("\n", lost);
+        }
+        JOptionPane.showMessageDialog(this, message, "Auto-Lock",
+                lost.isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
     }
     
-    private void resetAutoLockTimer() {
-        if (autoLockTimer.isRunning()) {
-            autoLockTimer.restart();
-        } else {
-            autoLockTimer.start();
+    // Flushes a vault that saves automatically, or seals its unsaved changes
+    // with the vault key into a file next to it; never asks. Returns why the
+    // changes are lost, or null.
+    private String keepUnsavedChanges(Workspace.Vault vault) {
+        PasswordManager target = vault.getManager();
+        if (target.isAutoSaveEnabled()) {
+            try {
+                target.flush();
+            } catch (Exception e) {
+                // Kept as pending changes below
+            }
+        }
+        if (!target.isDirty()) {
+            return null;
+        }
+        try {
+            target.savePending(vault.getFileName());
+            return null;
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+    }
+    
+    // Offers the changes an auto-lock kept for a vault that was just unlocked
+    private void offerPendingChanges(String filePath) {
+        String name = new File(filePath).getName();
+        List<Account> pending;
+        try {
+            pending = manager.readPending(filePath);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this,
+                    "Could not read the unsaved changes kept for " + name + ": " + e.getMessage(),
+                    "Unsaved Changes", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (pending == null) {
+            return;
+        }
+        int result = JOptionPane.showConfirmDialog(this,
+                name + " had unsaved changes when it was locked for inactivity.\n" +
+                "Restore them? They replace the entries that were loaded.",
+                "Unsaved Changes", JOptionPane.YES_NO_OPTION);
+        if (result == JOptionPane.CLOSED_OPTION) {
+            // Asked again at the next unlock
+            return;
+        }
+        if (result == JOptionPane.YES_OPTION) {
+            manager.replaceAccounts(pending);
+            refreshAccountList();
+            setStatus("Restored unsaved changes to " + name);
+        }
+        try {
+            PasswordManager.discardPending(filePath);
+        } catch (IOException e) {
+            setStatus("Could not remove the unsaved changes kept for " + name + ": " + e.getMessage());
         }
     }
     
+    private void initVaultWatcher() {
+        try {
+            vaultWatcher = new VaultWatcher(fileName -> SwingUtilities.invokeLater(() -> vaultChangedOnDisk(fileName)));
+        } catch (IOException e) {
+            // No file change notifications on this platform, vaults are simply not watched
+            vaultWatcher = null;
+        }
+    }
+    
+    private void initTotpTimer() {
+        totpTimer = new Timer(1000, e -> updateTotpDisplay());
+        totpTimer.setRepeats(false);
+    }
+    
     private void applyDarkTheme() {
         try {
             // Set system look and feel as base
@@ -198,7 +363,14 @@ public class LockBox extends JFrame {
                 InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK));
         saveAsItem.addActionListener(e -> saveDatabaseAs());
         
-        JMenuItem lockItem = new JMenuItem("Lock Database");
+        JMenuItem closeItem = new JMenuItem("Close Database");
+        closeItem.setFont(NORMAL_FONT);
+        closeItem.setBackground(CARD_COLOR);
+        closeItem.setForeground(TEXT_COLOR);
+        closeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, InputEvent.CTRL_DOWN_MASK));
+        closeItem.addActionListener(e -> closeDatabase());
+        
+        JMenuItem lockItem = new JMenuItem("Lock All Databases");
         lockItem.setFont(NORMAL_FONT);
         lockItem.setBackground(CARD_COLOR);
         lockItem.setForeground(TEXT_COLOR);
@@ -216,6 +388,7 @@ public class LockBox extends JFrame {
         fileMenu.addSeparator();
         fileMenu.add(saveItem);
         fileMenu.add(saveAsItem);
+        fileMenu.add(closeItem);
         fileMenu.addSeparator();
         fileMenu.add(lockItem);
         fileMenu.addSeparator();
@@ -285,7 +458,43 @@ public class LockBox extends JFrame {
         settingsItem.setForeground(TEXT_COLOR);
         settingsItem.addActionListener(e -> showSettings());
         
+        JMenuItem importItem = new JMenuItem("Import CSV...");
+        importItem.setFont(NORMAL_FONT);
+        importItem.setBackground(CARD_COLOR);
+        importItem.setForeground(TEXT_COLOR);
+        importItem.addActionListener(e -> importCsv());
+        
+        JMenuItem exportItem = new JMenuItem("Export...");
+        exportItem.setFont(NORMAL_FONT);
+        exportItem.setBackground(CARD_COLOR);
+        exportItem.setForeground(TEXT_COLOR);
+        exportItem.addActionListener(e -> exportDatabase());
+        
+        JMenuItem mergeItem = new JMenuItem("Merge Vault...");
+        mergeItem.setFont(NORMAL_FONT);
+        mergeItem.setBackground(CARD_COLOR);
+        mergeItem.setForeground(TEXT_COLOR);
+        mergeItem.addActionListener(e -> mergeVault());
+        
+        JMenuItem cipherItem = new JMenuItem("Change Cipher...");
+        cipherItem.setFont(NORMAL_FONT);
+        cipherItem.setBackground(CARD_COLOR);
+        cipherItem.setForeground(TEXT_COLOR);
+        cipherItem.addActionListener(e -> changeCipher());
+        
+        JMenuItem backupsItem = new JMenuItem("Backups...");
+        backupsItem.setFont(NORMAL_FONT);
+        backupsItem.setBackground(CARD_COLOR);
+        backupsItem.setForeground(TEXT_COLOR);
+        backupsItem.addActionListener(e -> showBackups());
+        
+        toolsMenu.add(importItem);
+        toolsMenu.add(exportItem);
+        toolsMenu.add(mergeItem);
+        toolsMenu.add(backupsItem);
+        toolsMenu.addSeparator();
         toolsMenu.add(changePasswordItem);
+        toolsMenu.add(cipherItem);
         toolsMenu.add(settingsItem);
         
         // Help menu
@@ -585,9 +794,20 @@ public class LockBox extends JFrame {
         JButton copyPasswordButton = createToolbarButton("Password", "key");
         copyPasswordButton.addActionListener(e -> copyPassword());
         
+        JButton copyTotpButton = createToolbarButton("TOTP", "totp");
+        copyTotpButton.addActionListener(e -> copyTotp());
+        
         JButton lockButton = createToolbarButton("Lock", "lock");
         lockButton.addActionListener(e -> logout());
         
+        // Vault selector, switches the active vault or shows all of them merged
+        vaultSelector = new JComboBox<>();
+        vaultSelector.setFont(SMALL_FONT);
+        vaultSelector.setBackground(CARD_COLOR);
+        vaultSelector.setForeground(TEXT_COLOR);
+        vaultSelector.setMaximumSize(new Dimension(180, 30));
+        vaultSelector.addActionListener(e -> vaultSelectionChanged());
+        
         // Search field
         searchField = new JTextField(15);
         searchField.setFont(NORMAL_FONT);
@@ -604,14 +824,34 @@ public class LockBox extends JFrame {
             }
         });
         
+        // Tag filter, a boolean expression over tags and folders
+        tagFilterField = new JTextField(15);
+        tagFilterField.setFont(NORMAL_FONT);
+        tagFilterField.setBackground(BACKGROUND_COLOR);
+        tagFilterField.setForeground(TEXT_COLOR);
+        tagFilterField.setBorder(searchField.getBorder());
+        tagFilterField.putClientProperty("JTextField.placeholderText", "Tags: work AND NOT old");
+        tagFilterField.setToolTipText("Combine tags with AND, OR, NOT and parentheses; folder/* matches a folder and its subfolders");
+        tagFilterField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyReleased(KeyEvent e) {
+                filterAccounts();
+            }
+        });
+        
         toolBar.add(newButton);
         toolBar.add(saveButton);
         toolBar.add(deleteButton);
         toolBar.addSeparator(new Dimension(20, 20));
         toolBar.add(copyUsernameButton);
         toolBar.add(copyPasswordButton);
+        toolBar.add(copyTotpButton);
         toolBar.add(Box.createHorizontalGlue());
+        toolBar.add(vaultSelector);
+        toolBar.addSeparator(new Dimension(10, 20));
         toolBar.add(searchField);
+        toolBar.addSeparator(new Dimension(5, 20));
+        toolBar.add(tagFilterField);
         toolBar.addSeparator(new Dimension(20, 20));
         toolBar.add(lockButton);
         
@@ -640,7 +880,6 @@ public class LockBox extends JFrame {
         accountList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
                 displaySelectedAccount();
-                resetAutoLockTimer();
             }
         });
         
@@ -688,6 +927,7 @@ public class LockBox extends JFrame {
     }
     
     private void createEmptyDetailsState() {
+        showTotp(null);
         detailsPanel.removeAll();
         
         JPanel emptyPanel = new JPanel(new GridBagLayout());
@@ -799,9 +1039,18 @@ public class LockBox extends JFrame {
         showPasswordCheckBox.setForeground(TEXT_COLOR);
         showPasswordCheckBox.addActionListener(e -> togglePasswordVisibility());
         
+        JButton historyButton = new JButton("History");
+        historyButton.setFont(SMALL_FONT);
+        historyButton.setBackground(CARD_COLOR);
+        historyButton.setForeground(TEXT_COLOR);
+        historyButton.setToolTipText("Previous passwords of this entry");
+        historyButton.addActionListener(e -> showPasswordHistory());
+        
         passwordPanel.add(passwordField);
         passwordPanel.add(Box.createHorizontalStrut(10));
         passwordPanel.add(showPasswordCheckBox);
+        passwordPanel.add(Box.createHorizontalStrut(10));
+        passwordPanel.add(historyButton);
         
         formPanel.add(passwordPanel);
         formPanel.add(Box.createVerticalStrut(15));
@@ -837,6 +1086,132 @@ public class LockBox extends JFrame {
         generatePanel.add(Box.createHorizontalGlue());
         
         formPanel.add(generatePanel);
+        formPanel.add(Box.createVerticalStrut(15));
+        
+        // Tags field
+        JLabel tagsLabel = new JLabel("Tags (comma separated)");
+        tagsLabel.setFont(NORMAL_FONT);
+        tagsLabel.setForeground(TEXT_COLOR);
+        tagsLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(tagsLabel);
+        formPanel.add(Box.createVerticalStrut(5));
+        
+        tagsField = new JTextField();
+        tagsField.setFont(NORMAL_FONT);
+        tagsField.setBackground(CARD_COLOR);
+        tagsField.setForeground(TEXT_COLOR);
+        tagsField.setCaretColor(ACCENT_COLOR);
+        tagsField.setMaximumSize(new Dimension(2000, 35));
+        tagsField.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(tagsField);
+        formPanel.add(Box.createVerticalStrut(15));
+        
+        // TOTP secret and the live code
+        JLabel totpLabel = new JLabel("TOTP Secret (Base32 or otpauth:// URI)");
+        totpLabel.setFont(NORMAL_FONT);
+        totpLabel.setForeground(TEXT_COLOR);
+        totpLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(totpLabel);
+        formPanel.add(Box.createVerticalStrut(5));
+        
+        totpField = new JTextField();
+        totpField.setFont(NORMAL_FONT);
+        totpField.setBackground(CARD_COLOR);
+        totpField.setForeground(TEXT_COLOR);
+        totpField.setCaretColor(ACCENT_COLOR);
+        totpField.setMaximumSize(new Dimension(2000, 35));
+        totpField.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(totpField);
+        formPanel.add(Box.createVerticalStrut(5));
+        
+        totpPanel = new JPanel();
+        totpPanel.setLayout(new BoxLayout(totpPanel, BoxLayout.X_AXIS));
+        totpPanel.setBackground(BACKGROUND_COLOR);
+        totpPanel.setMaximumSize(new Dimension(2000, 35));
+        totpPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        
+        totpCodeLabel = new JLabel();
+        totpCodeLabel.setFont(HEADING_FONT);
+        totpCodeLabel.setForeground(PRIMARY_COLOR);
+        
+        totpCountdownLabel = new JLabel();
+        totpCountdownLabel.setFont(SMALL_FONT);
+        totpCountdownLabel.setForeground(TEXT_SECONDARY_COLOR);
+        
+        JButton copyTotpButton = new JButton("Copy Code");
+        copyTotpButton.setFont(SMALL_FONT);
+        copyTotpButton.setBackground(CARD_COLOR);
+        copyTotpButton.setForeground(TEXT_COLOR);
+        copyTotpButton.addActionListener(e -> copyTotp());
+        
+        totpPanel.add(totpCodeLabel);
+        totpPanel.add(Box.createHorizontalStrut(10));
+        totpPanel.add(totpCountdownLabel);
+        totpPanel.add(Box.createHorizontalStrut(10));
+        totpPanel.add(copyTotpButton);
+        totpPanel.add(Box.createHorizontalGlue());
+        totpPanel.setVisible(false);
+        formPanel.add(totpPanel);
+        formPanel.add(Box.createVerticalStrut(15));
+        
+        urlsArea = addTextArea(formPanel, "URLs (one per line)", 2);
+        notesArea = addTextArea(formPanel, "Notes", 4);
+        customFieldsArea = addTextArea(formPanel, "Custom Fields (name: value per line)", 3);
+        
+        // Attachments, stored encrypted next to the vault
+        JLabel attachmentsLabel = new JLabel("Attachments");
+        attachmentsLabel.setFont(NORMAL_FONT);
+        attachmentsLabel.setForeground(TEXT_COLOR);
+        attachmentsLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(attachmentsLabel);
+        formPanel.add(Box.createVerticalStrut(5));
+        
+        attachmentsModel = new DefaultListModel<>();
+        attachmentsList = new JList<>(attachmentsModel);
+        attachmentsList.setFont(NORMAL_FONT);
+        attachmentsList.setBackground(CARD_COLOR);
+        attachmentsList.setForeground(TEXT_COLOR);
+        attachmentsList.setVisibleRowCount(3);
+        attachmentsList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                Account.Attachment attachment = (Account.Attachment) value;
+                String text = attachment.getName() + "  (" + formatSize(attachment.getSize()) + ")";
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        JScrollPane attachmentsScroll = new JScrollPane(attachmentsList);
+        attachmentsScroll.setBorder(BorderFactory.createLineBorder(new Color(80, 80, 80)));
+        attachmentsScroll.setMaximumSize(new Dimension(2000, 80));
+        attachmentsScroll.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(attachmentsScroll);
+        formPanel.add(Box.createVerticalStrut(5));
+        
+        JPanel attachmentButtons = new JPanel();
+        attachmentButtons.setLayout(new BoxLayout(attachmentButtons, BoxLayout.X_AXIS));
+        attachmentButtons.setBackground(BACKGROUND_COLOR);
+        attachmentButtons.setMaximumSize(new Dimension(2000, 35));
+        attachmentButtons.setAlignmentX(Component.LEFT_ALIGNMENT);
+        String[] attachmentActions = {"Add...", "Open", "Save As...", "Remove"};
+        for (String action : attachmentActions) {
+            JButton button = new JButton(action);
+            button.setFont(SMALL_FONT);
+            button.setBackground(CARD_COLOR);
+            button.setForeground(TEXT_COLOR);
+            button.addActionListener(e -> attachmentAction(action));
+            attachmentButtons.add(button);
+            attachmentButtons.add(Box.createHorizontalStrut(5));
+        }
+        attachmentButtons.add(Box.createHorizontalGlue());
+        formPanel.add(attachmentButtons);
+        formPanel.add(Box.createVerticalStrut(15));
+        
+        timestampsLabel = new JLabel(" ");
+        timestampsLabel.setFont(SMALL_FONT);
+        timestampsLabel.setForeground(TEXT_SECONDARY_COLOR);
+        timestampsLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(timestampsLabel);
         formPanel.add(Box.createVerticalStrut(30));
         
         // Buttons
@@ -864,6 +1239,31 @@ public class LockBox extends JFrame {
         detailsPanel.repaint();
     }
     
+    private JTextArea addTextArea(JPanel formPanel, String labelText, int rows) {
+        JLabel label = new JLabel(labelText);
+        label.setFont(NORMAL_FONT);
+        label.setForeground(TEXT_COLOR);
+        label.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(label);
+        formPanel.add(Box.createVerticalStrut(5));
+        
+        JTextArea area = new JTextArea(rows, 20);
+        area.setFont(NORMAL_FONT);
+        area.setBackground(CARD_COLOR);
+        area.setForeground(TEXT_COLOR);
+        area.setCaretColor(ACCENT_COLOR);
+        area.setLineWrap(true);
+        area.setWrapStyleWord(true);
+        
+        JScrollPane scrollPane = new JScrollPane(area);
+        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(80, 80, 80)));
+        scrollPane.setMaximumSize(new Dimension(2000, rows * 22 + 10));
+        scrollPane.setAlignmentX(Component.LEFT_ALIGNMENT);
+        formPanel.add(scrollPane);
+        formPanel.add(Box.createVerticalStrut(15));
+        return area;
+    }
+    
     private JButton createToolbarButton(String text, String iconName) {
         JButton button = new JButton(text);
         button.setForeground(TEXT_COLOR);
@@ -915,33 +1315,17 @@ public class LockBox extends JFrame {
     private void showWelcomePanel() {
         CardLayout cl = (CardLayout) mainPanel.getLayout();
         cl.show(mainPanel, "welcome");
-        // Stop auto-lock timer if it's running
-        if (autoLockTimer != null && autoLockTimer.isRunning()) {
-            autoLockTimer.stop();
-        }
     }
     
     private void showContentPanel() {
         CardLayout cl = (CardLayout) mainPanel.getLayout();
         cl.show(mainPanel, "content");
         refreshAccountList();
-        resetAutoLockTimer();
+        // Unlocking may take a while for a large vault; the idle time starts now
+        lastActivity = System.currentTimeMillis();
     }
     
     private void createNewDatabase() {
-        // If already logged in, ask to save current database
-        if (manager != null) {
-            int result = JOptionPane.showConfirmDialog(this,
-                    "Do you want to save the current database before creating a new one?",
-                    "Save Current Database", JOptionPane.YES_NO_CANCEL_OPTION);
-            
-            if (result == JOptionPane.CANCEL_OPTION) {
-                return;
-            } else if (result == JOptionPane.YES_OPTION) {
-                saveDatabase();
-            }
-        }
-        
         // Create file chooser for new database
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Create New Database");
@@ -982,16 +1366,22 @@ public class LockBox extends JFrame {
                     "New Database - Set Master Password", JOptionPane.OK_CANCEL_OPTION);
             
             if (result == JOptionPane.OK_OPTION) {
-                String masterPassword = new String(masterPassField.getPassword());
-                String confirmPassword = new String(confirmPassField.getPassword());
+                // Kept as char arrays and wiped, never turned into Strings
+                char[] masterPassword = masterPassField.getPassword();
+                char[] confirmPassword = confirmPassField.getPassword();
+                masterPassField.setText("");
+                confirmPassField.setText("");
                 
-                if (masterPassword.isEmpty()) {
+                if (masterPassword.length == 0) {
                     JOptionPane.showMessageDialog(this, 
                             "Password cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
                 
-                if (!masterPassword.equals(confirmPassword)) {
+                boolean matching = Arrays.equals(masterPassword, confirmPassword);
+                Arrays.fill(confirmPassword, '\0');
+                if (!matching) {
+                    Arrays.fill(masterPassword, '\0');
                     JOptionPane.showMessageDialog(this, 
                             "Passwords do not match.", "Error", JOptionPane.ERROR_MESSAGE);
                     return;
@@ -999,11 +1389,18 @@ public class LockBox extends JFrame {
                 
                 try {
                     // Create new manager with the password
-                    manager = new PasswordManager(masterPassword);
-                    currentFileName = filePath;
+                    PasswordManager newManager = new PasswordManager(masterPassword);
+                    Arrays.fill(masterPassword, '\0');
+                    applyPreferences(newManager, filePath);
+                    newManager.setCipher(cipherForNewVaults());
+                    newManager.setPagedStorage(pagedVaults);
                     
                     // Save the empty database
-                    manager.saveToFile(currentFileName);
+                    newManager.saveToFile(filePath);
+                    
+                    // Open it next to any vaults that are already unlocked
+                    activateVault(workspace.open(filePath, newManager));
+                    watchVault(filePath);
                     
                     // Add to recent files
                     addRecentFile(currentFileName);
@@ -1020,19 +1417,6 @@ public class LockBox extends JFrame {
     }
     
     private void openExistingDatabase() {
-        // If already logged in, ask to save current database
-        if (manager != null) {
-            int result = JOptionPane.showConfirmDialog(this,
-                    "Do you want to save the current database before opening another one?",
-                    "Save Current Database", JOptionPane.YES_NO_CANCEL_OPTION);
-            
-            if (result == JOptionPane.CANCEL_OPTION) {
-                return;
-            } else if (result == JOptionPane.YES_OPTION) {
-                saveDatabase();
-            }
-        }
-        
         // Create file chooser for opening database
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Open Database");
@@ -1045,6 +1429,14 @@ public class LockBox extends JFrame {
     }
     
     private void openDatabase(String filePath) {
+        // Already unlocked, just switch to it
+        Workspace.Vault openVault = workspace.find(filePath);
+        if (openVault != null) {
+            activateVault(openVault);
+            showContentPanel();
+            return;
+        }
+        
         // Ask for master password
         JPasswordField masterPassField = new JPasswordField(20);
         
@@ -1070,9 +1462,10 @@ public class LockBox extends JFrame {
                 "Open Database", JOptionPane.OK_CANCEL_OPTION);
         
         if (result == JOptionPane.OK_OPTION) {
-            String masterPassword = new String(masterPassField.getPassword());
+            char[] masterPassword = masterPassField.getPassword();
+            masterPassField.setText("");
             
-            if (masterPassword.isEmpty()) {
+            if (masterPassword.length == 0) {
                 JOptionPane.showMessageDialog(this, 
                         "Password cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
@@ -1080,18 +1473,22 @@ public class LockBox extends JFrame {
             
             try {
                 // Create new manager with the password
-                manager = new PasswordManager(masterPassword);
+                PasswordManager newManager = new PasswordManager(masterPassword);
+                Arrays.fill(masterPassword, '\0');
+                applyPreferences(newManager, filePath);
                 
                 // Try to load the database
-                manager.loadFromFile(filePath);
+                newManager.loadFromFile(filePath);
                 
-                currentFileName = filePath;
+                activateVault(workspace.open(filePath, newManager));
+                watchVault(filePath);
                 
                 // Add to recent files
                 addRecentFile(currentFileName);
                 
                 showContentPanel();
                 setStatus("Opened database: " + new File(currentFileName).getName());
+                offerPendingChanges(filePath);
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(this, 
                         "Error opening database: " + e.getMessage(), 
@@ -1112,6 +1509,9 @@ public class LockBox extends JFrame {
         
         try {
             manager.saveToFile(currentFileName);
+            // Files of removed attachments go once the vault no longer names them
+            new AttachmentStore(currentFileName).prune(manager.getAccounts());
+            backupVault(currentFileName);
             setStatus("Saved database: " + new File(currentFileName).getName());
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, 
@@ -1155,8 +1555,17 @@ public class LockBox extends JFrame {
             }
             
             try {
+                if (currentFileName != null) {
+                    new AttachmentStore(currentFileName).copyTo(new AttachmentStore(filePath), manager.getAccounts());
+                }
                 manager.saveToFile(filePath);
+                unwatchVault(activeVault.getFileName());
+                activeVault.setFileName(filePath);
                 currentFileName = filePath;
+                watchVault(filePath);
+                applyPreferences(manager, filePath);
+                backupVault(filePath);
+                updateVaultSelector();
                 
                 // Add to recent files
                 addRecentFile(currentFileName);
@@ -1172,48 +1581,210 @@ public class LockBox extends JFrame {
     
     private void logout() {
         // If changes are unsaved, ask to save
-        if (manager != null) {
-            int result = JOptionPane.showConfirmDialog(this,
-                    "Do you want to save the database before locking?",
-                    "Save Database", JOptionPane.YES_NO_CANCEL_OPTION);
-            
-            if (result == JOptionPane.CANCEL_OPTION) {
-                return;
-            } else if (result == JOptionPane.YES_OPTION) {
-                saveDatabase();
-            }
+        if (!confirmSaveOpenVaults("locking")) {
+            return;
         }
-        
+        closeAllVaults();
+    }
+    
+    // Locks every open vault, wiping its key and entries, and clears the UI
+    private void closeAllVaults() {
         accountListModel.clear();
+        accountSources.clear();
         if (detailsPanel != null) {
             createEmptyDetailsState();
         }
-        manager = null;
-        
-        if (autoLockTimer.isRunning()) {
-            autoLockTimer.stop();
+        for (Workspace.Vault vault : workspace.getVaults()) {
+            unwatchVault(vault.getFileName());
         }
+        workspace.closeAll();
+        activeVault = null;
+        manager = null;
+        currentFileName = null;
+        updateVaultSelector();
+        clipboardCleaner.clear();
         
         showWelcomePanel();
     }
     
     private void exitApplication() {
         // If changes are unsaved, ask to save
-        if (manager != null) {
-            int result = JOptionPane.showConfirmDialog(this,
-                    "Do you want to save the database before exiting?",
-                    "Save Database", JOptionPane.YES_NO_CANCEL_OPTION);
-            
-            if (result == JOptionPane.CANCEL_OPTION) {
-                return;
-            } else if (result == JOptionPane.YES_OPTION) {
-                saveDatabase();
-            }
+        if (!confirmSaveOpenVaults("exiting")) {
+            return;
         }
         
+        clipboardCleaner.clear();
         System.exit(0);
     }
     
+    private void closeDatabase() {
+        if (activeVault == null) {
+            return;
+        }
+        
+        if (!saveBeforeClosing(activeVault,
+                "Do you want to save " + activeVault.getName() + " before closing it?")) {
+            return;
+        }
+        
+        String closedName = activeVault.getName();
+        unwatchVault(activeVault.getFileName());
+        workspace.close(activeVault);
+        if (workspace.isEmpty()) {
+            activeVault = null;
+            manager = null;
+            currentFileName = null;
+            accountListModel.clear();
+            accountSources.clear();
+            createEmptyDetailsState();
+            updateVaultSelector();
+            showWelcomePanel();
+        } else {
+            activateVault(workspace.getVaults().get(0));
+            refreshAccountList();
+            setStatus("Closed database: " + closedName);
+        }
+    }
+    
+    // Saves or asks about saving each open vault; returns false if the user cancelled
+    private boolean confirmSaveOpenVaults(String action) {
+        for (Workspace.Vault vault : workspace.getVaults()) {
+            String question = workspace.getVaults().size() == 1
+                    ? "Do you want to save the database before " + action + "?"
+                    : "Do you want to save " + vault.getName() + " before " + action + "?";
+            if (!saveBeforeClosing(vault, question)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Flushes a vault that saves automatically; asks about one with unsaved
+    // changes otherwise. Returns false if the user cancelled.
+    private boolean saveBeforeClosing(Workspace.Vault vault, String question) {
+        PasswordManager target = vault.getManager();
+        if (target.isAutoSaveEnabled()) {
+            try {
+                target.flush();
+                return true;
+            } catch (Exception e) {
+                int result = JOptionPane.showConfirmDialog(this,
+                        "Could not save " + vault.getName() + ": " + e.getMessage() + "\n" +
+                        "Continue anyway and lose the unsaved changes?",
+                        "Save Database", JOptionPane.YES_NO_OPTION, JOptionPane.ERROR_MESSAGE);
+                return result == JOptionPane.YES_OPTION;
+            }
+        }
+        if (!target.isDirty()) {
+            return true;
+        }
+        
+        int result = JOptionPane.showConfirmDialog(this, question,
+                "Save Database", JOptionPane.YES_NO_CANCEL_OPTION);
+        if (result == JOptionPane.CANCEL_OPTION) {
+            return false;
+        } else if (result == JOptionPane.YES_OPTION) {
+            Workspace.Vault previous = activeVault;
+            activeVault = vault;
+            manager = target;
+            currentFileName = vault.getFileName();
+            saveDatabase();
+            if (previous != null && previous != vault) {
+                activeVault = previous;
+                manager = previous.getManager();
+                currentFileName = previous.getFileName();
+            }
+        }
+        return true;
+    }
+    
+    private void activateVault(Workspace.Vault vault) {
+        activeVault = vault;
+        manager = vault.getManager();
+        currentFileName = vault.getFileName();
+        updateVaultSelector();
+    }
+    
+    private void updateVaultSelector() {
+        updatingVaultSelector = true;
+        try {
+            vaultSelector.removeAllItems();
+            List<Workspace.Vault> vaults = workspace.getVaults();
+            if (vaults.size() > 1) {
+                vaultSelector.addItem(ALL_VAULTS);
+            }
+            for (Workspace.Vault vault : vaults) {
+                vaultSelector.addItem(vault);
+            }
+            if (activeVault != null) {
+                vaultSelector.setSelectedItem(activeVault);
+            }
+            vaultSelector.setVisible(vaults.size() > 1);
+        } finally {
+            updatingVaultSelector = false;
+        }
+    }
+    
+    private void vaultSelectionChanged() {
+        if (updatingVaultSelector) {
+            return;
+        }
+        Object selected = vaultSelector.getSelectedItem();
+        if (selected instanceof Workspace.Vault) {
+            activateVault((Workspace.Vault) selected);
+            setStatus("Switched to database: " + activeVault.getName());
+        }
+        refreshAccountList();
+    }
+    
+    private CryptoUtils.Aead cipherForNewVaults() {
+        try {
+            return vaultCipher.equals("auto") ? CryptoUtils.Aead.fastest() : CryptoUtils.Aead.forId(vaultCipher);
+        } catch (Exception e) {
+            return CryptoUtils.Aead.fastest();
+        }
+    }
+    
+    private static String cipherName(CryptoUtils.Aead aead) {
+        return aead == CryptoUtils.Aead.CHACHA20_POLY1305 ? "ChaCha20-Poly1305" : "AES-GCM";
+    }
+    
+    // Settings that live in the preferences but are applied per vault
+    private void applyPreferences(PasswordManager target, String fileName) {
+        target.setHistoryRetention(historyMaxEntries, historyMaxAgeDays);
+        target.setCompressionEnabled(compressVaults);
+        target.setAutoSaveListener(this::vaultAutoSaved);
+        target.setAutoSave(autoSave ? fileName : null, autoSaveSeconds * 1000L);
+    }
+    
+    // Called on the auto-save thread
+    private void vaultAutoSaved(String fileName, Exception error) {
+        SwingUtilities.invokeLater(() -> {
+            Workspace.Vault vault = workspace.find(fileName);
+            if (vault == null) {
+                return;
+            }
+            if (error != null) {
+                setStatus("Auto-save of " + vault.getName() + " failed: " + error.getMessage());
+                return;
+            }
+            try {
+                // Keep the files that either the saved or the edited version names
+                List<Account> referenced = new ArrayList<>(vault.getManager().getAccounts());
+                referenced.addAll(vault.getManager().getSyncedAccounts());
+                new AttachmentStore(fileName).prune(referenced);
+            } catch (IOException e) {
+                // Left for the next save
+            }
+            backupVault(fileName);
+            setStatus("Auto-saved " + vault.getName());
+        });
+    }
+    
+    private boolean isMergedView() {
+        return vaultSelector.getSelectedItem() == ALL_VAULTS && workspace.getVaults().size() > 1;
+    }
+    
     private void changeMasterPassword() {
         if (manager == null) {
             return;
@@ -1251,101 +1822,853 @@ public class LockBox extends JFrame {
                 "Change Master Password", JOptionPane.OK_CANCEL_OPTION);
         
         if (result == JOptionPane.OK_OPTION) {
-            String currentPassword = new String(currentPassField.getPassword());
-            String newPassword = new String(newPassField.getPassword());
-            String confirmPassword = new String(confirmPassField.getPassword());
+            char[] currentPassword = currentPassField.getPassword();
+            char[] newPassword = newPassField.getPassword();
+            char[] confirmPassword = confirmPassField.getPassword();
+            currentPassField.setText("");
+            newPassField.setText("");
+            confirmPassField.setText("");
             
-            if (newPassword.isEmpty()) {
+            boolean matching = Arrays.equals(newPassword, confirmPassword);
+            Arrays.fill(confirmPassword, '\0');
+            if (newPassword.length == 0) {
+                Arrays.fill(currentPassword, '\0');
                 JOptionPane.showMessageDialog(this, 
                         "New password cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
             
-            if (!newPassword.equals(confirmPassword)) {
+            if (!matching) {
+                Arrays.fill(currentPassword, '\0');
+                Arrays.fill(newPassword, '\0');
                 JOptionPane.showMessageDialog(this, 
                         "New passwords do not match.", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
             
+            if (!manager.isMasterPassword(currentPassword)) {
+                Arrays.fill(currentPassword, '\0');
+                Arrays.fill(newPassword, '\0');
+                JOptionPane.showMessageDialog(this, 
+                        "Current password is incorrect.", 
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            Arrays.fill(currentPassword, '\0');
+            
             try {
-                // Verify current password by attempting to create a CryptoUtils instance
-                CryptoUtils testCrypto = new CryptoUtils(currentPassword);
-                
-                // Create a new manager with the new password
-                List<Account> accounts = manager.getAccounts();
-                manager = new PasswordManager(newPassword);
-                
-                // Add all accounts to the new manager
-                for (Account account : accounts) {
-                    manager.addAccount(account);
+                // Only the vault key is sealed again; the file header is
+                // rewritten right away and the entries are not touched
+                manager.changeMasterPassword(newPassword, currentFileName);
+                if (currentFileName != null) {
+                    backupVault(currentFileName);
                 }
                 
                 JOptionPane.showMessageDialog(this, 
-                        "Master password changed successfully.\nMake sure to save the database with the new password.", 
+                        "Master password changed successfully.", 
                         "Success", JOptionPane.INFORMATION_MESSAGE);
                 
                 setStatus("Master password changed");
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(this, 
-                        "Current password is incorrect or an error occurred.", 
+                        "Error changing the master password: " + e.getMessage(), 
                         "Error", JOptionPane.ERROR_MESSAGE);
+            } finally {
+                Arrays.fill(newPassword, '\0');
             }
         }
     }
     
-    private void showSettings() {
-        JPanel panel = new JPanel(new GridLayout(0, 2, 10, 10));
-        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-        panel.setBackground(BACKGROUND_COLOR);
-        
-        JLabel autoLockLabel = new JLabel("Auto-lock after (minutes):");
-        autoLockLabel.setForeground(TEXT_COLOR);
-        
-        SpinnerNumberModel autoLockModel = new SpinnerNumberModel(autoLockMinutes, 1, 60, 1);
-        JSpinner autoLockSpinner = new JSpinner(autoLockModel);
-        autoLockSpinner.setBackground(CARD_COLOR);
-        autoLockSpinner.setForeground(TEXT_COLOR);
-        
-        panel.add(autoLockLabel);
-        panel.add(autoLockSpinner);
+    private void changeCipher() {
+        if (manager == null || currentFileName == null) {
+            return;
+        }
+        CryptoUtils.Aead current = manager.getCipher();
+        CryptoUtils.Aead[] ciphers = CryptoUtils.Aead.values();
+        String[] names = new String[ciphers.length];
+        for (int i = 0; i < ciphers.length; i++) {
+            names[i] = cipherName(ciphers[i]) + (ciphers[i] == CryptoUtils.Aead.fastest() ? " (fastest here)" : "");
+        }
         
-        // Update the UI components to match theme
         UIManager.put("OptionPane.background", BACKGROUND_COLOR);
         UIManager.put("Panel.background", BACKGROUND_COLOR);
         UIManager.put("OptionPane.messageForeground", TEXT_COLOR);
         
-        int result = JOptionPane.showConfirmDialog(this, panel, 
-                "Settings", JOptionPane.OK_CANCEL_OPTION);
+        Object choice = JOptionPane.showInputDialog(this, 
+                activeVault.getName() + " is encrypted with " + cipherName(current) + ".\nRe-encrypt it with:", 
+                "Change Cipher", JOptionPane.PLAIN_MESSAGE, null, names, names[current.ordinal()]);
+        if (choice == null) {
+            return;
+        }
+        CryptoUtils.Aead target = ciphers[Arrays.asList(names).indexOf(choice)];
+        if (target == current) {
+            return;
+        }
         
-        if (result == JOptionPane.OK_OPTION) {
-            autoLockMinutes = (Integer) autoLockSpinner.getValue();
-            autoLockTimer.setInitialDelay(autoLockMinutes * 60 * 1000);
+        try {
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            manager.changeCipher(currentFileName, target);
+            backupVault(currentFileName);
+            setStatus(activeVault.getName() + " is now encrypted with " + cipherName(target));
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Error changing the cipher: " + e.getMessage(), 
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+    
+    private void importCsv() {
+        if (manager == null) {
+            return;
+        }
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Import Passwords (Chrome, Firefox, Bitwarden, KeePass CSV)");
+        fileChooser.setFileFilter(new FileNameExtensionFilter("CSV Export or LockBox Archive (*.csv, *."
+                + VaultExporter.ARCHIVE_EXTENSION + ")", "csv", VaultExporter.ARCHIVE_EXTENSION));
+        
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        File file = fileChooser.getSelectedFile();
+        boolean archive = VaultExporter.isArchive(file.toPath());
+        char[] archivePassword = null;
+        if (archive) {
+            JPasswordField archivePassField = new JPasswordField(20);
+            int result = JOptionPane.showConfirmDialog(this, archivePassField,
+                    "Archive Password", JOptionPane.OK_CANCEL_OPTION);
+            if (result != JOptionPane.OK_OPTION) {
+                return;
+            }
+            archivePassword = archivePassField.getPassword();
+        }
+        
+        CsvImporter importer = new CsvImporter(manager);
+        try {
+            // Dry run first so the user sees what would be imported
+            CsvImporter.ImportResult preview = archive
+                    ? importer.importArchive(file.toPath(), archivePassword, true)
+                    : importer.importFile(file.toPath(), true);
             
-            if (manager != null) {
-                resetAutoLockTimer();
+            StringBuilder message = new StringBuilder("<html>");
+            message.append(preview.getImported()).append(" new entries will be imported.<br>");
+            message.append(preview.getDuplicates()).append(" duplicates and ");
+            message.append(preview.getSkipped()).append(" incomplete rows will be skipped.<br><br>");
+            for (Account account : preview.getPreview()) {
+                message.append("<b>").append(account.getWebsite()).append("</b> ")
+                       .append(account.getUsername()).append("<br>");
             }
+            if (preview.getImported() > preview.getPreview().size()) {
+                message.append("...<br>");
+            }
+            message.append("</html>");
             
-            setStatus("Settings updated");
+            UIManager.put("OptionPane.background", BACKGROUND_COLOR);
+            UIManager.put("Panel.background", BACKGROUND_COLOR);
+            UIManager.put("OptionPane.messageForeground", TEXT_COLOR);
+            
+            int result = JOptionPane.showConfirmDialog(this, message.toString(),
+                    "Import " + file.getName(), JOptionPane.OK_CANCEL_OPTION);
+            if (result != JOptionPane.OK_OPTION || preview.getImported() == 0) {
+                return;
+            }
+            
+            CsvImporter.ImportResult imported = archive
+                    ? importer.importArchive(file.toPath(), archivePassword, false)
+                    : importer.importFile(file.toPath(), false);
+            refreshAccountList();
+            setStatus("Imported " + imported.getImported() + " entries from " + file.getName());
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Error importing file: " + e.getMessage(), 
+                    "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
     
-    private void showAbout() {
-        JPanel panel = new JPanel();
-        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
-        panel.setBackground(BACKGROUND_COLOR);
-        
-        JLabel logoLabel = new JLabel(createLockIcon(64));
-        logoLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+    private void exportDatabase() {
+        if (manager == null) {
+            return;
+        }
         
-        JLabel titleLabel = new JLabel("LockBox Password Manager");
-        titleLabel.setFont(TITLE_FONT);
-        titleLabel.setForeground(PRIMARY_COLOR);
-        titleLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        String[] formats = {"Encrypted Archive", "CSV", "JSON"};
+        int choice = JOptionPane.showOptionDialog(this,
+                "Choose an export format. CSV and JSON are written unencrypted.",
+                "Export Database", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE,
+                null, formats, formats[0]);
+        if (choice < 0) {
+            return;
+        }
+        String extension = choice == 0 ? VaultExporter.ARCHIVE_EXTENSION : choice == 1 ? "csv" : "json";
         
-        JLabel versionLabel = new JLabel("Version 1.0");
-        versionLabel.setFont(NORMAL_FONT);
-        versionLabel.setForeground(TEXT_COLOR);
+        char[] archivePassword = null;
+        if (choice == 0) {
+            JPasswordField passField = new JPasswordField(20);
+            JPasswordField confirmField = new JPasswordField(20);
+            
+            JPanel panel = new JPanel(new GridLayout(0, 1));
+            panel.setBackground(BACKGROUND_COLOR);
+            JLabel passLabel = new JLabel("Archive password:");
+            passLabel.setForeground(TEXT_COLOR);
+            JLabel confirmLabel = new JLabel("Confirm password:");
+            confirmLabel.setForeground(TEXT_COLOR);
+            panel.add(passLabel);
+            panel.add(passField);
+            panel.add(confirmLabel);
+            panel.add(confirmField);
+            
+            if (JOptionPane.showConfirmDialog(this, panel, "Protect Archive",
+                    JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            archivePassword = passField.getPassword();
+            if (archivePassword.length == 0 || !Arrays.equals(archivePassword, confirmField.getPassword())) {
+                JOptionPane.showMessageDialog(this, 
+                        "Passwords are empty or do not match.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Export Database");
+        fileChooser.setFileFilter(new FileNameExtensionFilter(formats[choice] + " (*." + extension + ")", extension));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        String filePath = fileChooser.getSelectedFile().getAbsolutePath();
+        if (!filePath.toLowerCase().endsWith("." + extension)) {
+            filePath += "." + extension;
+        }
+        
+        try {
+            VaultExporter exporter = new VaultExporter(manager);
+            java.nio.file.Path target = new File(filePath).toPath();
+            int count;
+            if (choice == 0) {
+                count = exporter.exportArchive(target, archivePassword);
+                Arrays.fill(archivePassword, '\0');
+            } else if (choice == 1) {
+                count = exporter.exportCsv(target);
+            } else {
+                count = exporter.exportJson(target);
+            }
+            setStatus("Exported " + count + " entries to " + new File(filePath).getName());
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Error exporting database: " + e.getMessage(), 
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private void mergeVault() {
+        if (manager == null) {
+            return;
+        }
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Merge Changes From Another Copy");
+        fileChooser.setFileFilter(new FileNameExtensionFilter("LockBox Database (*." + FILE_EXTENSION + ")", FILE_EXTENSION));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File remoteFile = fileChooser.getSelectedFile();
+        
+        // The base is the version both copies started from, e.g. the last synced file
+        int withBase = JOptionPane.showConfirmDialog(this,
+                "Do you have the common base version both copies started from?\n" +
+                "With it, changes made on only one side are merged automatically.\n" +
+                "Without it, every entry that differs has to be resolved by hand.",
+                "Merge Vault", JOptionPane.YES_NO_CANCEL_OPTION);
+        if (withBase == JOptionPane.CANCEL_OPTION || withBase == JOptionPane.CLOSED_OPTION) {
+            return;
+        }
+        File baseFile = null;
+        if (withBase == JOptionPane.YES_OPTION) {
+            fileChooser.setDialogTitle("Select the Common Base Version");
+            if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            baseFile = fileChooser.getSelectedFile();
+        }
+        
+        try {
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            List<Account> remote = readOtherVault(remoteFile);
+            List<Account> base = baseFile != null ? readOtherVault(baseFile) : null;
+            if (remote == null || (baseFile != null && base == null)) {
+                return;
+            }
+            
+            VaultMerger.Result result = VaultMerger.merge(base, manager.getAccounts(), remote);
+            setCursor(Cursor.getDefaultCursor());
+            if (!result.getConflicts().isEmpty() && !resolveConflicts(result.getConflicts())) {
+                setStatus("Merge cancelled");
+                return;
+            }
+            
+            manager.replaceAccounts(result.resolve());
+            refreshAccountList();
+            setStatus("Merged " + remoteFile.getName() + ": " + result.getRemoteChanges() + " changes taken, "
+                    + result.getConflicts().size() + " conflicts resolved. Save to keep the result.");
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Error merging vault: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+    
+    // Reads another vault file, asking for its password if it is not the
+    // current one; returns null if the user cancels
+    private List<Account> readOtherVault(File file) throws Exception {
+        try {
+            return manager.readAccounts(file.getAbsolutePath());
+        } catch (Exception e) {
+            // Different master password, or really unreadable
+        }
+        JPasswordField passField = new JPasswordField(20);
+        int option = JOptionPane.showConfirmDialog(this, passField,
+                "Master Password for " + file.getName(), JOptionPane.OK_CANCEL_OPTION);
+        if (option != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        char[] password = passField.getPassword();
+        passField.setText("");
+        PasswordManager other = new PasswordManager(password);
+        Arrays.fill(password, '\0');
+        try {
+            return other.readAccounts(file.getAbsolutePath());
+        } finally {
+            // The accounts are merged into this vault, only the other key goes
+            other.destroyKey();
+        }
+    }
+    
+    private void watchVault(String fileName) {
+        if (vaultWatcher == null) {
+            return;
+        }
+        try {
+            vaultWatcher.watch(fileName);
+        } catch (IOException e) {
+            setStatus("Cannot watch " + new File(fileName).getName() + " for changes: " + e.getMessage());
+        }
+    }
+    
+    private void unwatchVault(String fileName) {
+        if (vaultWatcher != null && fileName != null) {
+            vaultWatcher.unwatch(fileName);
+        }
+    }
+    
+    // Another program wrote an open vault. Without unsaved edits only the
+    // changed entries are reloaded; with them, the change can be merged in
+    // using the version last loaded or saved as the common base.
+    private void vaultChangedOnDisk(String fileName) {
+        Workspace.Vault vault = workspace.find(fileName);
+        if (vault == null) {
+            return;
+        }
+        PasswordManager target = vault.getManager();
+        // Our own saves match the fingerprint taken after writing
+        if (!target.hasChangedOnDisk(vault.getFileName())) {
+            return;
+        }
+        if (handlingExternalChange) {
+            // A dialog for an earlier change is open; look again once it is done
+            SwingUtilities.invokeLater(() -> vaultChangedOnDisk(fileName));
+            return;
+        }
+        handlingExternalChange = true;
+        try {
+            if (!target.isDirty()) {
+                PasswordManager.Reload reload = target.reloadChanged(vault.getFileName());
+                if (!reload.isEmpty()) {
+                    applyReload(vault, reload);
+                }
+                setStatus("Reloaded " + vault.getName() + " from disk: " + reload.getAdded().size() + " added, "
+                        + reload.getChanged().size() + " changed, " + reload.getRemoved().size() + " removed");
+                return;
+            }
+            
+            int choice = JOptionPane.showConfirmDialog(this,
+                    vault.getName() + " was changed by another program while it has unsaved changes here.\n" +
+                    "Merge the changes from disk into this vault?\n" +
+                    "If not, saving will overwrite them.",
+                    "Vault Changed on Disk", JOptionPane.YES_NO_OPTION);
+            if (choice != JOptionPane.YES_OPTION) {
+                target.ignoreDiskVersion(vault.getFileName());
+                setStatus(vault.getName() + " changed on disk, keeping the version open here");
+                return;
+            }
+            
+            List<Account> base = target.getSyncedAccounts();
+            List<Account> remote = target.adoptDiskVersion(vault.getFileName());
+            VaultMerger.Result result = VaultMerger.merge(base, target.getAccounts(), remote);
+            if (!result.getConflicts().isEmpty() && !resolveConflicts(result.getConflicts())) {
+                setStatus("Merge cancelled, saving will overwrite the changes on disk");
+                return;
+            }
+            target.replaceAccounts(result.resolve());
+            if (target == manager || isMergedView()) {
+                refreshAccountList();
+            }
+            setStatus("Merged changes to " + vault.getName() + ": " + result.getRemoteChanges() + " taken, "
+                    + result.getConflicts().size() + " conflicts resolved. Save to keep the result.");
+        } catch (Exception e) {
+            // Often a file still being written; the next change event tries again
+            setStatus("Could not reload " + vault.getName() + ": " + e.getMessage());
+        } finally {
+            handlingExternalChange = false;
+        }
+    }
+    
+    // Swaps reloaded entries into the list in place so the selection and the
+    // scroll position survive; filtered and merged views are simply rebuilt
+    private void applyReload(Workspace.Vault vault, PasswordManager.Reload reload) {
+        if (isMergedView() || !searchField.getText().isEmpty() || !tagFilterField.getText().trim().isEmpty()) {
+            refreshAccountList();
+            return;
+        }
+        if (vault != activeVault) {
+            return;
+        }
+        Account selected = accountList.getSelectedValue();
+        for (Map.Entry<Account, Account> entry : reload.getChanged().entrySet()) {
+            int index = accountListModel.indexOf(entry.getKey());
+            if (index >= 0) {
+                accountListModel.set(index, entry.getValue());
+            }
+        }
+        for (Account account : reload.getRemoved()) {
+            accountListModel.removeElement(account);
+        }
+        for (Account account : reload.getAdded()) {
+            accountListModel.addElement(account);
+        }
+        if (selected != null && reload.getChanged().containsKey(selected)) {
+            displaySelectedAccount();
+        } else if (accountListModel.isEmpty()) {
+            createEmptyDetailsState();
+        }
+    }
+    
+    // Keeps a version of the file just saved, on the backup thread so the
+    // save is not held up; only failures are reported
+    private void backupVault(String fileName) {
+        if (!backupsEnabled) {
+            return;
+        }
+        BackupStore.Retention retention = new BackupStore.Retention(backupHourly, backupDaily, backupWeekly);
+        new BackupStore(fileName).backupInBackground(retention).whenComplete((version, error) -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                SwingUtilities.invokeLater(() -> setStatus("Backup of " + new File(fileName).getName()
+                        + " failed: " + cause.getMessage()));
+            }
+        });
+    }
+    
+    private void showBackups() {
+        if (currentFileName == null) {
+            return;
+        }
+        BackupStore store = new BackupStore(currentFileName);
+        List<BackupStore.Version> versions;
+        try {
+            versions = store.listVersions();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Error reading backups: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (versions.isEmpty()) {
+            JOptionPane.showMessageDialog(this, 
+                    "No backups of this vault yet. A version is kept every time it is saved.", 
+                    "Backups", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
+        JList<BackupStore.Version> versionList = new JList<>(versions.toArray(new BackupStore.Version[0]));
+        versionList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        versionList.setSelectedIndex(0);
+        versionList.setBackground(CARD_COLOR);
+        versionList.setForeground(TEXT_COLOR);
+        versionList.setFont(NORMAL_FONT);
+        versionList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                BackupStore.Version version = (BackupStore.Version) value;
+                String text = format.format(new Date(version.getCreated())) + "    " + formatSize(version.getSize());
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBackground(BACKGROUND_COLOR);
+        JScrollPane scrollPane = new JScrollPane(versionList);
+        scrollPane.setPreferredSize(new Dimension(420, 260));
+        panel.add(scrollPane, BorderLayout.CENTER);
+        
+        String[] options = {"Restore As...", "Verify All", "Close"};
+        int choice = JOptionPane.showOptionDialog(this, panel, 
+                "Backups - " + activeVault.getName(), 
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[2]);
+        BackupStore.Version selected = versionList.getSelectedValue();
+        if (choice < 0 || choice == 2) {
+            return;
+        }
+        
+        try {
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            if (choice == 1) {
+                int damaged = 0;
+                StringBuilder report = new StringBuilder();
+                for (BackupStore.Version version : versions) {
+                    List<String> problems = store.verify(version);
+                    if (!problems.isEmpty()) {
+                        damaged++;
+                        report.append(format.format(new Date(version.getCreated()))).append(": ")
+                                .append(String.join(", ", problems)).append('\n');
+                    }
+                }
+                setCursor(Cursor.getDefaultCursor());
+                if (damaged == 0) {
+                    JOptionPane.showMessageDialog(this, "All " + versions.size() + " backups are intact.",
+                            "Verify Backups", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, damaged + " of " + versions.size() + " backups are damaged:\n"
+                            + report, "Verify Backups", JOptionPane.ERROR_MESSAGE);
+                }
+                return;
+            }
+            if (selected == null) {
+                return;
+            }
+            
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(selected.getCreated()));
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Restore Backup As");
+            fileChooser.setFileFilter(new FileNameExtensionFilter("LockBox Database (*." + FILE_EXTENSION + ")", FILE_EXTENSION));
+            fileChooser.setSelectedFile(new File(new File(currentFileName).getParentFile(),
+                    activeVault.getName() + "-" + stamp + "." + FILE_EXTENSION));
+            setCursor(Cursor.getDefaultCursor());
+            if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File target = fileChooser.getSelectedFile();
+            if (target.exists() && JOptionPane.showConfirmDialog(this, "File already exists. Overwrite?",
+                    "Confirm Overwrite", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                return;
+            }
+            
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+            store.restore(selected, target.toPath());
+            setCursor(Cursor.getDefaultCursor());
+            // Restoring over an open vault is picked up as a change on disk
+            if (workspace.find(target.getAbsolutePath()) == null && JOptionPane.showConfirmDialog(this,
+                    "Backup restored to " + target.getName() + ". Open it now?",
+                    "Restore Backup", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                openDatabase(target.getAbsolutePath());
+            }
+            setStatus("Backup restored to " + target.getName());
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Error restoring backup: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+    
+    // Side-by-side view of each conflict; returns false if the merge is cancelled
+    private boolean resolveConflicts(List<VaultMerger.Conflict> conflicts) {
+        JPanel rows = new JPanel(new GridBagLayout());
+        rows.setBackground(BACKGROUND_COLOR);
+        GridBagConstraints c = new GridBagConstraints();
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.insets = new Insets(4, 4, 4, 4);
+        c.weightx = 0.5;
+        
+        JLabel localHeader = new JLabel("This vault");
+        localHeader.setFont(NORMAL_FONT);
+        localHeader.setForeground(PRIMARY_COLOR);
+        JLabel remoteHeader = new JLabel("Other copy");
+        remoteHeader.setFont(NORMAL_FONT);
+        remoteHeader.setForeground(PRIMARY_COLOR);
+        c.gridy = 0;
+        c.gridx = 0;
+        rows.add(localHeader, c);
+        c.gridx = 1;
+        rows.add(remoteHeader, c);
+        
+        List<JRadioButton> localChoices = new ArrayList<>();
+        List<JRadioButton> remoteChoices = new ArrayList<>();
+        for (VaultMerger.Conflict conflict : conflicts) {
+            Account local = conflict.getLocal();
+            Account remote = conflict.getRemote();
+            JRadioButton localButton = new JRadioButton(describeVersion(local, remote));
+            JRadioButton remoteButton = new JRadioButton(describeVersion(remote, local));
+            for (JRadioButton button : new JRadioButton[] {localButton, remoteButton}) {
+                button.setFont(SMALL_FONT);
+                button.setBackground(CARD_COLOR);
+                button.setForeground(TEXT_COLOR);
+                button.setVerticalTextPosition(SwingConstants.TOP);
+            }
+            ButtonGroup group = new ButtonGroup();
+            group.add(localButton);
+            group.add(remoteButton);
+            (conflict.getResolution() == local ? localButton : remoteButton).setSelected(true);
+            localChoices.add(localButton);
+            remoteChoices.add(remoteButton);
+            
+            c.gridy++;
+            c.gridx = 0;
+            rows.add(localButton, c);
+            c.gridx = 1;
+            rows.add(remoteButton, c);
+        }
+        
+        JPanel bulkPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        bulkPanel.setBackground(BACKGROUND_COLOR);
+        JButton allLocal = new JButton("Keep all from this vault");
+        allLocal.addActionListener(e -> localChoices.forEach(b -> b.setSelected(true)));
+        JButton allRemote = new JButton("Keep all from other copy");
+        allRemote.addActionListener(e -> remoteChoices.forEach(b -> b.setSelected(true)));
+        bulkPanel.add(allLocal);
+        bulkPanel.add(allRemote);
+        
+        JScrollPane scrollPane = new JScrollPane(rows);
+        scrollPane.setPreferredSize(new Dimension(720, 420));
+        scrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        JPanel panel = new JPanel(new BorderLayout(0, 8));
+        panel.setBackground(BACKGROUND_COLOR);
+        JLabel intro = new JLabel(conflicts.size() + " entries were changed in both copies. Choose the version to keep.");
+        intro.setForeground(TEXT_COLOR);
+        panel.add(intro, BorderLayout.NORTH);
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(bulkPanel, BorderLayout.SOUTH);
+        
+        int option = JOptionPane.showConfirmDialog(this, panel, "Resolve Merge Conflicts",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (option != JOptionPane.OK_OPTION) {
+            return false;
+        }
+        for (int i = 0; i < conflicts.size(); i++) {
+            if (localChoices.get(i).isSelected()) {
+                conflicts.get(i).resolveLocal();
+            } else {
+                conflicts.get(i).resolveRemote();
+            }
+        }
+        return true;
+    }
+    
+    // HTML summary of one side of a conflict, marking what differs from the other
+    private String describeVersion(Account account, Account other) {
+        if (account == null) {
+            return "<html><i>Deleted</i></html>";
+        }
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        StringBuilder html = new StringBuilder("<html><b>").append(escapeHtml(account.getWebsite())).append("</b><br>");
+        html.append(escapeHtml(account.getUsername())).append("<br>");
+        html.append("Password: \u2022\u2022\u2022\u2022\u2022\u2022");
+        if (other != null && !other.samePassword(account)) {
+            html.append(" <i>(differs)</i>");
+        }
+        html.append("<br>");
+        if (!account.getTags().isEmpty()) {
+            html.append("Tags: ").append(escapeHtml(String.join(", ", account.getTags()))).append("<br>");
+        }
+        if (!account.getNotes().isEmpty()) {
+            String notes = account.getNotes();
+            html.append("Notes: ").append(escapeHtml(notes.length() > 60 ? notes.substring(0, 60) + "\u2026" : notes));
+            html.append("<br>");
+        }
+        html.append("Modified ").append(account.getModified() > 0
+                ? format.format(new Date(account.getModified())) : "unknown");
+        return html.append("</html>").toString();
+    }
+    
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+    
+    private void showSettings() {
+        JPanel panel = new JPanel(new GridLayout(0, 2, 10, 10));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.setBackground(BACKGROUND_COLOR);
+        
+        JLabel autoLockLabel = new JLabel("Auto-lock after (minutes):");
+        autoLockLabel.setForeground(TEXT_COLOR);
+        
+        SpinnerNumberModel autoLockModel = new SpinnerNumberModel(autoLockMinutes, 1, 60, 1);
+        JSpinner autoLockSpinner = new JSpinner(autoLockModel);
+        autoLockSpinner.setBackground(CARD_COLOR);
+        autoLockSpinner.setForeground(TEXT_COLOR);
+        
+        panel.add(autoLockLabel);
+        panel.add(autoLockSpinner);
+        
+        JLabel clipboardLabel = new JLabel("Clear clipboard after (seconds, 0 = never):");
+        clipboardLabel.setForeground(TEXT_COLOR);
+        JSpinner clipboardSpinner = new JSpinner(new SpinnerNumberModel(clipboardClearSeconds, 0, 600, 5));
+        clipboardSpinner.setBackground(CARD_COLOR);
+        clipboardSpinner.setForeground(TEXT_COLOR);
+        panel.add(clipboardLabel);
+        panel.add(clipboardSpinner);
+        
+        JLabel historyEntriesLabel = new JLabel("Password history entries:");
+        historyEntriesLabel.setForeground(TEXT_COLOR);
+        JSpinner historyEntriesSpinner = new JSpinner(new SpinnerNumberModel(historyMaxEntries, 0, 100, 1));
+        historyEntriesSpinner.setBackground(CARD_COLOR);
+        historyEntriesSpinner.setForeground(TEXT_COLOR);
+        panel.add(historyEntriesLabel);
+        panel.add(historyEntriesSpinner);
+        
+        JLabel historyAgeLabel = new JLabel("Keep history for (days, 0 = forever):");
+        historyAgeLabel.setForeground(TEXT_COLOR);
+        JSpinner historyAgeSpinner = new JSpinner(new SpinnerNumberModel(historyMaxAgeDays, 0, 3650, 1));
+        historyAgeSpinner.setBackground(CARD_COLOR);
+        historyAgeSpinner.setForeground(TEXT_COLOR);
+        panel.add(historyAgeLabel);
+        panel.add(historyAgeSpinner);
+        
+        JLabel compressLabel = new JLabel("Compress vault files:");
+        compressLabel.setForeground(TEXT_COLOR);
+        JCheckBox compressBox = new JCheckBox();
+        compressBox.setSelected(compressVaults);
+        compressBox.setBackground(BACKGROUND_COLOR);
+        panel.add(compressLabel);
+        panel.add(compressBox);
+        
+        JLabel autoSaveLabel = new JLabel("Save changes automatically:");
+        autoSaveLabel.setForeground(TEXT_COLOR);
+        JCheckBox autoSaveBox = new JCheckBox();
+        autoSaveBox.setSelected(autoSave);
+        autoSaveBox.setBackground(BACKGROUND_COLOR);
+        panel.add(autoSaveLabel);
+        panel.add(autoSaveBox);
+        
+        JLabel autoSaveDelayLabel = new JLabel("Auto-save after (seconds idle):");
+        autoSaveDelayLabel.setForeground(TEXT_COLOR);
+        JSpinner autoSaveSpinner = new JSpinner(new SpinnerNumberModel(autoSaveSeconds, 1, 600, 1));
+        autoSaveSpinner.setBackground(CARD_COLOR);
+        autoSaveSpinner.setForeground(TEXT_COLOR);
+        autoSaveSpinner.setEnabled(autoSave);
+        autoSaveBox.addActionListener(e -> autoSaveSpinner.setEnabled(autoSaveBox.isSelected()));
+        panel.add(autoSaveDelayLabel);
+        panel.add(autoSaveSpinner);
+        
+        JLabel cipherLabel = new JLabel("Cipher for new vaults:");
+        cipherLabel.setForeground(TEXT_COLOR);
+        String[] cipherIds = {"auto", CryptoUtils.Aead.AES_GCM.getId(), CryptoUtils.Aead.CHACHA20_POLY1305.getId()};
+        JComboBox<String> cipherBox = new JComboBox<>(new String[] {
+                "Automatic (" + cipherName(CryptoUtils.Aead.fastest()) + ")",
+                cipherName(CryptoUtils.Aead.AES_GCM), cipherName(CryptoUtils.Aead.CHACHA20_POLY1305)});
+        cipherBox.setSelectedIndex(Math.max(0, Arrays.asList(cipherIds).indexOf(vaultCipher)));
+        cipherBox.setBackground(CARD_COLOR);
+        cipherBox.setForeground(TEXT_COLOR);
+        panel.add(cipherLabel);
+        panel.add(cipherBox);
+        
+        JLabel pagedLabel = new JLabel("Page-based storage for new vaults:");
+        pagedLabel.setForeground(TEXT_COLOR);
+        JCheckBox pagedBox = new JCheckBox();
+        pagedBox.setSelected(pagedVaults);
+        pagedBox.setBackground(BACKGROUND_COLOR);
+        pagedBox.setToolTipText("Saves rewrite only the parts of the file that changed; suited to large vaults");
+        panel.add(pagedLabel);
+        panel.add(pagedBox);
+        
+        JLabel backupLabel = new JLabel("Back up every save:");
+        backupLabel.setForeground(TEXT_COLOR);
+        JCheckBox backupBox = new JCheckBox();
+        backupBox.setSelected(backupsEnabled);
+        backupBox.setBackground(BACKGROUND_COLOR);
+        panel.add(backupLabel);
+        panel.add(backupBox);
+        
+        JLabel retentionLabel = new JLabel("Keep backups (hourly / daily / weekly):");
+        retentionLabel.setForeground(TEXT_COLOR);
+        JSpinner hourlySpinner = new JSpinner(new SpinnerNumberModel(backupHourly, 0, 168, 1));
+        JSpinner dailySpinner = new JSpinner(new SpinnerNumberModel(backupDaily, 0, 365, 1));
+        JSpinner weeklySpinner = new JSpinner(new SpinnerNumberModel(backupWeekly, 0, 520, 1));
+        JPanel retentionPanel = new JPanel(new GridLayout(1, 3, 5, 0));
+        retentionPanel.setBackground(BACKGROUND_COLOR);
+        for (JSpinner spinner : new JSpinner[] {hourlySpinner, dailySpinner, weeklySpinner}) {
+            spinner.setBackground(CARD_COLOR);
+            spinner.setForeground(TEXT_COLOR);
+            retentionPanel.add(spinner);
+        }
+        panel.add(retentionLabel);
+        panel.add(retentionPanel);
+        
+        // Update the UI components to match theme
+        UIManager.put("OptionPane.background", BACKGROUND_COLOR);
+        UIManager.put("Panel.background", BACKGROUND_COLOR);
+        UIManager.put("OptionPane.messageForeground", TEXT_COLOR);
+        
+        int result = JOptionPane.showConfirmDialog(this, panel, 
+                "Settings", JOptionPane.OK_CANCEL_OPTION);
+        
+        if (result == JOptionPane.OK_OPTION) {
+            autoLockMinutes = (Integer) autoLockSpinner.getValue();
+            clipboardClearSeconds = (Integer) clipboardSpinner.getValue();
+            prefs.putInt("clipboardClearSeconds", clipboardClearSeconds);
+            clipboardCleaner.setDelay(clipboardClearSeconds * 1000L);
+            
+            historyMaxEntries = (Integer) historyEntriesSpinner.getValue();
+            historyMaxAgeDays = (Integer) historyAgeSpinner.getValue();
+            prefs.putInt("historyMaxEntries", historyMaxEntries);
+            prefs.putInt("historyMaxAgeDays", historyMaxAgeDays);
+            compressVaults = compressBox.isSelected();
+            prefs.putBoolean("compressVaults", compressVaults);
+            vaultCipher = cipherIds[cipherBox.getSelectedIndex()];
+            prefs.put("vaultCipher", vaultCipher);
+            pagedVaults = pagedBox.isSelected();
+            prefs.putBoolean("pagedVaults", pagedVaults);
+            autoSave = autoSaveBox.isSelected();
+            autoSaveSeconds = (Integer) autoSaveSpinner.getValue();
+            prefs.putBoolean("autoSave", autoSave);
+            prefs.putInt("autoSaveSeconds", autoSaveSeconds);
+            backupsEnabled = backupBox.isSelected();
+            backupHourly = (Integer) hourlySpinner.getValue();
+            backupDaily = (Integer) dailySpinner.getValue();
+            backupWeekly = (Integer) weeklySpinner.getValue();
+            prefs.putBoolean("backupsEnabled", backupsEnabled);
+            prefs.putInt("backupHourly", backupHourly);
+            prefs.putInt("backupDaily", backupDaily);
+            prefs.putInt("backupWeekly", backupWeekly);
+            for (Workspace.Vault vault : workspace.getVaults()) {
+                applyPreferences(vault.getManager(), vault.getFileName());
+            }
+            
+            setStatus("Settings updated");
+        }
+    }
+    
+    private void showAbout() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        panel.setBackground(BACKGROUND_COLOR);
+        
+        JLabel logoLabel = new JLabel(createLockIcon(64));
+        logoLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        
+        JLabel titleLabel = new JLabel("LockBox Password Manager");
+        titleLabel.setFont(TITLE_FONT);
+        titleLabel.setForeground(PRIMARY_COLOR);
+        titleLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        
+        JLabel versionLabel = new JLabel("Version 1.0");
+        versionLabel.setFont(NORMAL_FONT);
+        versionLabel.setForeground(TEXT_COLOR);
         versionLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
         
         JLabel descriptionLabel = new JLabel("<html><center>A secure password manager<br>for storing and organizing your credentials.</center></html>");
@@ -1382,14 +2705,32 @@ public class LockBox extends JFrame {
         }
         
         String searchText = searchField.getText().toLowerCase();
+        String tagFilter = tagFilterField.getText().trim();
         accountListModel.clear();
+        accountSources.clear();
         
-        for (Account account : manager.getAccounts()) {
-            if (searchText.isEmpty() || 
-                account.getWebsite().toLowerCase().contains(searchText) ||
-                account.getUsername().toLowerCase().contains(searchText)) {
-                accountListModel.addElement(account);
+        try {
+            if (isMergedView()) {
+                // Every open vault is searched in parallel, hits remember their vault
+                for (Workspace.Hit hit : workspace.search(searchText, tagFilter)) {
+                    accountSources.put(hit.getAccount(), hit.getVault());
+                    accountListModel.addElement(hit.getAccount());
+                }
+            } else {
+                // The tag index answers the filter, the list keeps its sort order
+                Set<Account> tagged = tagFilter.isEmpty() ? null : manager.selectByTags(tagFilter);
+                for (Account account : manager.getAccounts()) {
+                    if ((tagged == null || tagged.contains(account))
+                            && (searchText.isEmpty() || PasswordManager.matches(account, searchText))) {
+                        accountListModel.addElement(account);
+                    }
+                }
             }
+            tagFilterField.setForeground(TEXT_COLOR);
+        } catch (IllegalArgumentException e) {
+            // Usually a half-typed expression, keep the list empty until it parses
+            tagFilterField.setForeground(ACCENT_COLOR);
+            setStatus(e.getMessage());
         }
         
         if (accountListModel.isEmpty()) {
@@ -1406,13 +2747,36 @@ public class LockBox extends JFrame {
     private void displaySelectedAccount() {
         Account selectedAccount = accountList.getSelectedValue();
         
+        // In the merged view, edits go to the vault the entry came from
+        Workspace.Vault source = selectedAccount != null ? accountSources.get(selectedAccount) : null;
+        if (source != null) {
+            activeVault = source;
+            manager = source.getManager();
+            currentFileName = source.getFileName();
+        }
+        
         if (selectedAccount != null) {
             createAccountDetailsPanel();
             websiteField.setText(selectedAccount.getWebsite());
             usernameField.setText(selectedAccount.getUsername());
             passwordField.setText(selectedAccount.getPassword());
+            tagsField.setText(String.join(", ", selectedAccount.getTags()));
+            // Cold fields are decoded here, when the entry is actually opened
+            urlsArea.setText(String.join("\n", selectedAccount.getUrls()));
+            notesArea.setText(selectedAccount.getNotes());
+            StringBuilder customFields = new StringBuilder();
+            for (Map.Entry<String, String> field : selectedAccount.getCustomFields().entrySet()) {
+                customFields.append(field.getKey()).append(": ").append(field.getValue()).append('\n');
+            }
+            customFieldsArea.setText(customFields.toString());
+            totpField.setText(selectedAccount.getTotp());
+            for (Account.Attachment attachment : selectedAccount.getAttachments()) {
+                attachmentsModel.addElement(attachment);
+            }
+            timestampsLabel.setText(formatTimestamps(selectedAccount));
             showPasswordCheckBox.setSelected(false);
             togglePasswordVisibility();
+            showTotp(selectedAccount);
         } else {
             createEmptyDetailsState();
         }
@@ -1424,6 +2788,12 @@ public class LockBox extends JFrame {
         websiteField.setText("");
         usernameField.setText("");
         passwordField.setText("");
+        tagsField.setText("");
+        urlsArea.setText("");
+        notesArea.setText("");
+        customFieldsArea.setText("");
+        totpField.setText("");
+        showTotp(null);
         showPasswordCheckBox.setSelected(false);
         togglePasswordVisibility();
         websiteField.requestFocusInWindow();
@@ -1438,7 +2808,7 @@ public class LockBox extends JFrame {
                     "Confirm Delete", JOptionPane.YES_NO_OPTION);
             
             if (confirm == JOptionPane.YES_OPTION) {
-                manager.getAccounts().remove(selectedIndex);
+                manager.removeAccount(selectedAccount);
                 refreshAccountList();
                 setStatus("Account deleted");
             }
@@ -1452,20 +2822,69 @@ public class LockBox extends JFrame {
     private void updateAccount() {
         String website = websiteField.getText().trim();
         String username = usernameField.getText().trim();
-        String password = new String(passwordField.getPassword());
+        char[] password = passwordField.getPassword();
         
-        if (website.isEmpty() || username.isEmpty() || password.isEmpty()) {
+        if (website.isEmpty() || username.isEmpty() || password.length == 0) {
+            Arrays.fill(password, '\0');
             JOptionPane.showMessageDialog(this, 
                     "All fields are required", "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
         
-        int selectedIndex = accountList.getSelectedIndex();
-        Account account = new Account(website, username, password);
+        String totpSecret = totpField.getText().trim();
+        if (!totpSecret.isEmpty()) {
+            try {
+                new Totp(totpSecret);
+            } catch (Exception e) {
+                Arrays.fill(password, '\0');
+                JOptionPane.showMessageDialog(this, 
+                        "Invalid TOTP secret: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
         
-        if (selectedIndex != -1) {
+        Account selectedAccount = accountList.getSelectedValue();
+        Account.Builder builder = selectedAccount != null
+                ? selectedAccount.toBuilder().modified(System.currentTimeMillis())
+                : Account.builder();
+        
+        List<String> tags = new ArrayList<>();
+        for (String tag : tagsField.getText().split(",")) {
+            if (!tag.trim().isEmpty() && !tags.contains(tag.trim())) {
+                tags.add(tag.trim());
+            }
+        }
+        List<String> urls = new ArrayList<>();
+        for (String url : urlsArea.getText().split("\n")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        Map<String, String> customFields = new LinkedHashMap<>();
+        for (String line : customFieldsArea.getText().split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                customFields.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            } else if (!line.trim().isEmpty()) {
+                customFields.put(line.trim(), "");
+            }
+        }
+        
+        Account account = builder
+                .website(website)
+                .username(username)
+                .password(password)
+                .tags(tags)
+                .urls(urls)
+                .notes(notesArea.getText())
+                .customFields(customFields)
+                .totp(totpSecret)
+                .build();
+        Arrays.fill(password, '\0');
+        
+        if (selectedAccount != null) {
             // Update existing account
-            manager.getAccounts().set(selectedIndex, account);
+            manager.updateAccount(selectedAccount, account);
             setStatus("Account updated");
         } else {
             // Add new account
@@ -1486,20 +2905,19 @@ public class LockBox extends JFrame {
     
     private void generatePassword() {
         int length = (Integer) lengthSpinner.getValue();
-        String password = manager.generatePassword(length);
+        String password = PasswordManager.generatePassword(length);
         passwordField.setText(password);
         
         // Copy to clipboard
-        StringSelection selection = new StringSelection(password);
-        Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, null);
+        clipboardCleaner.copy(password);
         setStatus("Password generated and copied to clipboard");
     }
     
     private void copyUsername() {
         Account selectedAccount = accountList.getSelectedValue();
         if (selectedAccount != null) {
-            StringSelection selection = new StringSelection(selectedAccount.getUsername());
-            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, null);
+            clipboardCleaner.copy(selectedAccount.getUsername());
+            markUsed(selectedAccount);
             setStatus("Username copied to clipboard");
         }
     }
@@ -1507,12 +2925,257 @@ public class LockBox extends JFrame {
     private void copyPassword() {
         Account selectedAccount = accountList.getSelectedValue();
         if (selectedAccount != null) {
-            StringSelection selection = new StringSelection(selectedAccount.getPassword());
-            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, null);
+            clipboardCleaner.copy(selectedAccount.getPassword());
+            markUsed(selectedAccount);
             setStatus("Password copied to clipboard");
         }
     }
     
+    private void showPasswordHistory() {
+        Account selectedAccount = accountList.getSelectedValue();
+        if (selectedAccount == null) {
+            return;
+        }
+        List<Account.HistoryEntry> history = selectedAccount.getPasswordHistory();
+        if (history.isEmpty()) {
+            JOptionPane.showMessageDialog(this, 
+                    "No previous passwords are stored for this entry.", 
+                    "Password History", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        JCheckBox showBox = new JCheckBox("Show passwords");
+        showBox.setBackground(BACKGROUND_COLOR);
+        showBox.setForeground(TEXT_COLOR);
+        
+        JList<Account.HistoryEntry> historyList = new JList<>(history.toArray(new Account.HistoryEntry[0]));
+        historyList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        historyList.setSelectedIndex(0);
+        historyList.setBackground(CARD_COLOR);
+        historyList.setForeground(TEXT_COLOR);
+        historyList.setFont(NORMAL_FONT);
+        historyList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                Account.HistoryEntry entry = (Account.HistoryEntry) value;
+                String password = showBox.isSelected() ? entry.getPassword() : "\u2022\u2022\u2022\u2022\u2022\u2022\u2022\u2022";
+                String text = "Replaced " + format.format(new Date(entry.getChangedAt())) + "    " + password;
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        showBox.addActionListener(e -> historyList.repaint());
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBackground(BACKGROUND_COLOR);
+        JScrollPane scrollPane = new JScrollPane(historyList);
+        scrollPane.setPreferredSize(new Dimension(420, 200));
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(showBox, BorderLayout.SOUTH);
+        
+        String[] options = {"Copy", "Restore", "Close"};
+        int choice = JOptionPane.showOptionDialog(this, panel, 
+                "Password History - " + selectedAccount.getWebsite(), 
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[2]);
+        Account.HistoryEntry entry = historyList.getSelectedValue();
+        if (entry == null || choice < 0 || choice == 2) {
+            return;
+        }
+        
+        if (choice == 0) {
+            clipboardCleaner.copy(entry.getPassword());
+            setStatus("Previous password copied to clipboard");
+            return;
+        }
+        
+        int confirm = JOptionPane.showConfirmDialog(this, 
+                "Make this the current password again?\nThe current password is kept in the history.", 
+                "Restore Password", JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            return;
+        }
+        Account restored = selectedAccount.toBuilder()
+                .password(entry.getPassword())
+                .modified(System.currentTimeMillis())
+                .build();
+        applyEdit(selectedAccount, restored, "Password restored");
+    }
+    
+    // Stores an edit made outside the details form and keeps the entry selected
+    private void applyEdit(Account existing, Account replacement, String status) {
+        if (!manager.updateAccount(existing, replacement)) {
+            return;
+        }
+        int index = accountList.getSelectedIndex();
+        refreshAccountList();
+        if (index >= 0 && index < accountListModel.getSize()) {
+            accountList.setSelectedIndex(index);
+        }
+        setStatus(status);
+    }
+    
+    private void attachmentAction(String action) {
+        Account selectedAccount = accountList.getSelectedValue();
+        if (selectedAccount == null || currentFileName == null) {
+            setStatus("Save the entry before adding attachments");
+            return;
+        }
+        AttachmentStore store = new AttachmentStore(currentFileName);
+        Account.Attachment attachment = attachmentsList.getSelectedValue();
+        
+        try {
+            if (action.equals("Add...")) {
+                JFileChooser fileChooser = new JFileChooser();
+                fileChooser.setDialogTitle("Add Attachment");
+                if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+                // Content removed since the last save still has its file and key there
+                List<Account> known = new ArrayList<>(manager.getAccounts());
+                known.addAll(manager.getSyncedAccounts());
+                Account.Attachment added = store.add(fileChooser.getSelectedFile().toPath(), known);
+                List<Account.Attachment> attachments = new ArrayList<>(selectedAccount.getAttachments());
+                attachments.add(added);
+                applyEdit(selectedAccount, selectedAccount.toBuilder()
+                        .attachments(attachments)
+                        .modified(System.currentTimeMillis())
+                        .build(), "Attachment added: " + added.getName());
+                return;
+            }
+            
+            if (attachment == null) {
+                setStatus("Select an attachment first");
+                return;
+            }
+            
+            if (action.equals("Remove")) {
+                List<Account.Attachment> attachments = new ArrayList<>(selectedAccount.getAttachments());
+                attachments.remove(attachment);
+                applyEdit(selectedAccount, selectedAccount.toBuilder()
+                        .attachments(attachments)
+                        .modified(System.currentTimeMillis())
+                        .build(), "Attachment removed: " + attachment.getName());
+            } else if (action.equals("Save As...")) {
+                JFileChooser fileChooser = new JFileChooser();
+                fileChooser.setDialogTitle("Save Attachment");
+                fileChooser.setSelectedFile(new File(attachment.getName()));
+                if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+                store.save(attachment, fileChooser.getSelectedFile().toPath());
+                setStatus("Attachment saved: " + fileChooser.getSelectedFile().getName());
+            } else {
+                // Decrypted into a private temp file for the system viewer
+                setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+                String name = attachment.getName();
+                int dot = name.lastIndexOf('.');
+                File temp = File.createTempFile("lockbox-", dot > 0 ? name.substring(dot) : ".tmp");
+                temp.deleteOnExit();
+                store.save(attachment, temp.toPath());
+                Desktop.getDesktop().open(temp);
+                setStatus("Opened attachment: " + name);
+            }
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, 
+                    "Attachment error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+    
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+    
+    private void copyTotp() {
+        Account selectedAccount = accountList.getSelectedValue();
+        if (selectedAccount == null) {
+            return;
+        }
+        try {
+            Totp totp = manager.getTotp(selectedAccount);
+            if (totp == null) {
+                setStatus("No TOTP configured for this entry");
+                return;
+            }
+            clipboardCleaner.copy(totp.generate(System.currentTimeMillis()));
+            markUsed(selectedAccount);
+            setStatus("TOTP code copied to clipboard");
+        } catch (Exception e) {
+            setStatus("Invalid TOTP secret: " + e.getMessage());
+        }
+    }
+    
+    // Points the shared tick at the shown entry, or stops it if there is none
+    private void showTotp(Account account) {
+        displayedTotp = null;
+        displayedTotpWindow = -1;
+        if (account != null && manager != null) {
+            try {
+                displayedTotp = manager.getTotp(account);
+            } catch (Exception e) {
+                setStatus("Invalid TOTP secret: " + e.getMessage());
+            }
+        }
+        if (totpPanel != null) {
+            totpPanel.setVisible(displayedTotp != null);
+        }
+        updateTotpDisplay();
+    }
+    
+    private void updateTotpDisplay() {
+        if (displayedTotp == null) {
+            totpTimer.stop();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long window = displayedTotp.window(now);
+        if (window != displayedTotpWindow) {
+            displayedTotpWindow = window;
+            String code = displayedTotp.generate(now);
+            int half = code.length() / 2;
+            totpCodeLabel.setText(code.substring(0, half) + " " + code.substring(half));
+        }
+        totpCountdownLabel.setText(displayedTotp.secondsRemaining(now) + "s");
+        
+        // Next tick lands just after the coming second boundary
+        totpTimer.setInitialDelay((int) (1000 - now % 1000) + 5);
+        totpTimer.restart();
+    }
+    
+    // Records the last-used time, swapping the list entry in place so the
+    // selection and the details form stay as they are
+    private void markUsed(Account account) {
+        Account used = account.toBuilder().lastUsed(System.currentTimeMillis()).build();
+        if (!manager.updateAccount(account, used)) {
+            return;
+        }
+        int index = accountListModel.indexOf(account);
+        if (index >= 0) {
+            Workspace.Vault source = accountSources.remove(account);
+            if (source != null) {
+                accountSources.put(used, source);
+            }
+            accountListModel.set(index, used);
+        }
+        timestampsLabel.setText(formatTimestamps(used));
+    }
+    
+    private String formatTimestamps(Account account) {
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+        return "Created " + (account.getCreated() > 0 ? format.format(new Date(account.getCreated())) : "unknown")
+                + "  \u00b7  Modified " + (account.getModified() > 0 ? format.format(new Date(account.getModified())) : "unknown")
+                + "  \u00b7  Last used " + (account.getLastUsed() > 0 ? format.format(new Date(account.getLastUsed())) : "never");
+    }
+    
     private void togglePasswordVisibility() {
         if (showPasswordCheckBox.isSelected()) {
             passwordField.setEchoChar((char) 0);
@@ -1569,7 +3232,10 @@ public class LockBox extends JFrame {
             
             if (value instanceof Account) {
                 Account account = (Account) value;
-                label.setText("<html><b>" + account.getWebsite() + "</b><br>" +
+                Workspace.Vault source = accountSources.get(account);
+                String vaultTag = source == null ? "" :
+                        " <font size='2' color='#e91e63'>[" + source.getName() + "]</font>";
+                label.setText("<html><b>" + account.getWebsite() + "</b>" + vaultTag + "<br>" +
                              "<font size='2' color='#b4b4b4'>" + account.getUsername() + "</font></html>");
                 label.setBorder(BorderFactory.createEmptyBorder(5, 8, 5, 8));
                 
@@ -1584,6 +3250,13 @@ public class LockBox extends JFrame {
     }
     
     public static void main(String[] args) {
+        // Any arguments select the headless CLI; scripts should call LockBoxCli
+        // directly to skip loading this JFrame subclass as well
+        if (args.length > 0) {
+            LockBoxCli.main(args);
+            return;
+        }
+        
         try {
             // Use system look and feel as base
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
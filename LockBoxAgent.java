@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps one unlocked PasswordManager in memory and answers lookups over a Unix
+// domain socket, so repeated CLI calls skip key derivation and decryption.
+//
+// Wire format (all integers big-endian):
+//   request:  op:u8  argc:u8  { len:u16  utf8 }*
+//   response: status:u8  count:u16  { len:u16  utf8 }*
+// A connection may carry any number of request/response pairs.
+//
+// Lookups read an immutable snapshot of the entries without taking a lock or
+// touching the file; a VaultWatcher reloads the vault when another program
+// writes it and publishes a new snapshot.
+public class LockBoxAgent {
+    static final byte OP_PING = 0;
+    static final byte OP_GET = 1;
+    static final byte OP_SEARCH = 2;
+    static final byte OP_STOP = 4;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_AMBIGUOUS = 2;
+    static final byte STATUS_BAD_REQUEST = 3;
+    // The agent cannot answer for the vault (it changed in a way the agent
+    // cannot follow, or the agent is stopping); clients open it themselves
+    static final byte STATUS_UNAVAILABLE = 4;
+
+    private static final int MAX_FRAME = 64 * 1024;
+    // How often the vault is checked for changes when it cannot be watched
+    private static final long POLL_MILLIS = 1000;
+
+    private final PasswordManager manager;
+    private final String vaultFile;
+    private final Path socketPath;
+    private final long idleTimeoutMillis;
+    // null once the agent cannot answer for the vault any more
+    private volatile Snapshot snapshot;
+    private boolean stopped;
+    private final ExecutorService connections;
+    private final ScheduledExecutorService idleChecker;
+    private volatile long lastActivity;
+    private ServerSocketChannel server;
+    private VaultWatcher watcher;
+
+    public LockBoxAgent(PasswordManager manager, String vaultFile, Path socketPath, long idleTimeoutMillis) {
+        this.manager = manager;
+        this.vaultFile = vaultFile;
+        this.socketPath = socketPath;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.connections = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "lockbox-agent-conn");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.idleChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lockbox-agent-idle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.snapshot = new Snapshot(manager.getAccounts());
+    }
+
+    // The entries as of one read of the vault, with the map exact-match
+    // lookups go through
+    private static final class Snapshot {
+        final List<Account> accounts;
+        final Map<String, List<Account>> byWebsite = new HashMap<>();
+
+        Snapshot(List<Account> accounts) {
+            this.accounts = accounts;
+            for (Account account : accounts) {
+                byWebsite.computeIfAbsent(account.getWebsite().toLowerCase(), k -> new ArrayList<>()).add(account);
+            }
+        }
+    }
+
+    public static Path defaultSocketPath() {
+        String fromEnv = System.getenv("LOCKBOX_AGENT_SOCK");
+        if (fromEnv != null && !fromEnv.isEmpty()) {
+            return Paths.get(fromEnv);
+        }
+        return Paths.get(System.getProperty("user.home"), ".lockbox", "agent.sock");
+    }
+
+    // Blocks until the agent is stopped or idles out
+    public void serve() throws IOException {
+        Path dir = socketPath.toAbsolutePath().getParent();
+        if (dir != null) {
+            makePrivate(dir);
+        }
+        Files.deleteIfExists(socketPath);
+
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socketPath));
+        restrictPermissions(socketPath, "rw-------");
+
+        try {
+            watcher = new VaultWatcher(file -> refresh());
+            watcher.watch(vaultFile);
+        } catch (IOException e) {
+            idleChecker.scheduleWithFixedDelay(this::refresh, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        lastActivity = System.currentTimeMillis();
+        long checkEvery = Math.max(1000, Math.min(idleTimeoutMillis / 4, 30_000));
+        idleChecker.scheduleAtFixedRate(() -> {
+            if (System.currentTimeMillis() - lastActivity > idleTimeoutMillis) {
+                stop();
+            }
+        }, checkEvery, checkEvery, TimeUnit.MILLISECONDS);
+
+        try {
+            while (true) {
+                SocketChannel client = server.accept();
+                connections.execute(() -> handle(client));
+            }
+        } catch (ClosedChannelException e) {
+            // stop() closed the server socket
+        } finally {
+            stop();
+        }
+    }
+
+    // Also locks the manager, wiping the key and every decrypted entry
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        try {
+            if (server != null && server.isOpen()) {
+                server.close();
+            }
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            // Nothing useful left to do while shutting down
+        }
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // The watcher thread is a daemon and goes with the process
+            }
+        }
+        idleChecker.shutdownNow();
+        connections.shutdownNow();
+        snapshot = null;
+        manager.lock();
+    }
+
+    private void handle(SocketChannel channel) {
+        ByteBuffer in = ByteBuffer.allocate(MAX_FRAME);
+        ByteBuffer out = ByteBuffer.allocate(MAX_FRAME);
+        List<String> args = new ArrayList<>();
+        try (SocketChannel client = channel) {
+            while (true) {
+                in.clear();
+                if (!readFully(client, in, 2)) {
+                    return;
+                }
+                byte op = in.get(0);
+                int argc = in.get(1) & 0xFF;
+
+                args.clear();
+                for (int i = 0; i < argc; i++) {
+                    args.add(readString(client, in));
+                }
+
+                lastActivity = System.currentTimeMillis();
+                out.clear();
+                if (op == OP_STOP) {
+                    writeResponse(client, out, STATUS_OK, Collections.emptyList());
+                    stop();
+                    return;
+                }
+                Reply reply = answer(op, args);
+                writeResponse(client, out, reply.status, reply.fields);
+            }
+        } catch (IOException e) {
+            // Client went away mid-request
+        }
+    }
+
+    // What to send back for one request
+    private static final class Reply {
+        final byte status;
+        final List<String> fields;
+
+        Reply(byte status, List<String> fields) {
+            this.status = status;
+            this.fields = fields;
+        }
+    }
+
+    // Works on the snapshot current when the request came in. stop() wipes
+    // the passwords of the last snapshot, so a lookup racing it reads a
+    // wiped secret and gets STATUS_UNAVAILABLE.
+    private Reply answer(byte op, List<String> args) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return new Reply(STATUS_UNAVAILABLE, Collections.emptyList());
+        }
+        try {
+            return answer(current, op, args);
+        } catch (IllegalStateException e) {
+            return new Reply(STATUS_UNAVAILABLE, Collections.emptyList());
+        }
+    }
+
+    private Reply answer(Snapshot current, byte op, List<String> args) {
+        switch (op) {
+            case OP_PING:
+                // Lets clients check that the agent serves the vault they asked for
+                return new Reply(STATUS_OK, Collections.singletonList(vaultFile));
+            case OP_GET: {
+                if (args.isEmpty() || args.size() > 2) {
+                    return new Reply(STATUS_BAD_REQUEST, Collections.emptyList());
+                }
+                List<Account> candidates = current.byWebsite.getOrDefault(args.get(0).toLowerCase(), Collections.emptyList());
+                Account match = null;
+                int count = 0;
+                for (Account account : candidates) {
+                    if (args.size() == 1 || account.getUsername().equalsIgnoreCase(args.get(1))) {
+                        match = account;
+                        count++;
+                    }
+                }
+                if (count == 0) {
+                    return new Reply(STATUS_NOT_FOUND, Collections.emptyList());
+                }
+                if (count > 1) {
+                    List<String> usernames = new ArrayList<>();
+                    for (Account account : candidates) {
+                        usernames.add(account.getUsername());
+                    }
+                    return new Reply(STATUS_AMBIGUOUS, usernames);
+                }
+                return new Reply(STATUS_OK, Collections.singletonList(match.getPassword()));
+            }
+            case OP_SEARCH: {
+                if (args.size() != 1) {
+                    return new Reply(STATUS_BAD_REQUEST, Collections.emptyList());
+                }
+                List<String> fields = new ArrayList<>();
+                String term = args.get(0).toLowerCase();
+                for (Account account : current.accounts) {
+                    if (PasswordManager.matches(account, term)) {
+                        fields.add(account.getWebsite());
+                        fields.add(account.getUsername());
+                    }
+                }
+                return new Reply(fields.isEmpty() ? STATUS_NOT_FOUND : STATUS_OK, fields);
+            }
+            default:
+                return new Reply(STATUS_BAD_REQUEST, Collections.emptyList());
+        }
+    }
+
+    // Picks up entries another program wrote to the vault since the agent
+    // last read it; called from the watcher, never on a request. If the
+    // agent cannot read the vault any more, e.g. after the master password
+    // changed, it stops answering and clients unlock the vault themselves
+    // until a later change can be read again.
+    private synchronized void refresh() {
+        if (stopped || !manager.hasChangedOnDisk(vaultFile)) {
+            return;
+        }
+        try {
+            manager.reloadChanged(vaultFile);
+            snapshot = new Snapshot(manager.getAccounts());
+        } catch (Exception e) {
+            snapshot = null;
+        }
+    }
+
+    // The socket is bound inside a directory only the user can enter, so no
+    // one else can connect before its own permissions are set. A directory
+    // of someone else or one others can write to, like /tmp, is refused
+    // rather than locked down.
+    private static void makePrivate(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!Files.getOwner(dir).equals(user)) {
+            throw new IOException("The agent socket directory " + dir + " does not belong to " + user.getName());
+        }
+        try {
+            if (Files.getPosixFilePermissions(dir).contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException("The agent socket directory " + dir + " is writable by other users");
+            }
+        } catch (UnsupportedOperationException e) {
+            // Non-POSIX file system; the owner check is what applies there
+        }
+        restrictPermissions(dir, "rwx------");
+    }
+
+    private static void restrictPermissions(Path path, String permissions) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        } catch (UnsupportedOperationException e) {
+            // Non-POSIX file system, rely on the user's profile directory ACLs
+        }
+    }
+
+    // Frame helpers shared by the agent and the client
+
+    static boolean readFully(SocketChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new IOException("Connection closed mid-frame");
+            }
+        }
+        return true;
+    }
+
+    static String readString(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        if (!readFully(channel, buffer, 2)) {
+            throw new IOException("Connection closed mid-frame");
+        }
+        int length = buffer.getShort(0) & 0xFFFF;
+        if (!readFully(channel, buffer, length) && length > 0) {
+            throw new IOException("Connection closed mid-frame");
+        }
+        return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    static void putString(ByteBuffer buffer, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF || buffer.remaining() < bytes.length + 2) {
+            throw new IOException("Frame too large");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static void writeResponse(SocketChannel channel, ByteBuffer buffer, byte status,
+                                      List<String> fields) throws IOException {
+        buffer.clear();
+        buffer.put(status);
+        buffer.putShort((short) fields.size());
+        for (String field : fields) {
+            putString(buffer, field);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Thin client used by LockBoxCli when an agent is running
+    static class Client implements AutoCloseable {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME);
+        private byte lastStatus;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Returns null when no agent is listening on the given path
+        static Client connect(Path socketPath) {
+            if (!Files.exists(socketPath)) {
+                return null;
+            }
+            try {
+                return new Client(SocketChannel.open(UnixDomainSocketAddress.of(socketPath)));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        byte lastStatus() {
+            return lastStatus;
+        }
+
+        List<String> call(byte op, String... args) throws IOException {
+            buffer.clear();
+            buffer.put(op);
+            buffer.put((byte) args.length);
+            for (String arg : args) {
+                putString(buffer, arg);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            if (!readFully(channel, buffer, 3)) {
+                throw new IOException("Agent closed the connection");
+            }
+            lastStatus = buffer.get(0);
+            int count = buffer.getShort(1) & 0xFFFF;
+            List<String> fields = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                fields.add(readString(channel, buffer));
+            }
+            return fields;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
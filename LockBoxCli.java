@@ -0,0 +1,424 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+// Headless entry point. This class must not reference anything from java.awt or
+// javax.swing so that scripted calls skip the AWT startup cost entirely.
+public class LockBoxCli {
+    private static final String USAGE =
+            "Usage: java LockBoxCli [-f <vault.lbx>] <command> [args]\n" +
+            "\n" +
+            "Commands:\n" +
+            "  list                              List all entries (website<TAB>username)\n" +
+            "  search <term>                     List entries matching website or username\n" +
+            "  filter <tag-expression>           List entries by tags, e.g. \"work AND NOT old\"\n" +
+            "  get <website> [username]          Print the password of a single entry\n" +
+            "  add <website> <username> [pass]   Add an entry (password read from stdin if omitted)\n" +
+            "  import <file.csv> [--dry-run]     Import a Chrome/Firefox/Bitwarden/KeePass CSV export\n" +
+            "  export <file.csv|.json|.lbxa>     Export the vault (.lbxa is a password-protected archive)\n" +
+            "  generate [length]                 Print a random password\n" +
+            "  agent [idle-minutes]              Keep the vault unlocked and serve lookups over a socket\n" +
+            "  agent-stop                        Stop a running agent\n" +
+            "\n" +
+            "get and search are answered by a running agent for the same vault\n" +
+            "if one is listening on $LOCKBOX_AGENT_SOCK (default ~/.lockbox/agent.sock).\n" +
+            "The vault defaults to $LOCKBOX_VAULT. The master password is taken from\n" +
+            "$LOCKBOX_PASSWORD, the console, or the first line of stdin, in that order.";
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_NOT_FOUND = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final int EXIT_ERROR = 3;
+
+    private final PrintWriter out;
+    private final PrintWriter err;
+    private BufferedReader stdin;
+
+    LockBoxCli(PrintWriter out, PrintWriter err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        PrintWriter err = new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true);
+        int status = new LockBoxCli(out, err).run(args);
+        out.flush();
+        System.exit(status);
+    }
+
+    int run(String[] args) {
+        String vaultFile = System.getenv("LOCKBOX_VAULT");
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("-f") || args[i].equals("--file")) && i + 1 < args.length) {
+                vaultFile = args[++i];
+            } else if (args[i].equals("-h") || args[i].equals("--help")) {
+                out.println(USAGE);
+                return EXIT_OK;
+            } else {
+                rest.add(args[i]);
+            }
+        }
+
+        if (rest.isEmpty()) {
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        String command = rest.get(0);
+        List<String> params = rest.subList(1, rest.size());
+
+        try {
+            switch (command) {
+                case "generate":
+                    return generate(params);
+                case "agent-stop":
+                    return stopAgent();
+                case "list":
+                case "search":
+                case "filter":
+                case "get":
+                case "add":
+                case "import":
+                case "export":
+                case "agent":
+                    if (vaultFile == null || vaultFile.isEmpty()) {
+                        err.println("No vault given. Use -f <vault.lbx> or set LOCKBOX_VAULT.");
+                        return EXIT_USAGE;
+                    }
+                    return runVaultCommand(command, params, vaultFile);
+                default:
+                    err.println("Unknown command: " + command);
+                    err.println(USAGE);
+                    return EXIT_USAGE;
+            }
+        } catch (Exception e) {
+            err.println("Error: " + e.getMessage());
+            return EXIT_ERROR;
+        }
+    }
+
+    private int runVaultCommand(String command, List<String> params, String vaultFile) throws Exception {
+        if (command.equals("get") || command.equals("search")) {
+            Integer status = tryAgent(command, params, vaultFile);
+            if (status != null) {
+                return status;
+            }
+        }
+
+        char[] masterPassword = readMasterPassword();
+        PasswordManager manager = new PasswordManager(masterPassword);
+        Arrays.fill(masterPassword, '\0');
+        if (command.equals("get") && !params.isEmpty() && params.size() <= 2 && new File(vaultFile).exists()) {
+            // A paged vault with an index answers without decrypting everything
+            List<Account> found = manager.findInFile(vaultFile, params.get(0), params.size() > 1 ? params.get(1) : null);
+            if (found != null) {
+                return get(found, params);
+            }
+        }
+        if (new File(vaultFile).exists()) {
+            manager.loadFromFile(vaultFile);
+        } else if (!command.equals("add") && !command.equals("import")) {
+            err.println("Vault not found: " + vaultFile);
+            return EXIT_NOT_FOUND;
+        }
+
+        switch (command) {
+            case "list":
+                printAccounts(manager.getAccounts());
+                return EXIT_OK;
+            case "search":
+                if (params.size() != 1) {
+                    err.println("Usage: search <term>");
+                    return EXIT_USAGE;
+                }
+                List<Account> results = manager.searchAccounts(params.get(0));
+                printAccounts(results);
+                return results.isEmpty() ? EXIT_NOT_FOUND : EXIT_OK;
+            case "filter":
+                if (params.size() != 1) {
+                    err.println("Usage: filter <tag-expression>");
+                    return EXIT_USAGE;
+                }
+                List<Account> tagged = new ArrayList<>();
+                Set<Account> selected = manager.selectByTags(params.get(0));
+                for (Account account : manager.getAccounts()) {
+                    if (selected.contains(account)) {
+                        tagged.add(account);
+                    }
+                }
+                printAccounts(tagged);
+                return tagged.isEmpty() ? EXIT_NOT_FOUND : EXIT_OK;
+            case "get":
+                return get(manager.getAccounts(), params);
+            case "agent":
+                return startAgent(manager, params, vaultFile);
+            case "import":
+                return importCsv(manager, params, vaultFile);
+            case "export":
+                return export(manager, params);
+            default:
+                return add(manager, params, vaultFile);
+        }
+    }
+
+    private int get(List<Account> accounts, List<String> params) {
+        if (params.isEmpty() || params.size() > 2) {
+            err.println("Usage: get <website> [username]");
+            return EXIT_USAGE;
+        }
+
+        String website = params.get(0);
+        String username = params.size() > 1 ? params.get(1) : null;
+        List<Account> matches = new ArrayList<>();
+        for (Account account : accounts) {
+            if (account.getWebsite().equalsIgnoreCase(website) &&
+                (username == null || account.getUsername().equalsIgnoreCase(username))) {
+                matches.add(account);
+            }
+        }
+
+        if (matches.isEmpty()) {
+            err.println("No entry found for " + website);
+            return EXIT_NOT_FOUND;
+        }
+        if (matches.size() > 1) {
+            err.println("Several entries match " + website + ", specify a username:");
+            for (Account account : matches) {
+                err.println("  " + account.getUsername());
+            }
+            return EXIT_USAGE;
+        }
+
+        out.println(matches.get(0).getPassword());
+        return EXIT_OK;
+    }
+
+    private int add(PasswordManager manager, List<String> params, String vaultFile) throws Exception {
+        if (params.size() < 2 || params.size() > 3) {
+            err.println("Usage: add <website> <username> [password]");
+            return EXIT_USAGE;
+        }
+
+        char[] password = params.size() == 3 ? params.get(2).toCharArray() : readSecret("Password for new entry: ");
+        if (password == null || password.length == 0) {
+            err.println("Password cannot be empty.");
+            return EXIT_USAGE;
+        }
+
+        manager.addAccount(Account.builder().website(params.get(0)).username(params.get(1)).password(password).build());
+        Arrays.fill(password, '\0');
+        manager.sortAccountsByWebsite();
+        manager.saveToFile(vaultFile);
+        return EXIT_OK;
+    }
+
+    private int importCsv(PasswordManager manager, List<String> params, String vaultFile) throws Exception {
+        boolean dryRun = params.contains("--dry-run");
+        List<String> files = new ArrayList<>(params);
+        files.remove("--dry-run");
+        if (files.size() != 1) {
+            err.println("Usage: import <file.csv> [--dry-run]");
+            return EXIT_USAGE;
+        }
+
+        Path source = new File(files.get(0)).toPath();
+        CsvImporter importer = new CsvImporter(manager);
+        CsvImporter.ImportResult result;
+        if (VaultExporter.isArchive(source)) {
+            char[] archivePassword = readSecret("Archive password: ");
+            if (archivePassword == null) {
+                throw new IOException("No archive password given");
+            }
+            result = importer.importArchive(source, archivePassword, dryRun);
+            Arrays.fill(archivePassword, '\0');
+        } else {
+            result = importer.importFile(source, dryRun);
+        }
+        if (dryRun) {
+            printAccounts(result.getPreview());
+        } else if (result.getImported() > 0) {
+            manager.saveToFile(vaultFile);
+        }
+        err.println((dryRun ? "Would import " : "Imported ") + result.getImported() + " entries, skipped " +
+                result.getDuplicates() + " duplicates and " + result.getSkipped() + " incomplete rows");
+        return EXIT_OK;
+    }
+
+    private int export(PasswordManager manager, List<String> params) throws Exception {
+        if (params.size() != 1) {
+            err.println("Usage: export <file.csv|file.json|file.lbxa>");
+            return EXIT_USAGE;
+        }
+
+        Path target = new File(params.get(0)).toPath();
+        String name = target.getFileName().toString().toLowerCase();
+        VaultExporter exporter = new VaultExporter(manager);
+        int count;
+        if (VaultExporter.isArchive(target)) {
+            char[] archivePassword = readSecret("Archive password: ");
+            if (archivePassword == null || archivePassword.length == 0) {
+                err.println("Archive password cannot be empty.");
+                return EXIT_USAGE;
+            }
+            count = exporter.exportArchive(target, archivePassword);
+            Arrays.fill(archivePassword, '\0');
+        } else if (name.endsWith(".json")) {
+            count = exporter.exportJson(target);
+        } else if (name.endsWith(".csv")) {
+            count = exporter.exportCsv(target);
+        } else {
+            err.println("Unknown export format, use .csv, .json or .lbxa");
+            return EXIT_USAGE;
+        }
+        err.println("Exported " + count + " entries to " + target);
+        return EXIT_OK;
+    }
+
+    private int generate(List<String> params) {
+        int length = 16;
+        if (!params.isEmpty()) {
+            try {
+                length = Integer.parseInt(params.get(0));
+            } catch (NumberFormatException e) {
+                err.println("Invalid length: " + params.get(0));
+                return EXIT_USAGE;
+            }
+        }
+        // Generation does not touch the vault, so no master password is needed
+        out.println(PasswordManager.generatePassword(length));
+        return EXIT_OK;
+    }
+
+    private int startAgent(PasswordManager manager, List<String> params, String vaultFile) throws Exception {
+        long idleMinutes = 15;
+        if (!params.isEmpty()) {
+            try {
+                idleMinutes = Long.parseLong(params.get(0));
+            } catch (NumberFormatException e) {
+                err.println("Invalid idle timeout: " + params.get(0));
+                return EXIT_USAGE;
+            }
+        }
+
+        Path socketPath = LockBoxAgent.defaultSocketPath();
+        err.println("Agent listening on " + socketPath + " (locks after " + idleMinutes + " idle minutes)");
+        new LockBoxAgent(manager, new File(vaultFile).getAbsolutePath(), socketPath,
+                idleMinutes * 60 * 1000).serve();
+        return EXIT_OK;
+    }
+
+    private int stopAgent() throws Exception {
+        try (LockBoxAgent.Client client = LockBoxAgent.Client.connect(LockBoxAgent.defaultSocketPath())) {
+            if (client == null) {
+                err.println("No agent running.");
+                return EXIT_NOT_FOUND;
+            }
+            client.call(LockBoxAgent.OP_STOP);
+            return EXIT_OK;
+        }
+    }
+
+    // Returns null when no agent for this vault is available and the caller
+    // should fall back to unlocking the vault itself
+    private Integer tryAgent(String command, List<String> params, String vaultFile) {
+        try (LockBoxAgent.Client client = LockBoxAgent.Client.connect(LockBoxAgent.defaultSocketPath())) {
+            if (client == null) {
+                return null;
+            }
+            List<String> ping = client.call(LockBoxAgent.OP_PING);
+            if (ping.isEmpty() || !ping.get(0).equals(new File(vaultFile).getAbsolutePath())) {
+                return null;
+            }
+
+            if (command.equals("get")) {
+                if (params.isEmpty() || params.size() > 2) {
+                    err.println("Usage: get <website> [username]");
+                    return EXIT_USAGE;
+                }
+                List<String> fields = client.call(LockBoxAgent.OP_GET, params.toArray(new String[0]));
+                switch (client.lastStatus()) {
+                    case LockBoxAgent.STATUS_OK:
+                        out.println(fields.get(0));
+                        return EXIT_OK;
+                    case LockBoxAgent.STATUS_AMBIGUOUS:
+                        err.println("Several entries match " + params.get(0) + ", specify a username:");
+                        for (String username : fields) {
+                            err.println("  " + username);
+                        }
+                        return EXIT_USAGE;
+                    case LockBoxAgent.STATUS_NOT_FOUND:
+                        err.println("No entry found for " + params.get(0));
+                        return EXIT_NOT_FOUND;
+                    default:
+                        return null;
+                }
+            }
+
+            if (params.size() != 1) {
+                err.println("Usage: search <term>");
+                return EXIT_USAGE;
+            }
+            List<String> fields = client.call(LockBoxAgent.OP_SEARCH, params.get(0));
+            if (client.lastStatus() != LockBoxAgent.STATUS_OK && client.lastStatus() != LockBoxAgent.STATUS_NOT_FOUND) {
+                return null;
+            }
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                out.print(fields.get(i));
+                out.print('\t');
+                out.println(fields.get(i + 1));
+            }
+            return fields.isEmpty() ? EXIT_NOT_FOUND : EXIT_OK;
+        } catch (Exception e) {
+            // A stale socket or a dying agent, unlock the vault directly instead
+            return null;
+        }
+    }
+
+    private void printAccounts(List<Account> accounts) {
+        for (Account account : accounts) {
+            out.print(account.getWebsite());
+            out.print('\t');
+            out.println(account.getUsername());
+        }
+    }
+
+    // The caller wipes the returned array
+    private char[] readMasterPassword() throws IOException {
+        String fromEnv = System.getenv("LOCKBOX_PASSWORD");
+        if (fromEnv != null && !fromEnv.isEmpty()) {
+            return fromEnv.toCharArray();
+        }
+        char[] password = readSecret("Master password: ");
+        if (password == null || password.length == 0) {
+            throw new IOException("No master password given");
+        }
+        return password;
+    }
+
+    private char[] readSecret(String prompt) throws IOException {
+        Console console = System.console();
+        if (console != null) {
+            return console.readPassword(prompt);
+        }
+        // Not attached to a terminal: secrets come line by line from the pipe
+        if (stdin == null) {
+            stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        String line = stdin.readLine();
+        return line == null ? null : line.toCharArray();
+    }
+}
@@ -0,0 +1,1271 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+// A vault file made of fixed 4 KiB pages, so that a save rewrites only the
+// pages holding records that changed instead of the whole file.
+//
+// Page 0 is the header line in plain text, padded with zeros. Every other
+// page is sealed on its own (nonce, ciphertext, tag) with the vault id and its
+// page number as associated data, so a page copied to another position or
+// from another vault fails to open.
+// Records are packed into data pages; one too large to share a page goes into
+// a chain of overflow pages. The directory, a chain of pages starting at page
+// 1, lists every record's key and the page holding it, in file order; it is
+// what makes a record live, so freed pages are simply left behind. The free
+// space map, a chain starting at page 2, has one byte per page telling how
+// much room a data page has left or that the page is free.
+//
+//   data      type:u8 count:u16 { key[16] length:u32 payload }*
+//   overflow  type:u8 key[16] next:u32 length:u16 chunk
+//   directory type:u8 next:u32 count:u16 { key[16] page:u32 }*
+//   free map  type:u8 next:u32 { class:u8 }*
+//
+// A save diffs the snapshot against what this storage last read or wrote:
+// an edited record is rewritten in its page if it still fits, and only that
+// page, the directory page listing the record (if the record moved) and the
+// free space map page (if the page's class changed) are written. The sealed
+// pages first go to <vault>.journal, which is forced to disk, then each is
+// written over the vault with one positional write, and the journal is
+// deleted once the vault is forced to disk too. A save cut short by a crash
+// leaves either a torn journal and the vault as it was, or a complete journal
+// that the next open of the vault writes over it again, so the vault holds
+// the old state or the new one and never a torn page.
+//
+//   journal   "LBXJOURNAL1\n" count:u32 { page:u32 known:u8 seal[28] sealed[4096] }* sha256[32]
+//
+// The seal is the nonce and tag the page had before the save, when there was
+// a page worth keeping; a journal is only replayed while every such page
+// still holds the nonce and the tag from before the save or from the journal,
+// so it never lands on a vault that was replaced in the meantime. When the
+// file is new, was changed by someone else or the format properties changed,
+// the vault is written in full to a temporary file that replaces it
+// atomically.
+//
+// Next to the file lies <vault>.idx, records by website and username (see
+// VaultIndex), updated with every save so single entries can be looked up
+// without reading the vault.
+public class PagedVaultStorage implements VaultStorage {
+    static final String NAME = "pages";
+    static final String PAGE_SIZE_PROPERTY = "page";
+    static final int PAGE_SIZE = 4096;
+
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int SEAL_LENGTH = NONCE_LENGTH + TAG_LENGTH;
+    // Plaintext bytes a page holds
+    private static final int CAPACITY = PAGE_SIZE - NONCE_LENGTH - TAG_LENGTH;
+
+    private static final byte FREE = 0;
+    private static final byte DATA = 1;
+    private static final byte OVERFLOW = 2;
+    private static final byte DIRECTORY = 3;
+    private static final byte FREE_MAP = 4;
+    private static final byte HEADER = 5;
+
+    private static final int DIRECTORY_PAGE = 1;
+    private static final int FREE_MAP_PAGE = 2;
+
+    private static final int DATA_HEADER = 1 + 2;
+    private static final int ENTRY_HEADER = 16 + 4;
+    private static final int OVERFLOW_HEADER = 1 + 16 + 4 + 2;
+    private static final int OVERFLOW_CHUNK = CAPACITY - OVERFLOW_HEADER;
+    private static final int DIRECTORY_HEADER = 1 + 4 + 2;
+    private static final int DIRECTORY_ENTRY = 16 + 4;
+    private static final int DIRECTORY_ENTRIES = (CAPACITY - DIRECTORY_HEADER) / DIRECTORY_ENTRY;
+    private static final int FREE_MAP_HEADER = 1 + 4;
+    private static final int FREE_MAP_ENTRIES = CAPACITY - FREE_MAP_HEADER;
+    // Free space map classes besides free bytes / 16 for data pages
+    private static final int CLASS_FREE = 0xFF;
+    private static final int CLASS_UNAVAILABLE = 0xFE;
+
+    // Largest record that still shares a data page
+    private static final int MAX_INLINE = CAPACITY - DATA_HEADER - ENTRY_HEADER;
+    // Data pages with at least this much room are tried for new records
+    private static final int ROOMY = 256;
+    // How many roomy pages a record tries before it gets a new page
+    private static final int PLACEMENT_TRIES = 16;
+
+    private static final byte[] JOURNAL_MAGIC = "LBXJOURNAL1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int JOURNAL_ENTRY = 4 + 1 + SEAL_LENGTH + PAGE_SIZE;
+    private static final int JOURNAL_DIGEST = 32;
+
+    private static final class Page {
+        byte type = FREE;
+        // Data pages: plaintext bytes left
+        int free;
+        // Overflow, directory and free map chains: next page, 0 at the end
+        int next;
+        // Overflow pages: where their chunk starts in the record
+        int offset;
+        // Data pages: keys of the records on it; directory pages: keys listed
+        // on it, in order; overflow pages: the key of their record
+        List<UUID> keys = new ArrayList<>();
+        // Nonce and tag as on disk, to recognize an unchanged page on reload
+        byte[] seal;
+        // Allocated during the current save, nothing on disk worth keeping
+        boolean fresh;
+    }
+
+    private static final class Record {
+        Account account;
+        // Data page or first overflow page
+        int page;
+        int length;
+        int directoryPage;
+    }
+
+    // What the file looks like as of the last read or write; path is null
+    // when nothing is known and the next write is a full one
+    private Path path;
+    private VaultWatcher.Fingerprint fingerprint;
+    private String headerLine;
+    private List<Page> pages = new ArrayList<>();
+    private Map<UUID, Record> records = new HashMap<>();
+    private List<Integer> directoryPages = new ArrayList<>();
+    private List<Integer> freeMapPages = new ArrayList<>();
+    private TreeSet<Integer> freePages = new TreeSet<>();
+    private TreeSet<Integer> roomyPages = new TreeSet<>();
+    private byte[] freeMap = new byte[0];
+
+    // Working set of the save in progress
+    private final TreeSet<Integer> dirty = new TreeSet<>();
+    private final TreeSet<Integer> touched = new TreeSet<>();
+    private final Map<UUID, byte[]> pending = new HashMap<>();
+    private int fillPage = -1;
+    // An incremental save seals its pages here and writes them through the
+    // journal; the seal each had on disk before, null if nothing to keep
+    private boolean journaling;
+    private final TreeMap<Integer, byte[]> staged = new TreeMap<>();
+    private final Map<Integer, byte[]> previousSeals = new HashMap<>();
+    // Kept in step with the records; see VaultIndex
+    private final VaultIndex index = new VaultIndex();
+    // False for a storage that only reads some other copy of a vault, which
+    // must not get an index file next to it
+    private final boolean indexed;
+    // Vault id of the file being read or written, sealed into every page
+    private UUID vaultId;
+
+    public PagedVaultStorage() {
+        this(true);
+    }
+
+    PagedVaultStorage(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized void invalidate() {
+        path = null;
+        pages = new ArrayList<>();
+        records = new HashMap<>();
+        index.forget();
+    }
+
+    @Override
+    public synchronized List<Account> read(String filename, VaultHeader header, CryptoUtils key) throws Exception {
+        checkHeader(header);
+        vaultId = header.getVaultId();
+        Path file = Paths.get(filename).toAbsolutePath().normalize();
+        recover(file);
+        VaultWatcher.Fingerprint before = VaultWatcher.Fingerprint.of(filename);
+        // Pages sealed exactly as we last saw them are not opened again
+        List<Page> knownPages = file.equals(path) ? pages : new ArrayList<>();
+        Map<UUID, Record> knownRecords = file.equals(path) ? records : new HashMap<>();
+        path = null;
+
+        CryptoUtils.Aead aead = header.getCipher();
+        RecordCompressor compressor = header.newCompressor();
+        List<Page> loadedPages = new ArrayList<>();
+        Map<UUID, Record> loadedRecords = new HashMap<>();
+        List<UUID> order = new ArrayList<>();
+        List<Integer> loadedDirectory = new ArrayList<>();
+        List<Integer> loadedFreeMap = new ArrayList<>();
+        ByteBuffer encoded = ByteBuffer.allocate(1024);
+        byte[] raw = new byte[PAGE_SIZE];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % PAGE_SIZE != 0 || size < 3L * PAGE_SIZE) {
+                throw new Exception("The vault file is damaged (truncated page)");
+            }
+            int count = (int) (size / PAGE_SIZE);
+            for (int p = 0; p < count; p++) {
+                loadedPages.add(new Page());
+            }
+            loadedPages.get(0).type = HEADER;
+
+            // The directory says where every record lives
+            for (int p = DIRECTORY_PAGE; p != 0; ) {
+                ByteBuffer plain = openPage(channel, p, count, raw, aead, key, loadedPages.get(p), DIRECTORY);
+                Page page = loadedPages.get(p);
+                page.next = plain.getInt();
+                int entries = plain.getShort() & 0xFFFF;
+                for (int i = 0; i < entries; i++) {
+                    UUID recordKey = new UUID(plain.getLong(), plain.getLong());
+                    Record record = new Record();
+                    record.page = plain.getInt();
+                    record.directoryPage = p;
+                    if (record.page <= FREE_MAP_PAGE || record.page >= count
+                            || loadedRecords.put(recordKey, record) != null) {
+                        throw new Exception("The vault file is damaged (directory page " + p + ")");
+                    }
+                    page.keys.add(recordKey);
+                    order.add(recordKey);
+                }
+                loadedDirectory.add(p);
+                p = page.next;
+            }
+            for (int p = FREE_MAP_PAGE; p != 0; ) {
+                ByteBuffer plain = openPage(channel, p, count, raw, aead, key, loadedPages.get(p), FREE_MAP);
+                loadedPages.get(p).next = plain.getInt();
+                Arrays.fill(plain.array(), (byte) 0);
+                loadedFreeMap.add(p);
+                p = loadedPages.get(p).next;
+            }
+
+            // Then the pages the directory points at, in file order
+            TreeSet<Integer> targets = new TreeSet<>();
+            int[] located = new int[count];
+            for (Record record : loadedRecords.values()) {
+                targets.add(record.page);
+                located[record.page]++;
+            }
+            for (int p : targets) {
+                Page page = loadedPages.get(p);
+                Page known = p < knownPages.size() ? knownPages.get(p) : null;
+                readRaw(channel, p, raw);
+                byte[] seal = sealOf(raw);
+                if (known != null && known.type == DATA && Arrays.equals(known.seal, seal)
+                        && sameKeys(known, p, located[p], loadedRecords)) {
+                    page.type = DATA;
+                    page.free = known.free;
+                    page.seal = seal;
+                    page.keys = new ArrayList<>(known.keys);
+                    for (UUID recordKey : page.keys) {
+                        Record record = loadedRecords.get(recordKey);
+                        Record previous = knownRecords.get(recordKey);
+                        record.account = previous.account;
+                        record.length = previous.length;
+                    }
+                    continue;
+                }
+                ByteBuffer plain = open(raw, p, aead, key);
+                byte type = plain.get();
+                if (type == DATA) {
+                    page.type = DATA;
+                    page.seal = seal;
+                    page.free = CAPACITY - DATA_HEADER;
+                    int entries = plain.getShort() & 0xFFFF;
+                    for (int i = 0; i < entries; i++) {
+                        UUID recordKey = new UUID(plain.getLong(), plain.getLong());
+                        int length = plain.getInt();
+                        ByteBuffer payload = plain.slice(plain.position(), length);
+                        plain.position(plain.position() + length);
+                        Record record = loadedRecords.get(recordKey);
+                        if (record == null || record.page != p) {
+                            // Left behind by a record that moved on
+                            continue;
+                        }
+                        record.length = length;
+                        encoded = decodeInto(record, payload, knownRecords.get(recordKey), compressor, encoded);
+                        page.keys.add(recordKey);
+                        page.free -= ENTRY_HEADER + length;
+                    }
+                    Arrays.fill(plain.array(), (byte) 0);
+                } else if (type == OVERFLOW) {
+                    Arrays.fill(plain.array(), (byte) 0);
+                    readChain(channel, p, count, raw, aead, key, loadedPages, loadedRecords, knownRecords, compressor, encoded);
+                } else {
+                    throw new Exception("The vault file is damaged (page " + p + ")");
+                }
+            }
+            for (UUID recordKey : order) {
+                if (loadedRecords.get(recordKey).account == null) {
+                    throw new Exception("The vault file is damaged (missing record on page "
+                            + loadedRecords.get(recordKey).page + ")");
+                }
+            }
+        } catch (IOException e) {
+            throw new Exception("Error reading file: " + e.getMessage());
+        } finally {
+            Arrays.fill(encoded.array(), (byte) 0);
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+
+        pages = loadedPages;
+        records = loadedRecords;
+        directoryPages = loadedDirectory;
+        freeMapPages = loadedFreeMap;
+        rebuildFreeSpace();
+        path = file;
+        fingerprint = before;
+        headerLine = header.format();
+        if (indexed && !index.isCurrent(VaultIndex.fileFor(file), before, key)) {
+            rebuildIndex(file, key, aead);
+        }
+
+        List<Account> loaded = new ArrayList<>(order.size());
+        for (UUID recordKey : order) {
+            loaded.add(records.get(recordKey).account);
+        }
+        return loaded;
+    }
+
+    // True if the keys an unchanged data page held are still exactly the
+    // located records the directory places on it
+    private static boolean sameKeys(Page known, int p, int located, Map<UUID, Record> loadedRecords) {
+        if (known.keys.size() != located) {
+            return false;
+        }
+        for (UUID recordKey : known.keys) {
+            Record record = loadedRecords.get(recordKey);
+            if (record == null || record.page != p) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readChain(FileChannel channel, int head, int count, byte[] raw, CryptoUtils.Aead aead,
+            CryptoUtils key, List<Page> loadedPages, Map<UUID, Record> loadedRecords,
+            Map<UUID, Record> knownRecords, RecordCompressor compressor, ByteBuffer encoded) throws Exception {
+        ByteBuffer assembled = ByteBuffer.allocate(OVERFLOW_CHUNK * 2);
+        UUID recordKey = null;
+        int offset = 0;
+        for (int p = head; p != 0; ) {
+            Page page = loadedPages.get(p);
+            ByteBuffer plain = openPage(channel, p, count, raw, aead, key, page, OVERFLOW);
+            UUID owner = new UUID(plain.getLong(), plain.getLong());
+            if (recordKey != null && !recordKey.equals(owner)) {
+                throw new Exception("The vault file is damaged (overflow page " + p + ")");
+            }
+            recordKey = owner;
+            page.next = plain.getInt();
+            int length = plain.getShort() & 0xFFFF;
+            if (assembled.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(assembled.capacity() * 2 + length);
+                assembled.flip();
+                larger.put(assembled);
+                Arrays.fill(assembled.array(), (byte) 0);
+                assembled = larger;
+            }
+            assembled.put(plain.array(), plain.position(), length);
+            Arrays.fill(plain.array(), (byte) 0);
+            page.keys.add(owner);
+            page.offset = offset;
+            offset += length;
+            p = page.next;
+        }
+        Record record = loadedRecords.get(recordKey);
+        if (record == null || record.page != head) {
+            throw new Exception("The vault file is damaged (overflow page " + head + ")");
+        }
+        assembled.flip();
+        record.length = assembled.remaining();
+        decodeInto(record, assembled, knownRecords.get(recordKey), compressor, encoded);
+        Arrays.fill(assembled.array(), (byte) 0);
+    }
+
+    // Decodes a record, or keeps the account we already had when it encodes
+    // to the same bytes, so a reload reports only records that really changed
+    private static ByteBuffer decodeInto(Record record, ByteBuffer payload, Record previous,
+            RecordCompressor compressor, ByteBuffer encoded) throws Exception {
+        ByteBuffer decoded = compressor != null ? compressor.decompress(payload) : payload;
+        if (previous != null && previous.account != null) {
+            encoded = RecordCodec.encodeReusing(previous.account, encoded);
+            if (encoded.equals(decoded)) {
+                record.account = previous.account;
+                return encoded;
+            }
+        }
+        record.account = RecordCodec.decode(decoded);
+        if (decoded != payload) {
+            Arrays.fill(decoded.array(), (byte) 0);
+        }
+        return encoded;
+    }
+
+    @Override
+    public synchronized void write(String filename, VaultHeader header, List<Account> snapshot, CryptoUtils key) throws Exception {
+        header.put(VaultHeader.STORAGE, NAME);
+        header.put(PAGE_SIZE_PROPERTY, Integer.toString(PAGE_SIZE));
+        vaultId = header.getVaultId();
+        String line = header.format();
+        if (line.length() >= PAGE_SIZE) {
+            throw new Exception("Vault header too long");
+        }
+        Path file = Paths.get(filename).toAbsolutePath().normalize();
+        // A replayed journal changes the file, so the save is a full one then
+        recover(file);
+        boolean incremental = file.equals(path) && line.equals(headerLine)
+                && Objects.equals(fingerprint, VaultWatcher.Fingerprint.of(filename));
+        path = null;
+        if (!incremental) {
+            startLayout();
+        }
+        journaling = incremental;
+
+        CryptoUtils.Aead aead = header.getCipher();
+        RecordCompressor compressor = header.newCompressor();
+        Path target = incremental ? file : file.resolveSibling(file.getFileName() + ".tmp");
+        // Edits go to the index in memory as records are placed; otherwise it
+        // is rebuilt after the save
+        Path indexFile = VaultIndex.fileFor(file);
+        boolean indexed = incremental && (index.isLoadedFor(indexFile) || index.load(indexFile, fingerprint, key));
+        if (!indexed) {
+            index.forget();
+        }
+        ByteBuffer record = ByteBuffer.allocate(1024);
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            if (!incremental) {
+                channel.truncate(0);
+            }
+            Map<UUID, Integer> occurrences = new HashMap<>();
+            Map<UUID, Boolean> live = new HashMap<>(snapshot.size() * 2);
+            for (Account account : snapshot) {
+                UUID recordKey = VaultStorage.recordKey(account, occurrences);
+                live.put(recordKey, Boolean.TRUE);
+                Record existing = records.get(recordKey);
+                if (existing != null && existing.account == account) {
+                    continue;
+                }
+                record = RecordCodec.encodeReusing(account, record);
+                ByteBuffer payload = compressor != null ? compressor.compress(record) : record;
+                int preferred = -1;
+                if (existing == null) {
+                    existing = new Record();
+                    records.put(recordKey, existing);
+                    addToDirectory(recordKey, existing);
+                } else {
+                    preferred = existing.page;
+                    unplace(recordKey, existing);
+                }
+                existing.account = account;
+                int previousPage = existing.page;
+                place(recordKey, existing, payload, preferred, incremental, channel, aead, key);
+                if (existing.page != previousPage) {
+                    dirty.add(existing.directoryPage);
+                }
+                index.put(recordKey, account, existing.page);
+            }
+            for (Map.Entry<UUID, Record> entry : new ArrayList<>(records.entrySet())) {
+                if (!live.containsKey(entry.getKey())) {
+                    unplace(entry.getKey(), entry.getValue());
+                    pages.get(entry.getValue().directoryPage).keys.remove(entry.getKey());
+                    dirty.add(entry.getValue().directoryPage);
+                    records.remove(entry.getKey());
+                    index.remove(entry.getKey());
+                }
+            }
+            updateFreeMap();
+
+            // Records first, then the directory pointing at them
+            for (int p : dirty) {
+                byte type = pages.get(p).type;
+                if (type == DATA || type == OVERFLOW) {
+                    writePage(channel, p, aead, key);
+                }
+            }
+            for (int p : dirty) {
+                byte type = pages.get(p).type;
+                if (type == DIRECTORY || type == FREE_MAP) {
+                    writePage(channel, p, aead, key);
+                }
+            }
+            if (incremental) {
+                commit(channel, file);
+            } else {
+                writeHeaderPage(channel, line);
+                channel.force(true);
+            }
+        } catch (Exception e) {
+            if (!incremental) {
+                Files.deleteIfExists(target);
+            }
+            index.forget();
+            throw e;
+        } finally {
+            Arrays.fill(record.array(), (byte) 0);
+            if (compressor != null) {
+                compressor.end();
+            }
+            for (byte[] payload : pending.values()) {
+                Arrays.fill(payload, (byte) 0);
+            }
+            pending.clear();
+            dirty.clear();
+            touched.clear();
+            fillPage = -1;
+            journaling = false;
+            staged.clear();
+            previousSeals.clear();
+        }
+        if (!incremental) {
+            // A torn journal left beside it belongs to the file being replaced
+            Files.deleteIfExists(journalFor(file));
+            Files.move(target, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        for (Page page : pages) {
+            page.fresh = false;
+        }
+        path = file;
+        headerLine = line;
+        fingerprint = VaultWatcher.Fingerprint.of(filename);
+        if (indexed) {
+            try {
+                index.write(fingerprint, key, aead);
+            } catch (Exception e) {
+                // Left stale; rebuilt on the next save or read
+                index.forget();
+            }
+        } else {
+            rebuildIndex(file, key, aead);
+        }
+    }
+
+    // The index is only a shortcut; a vault that cannot have one, e.g. in a
+    // read-only directory, works without it
+    private void rebuildIndex(Path file, CryptoUtils key, CryptoUtils.Aead aead) {
+        Path indexFile = VaultIndex.fileFor(file);
+        index.startRebuild(indexFile);
+        for (Map.Entry<UUID, Record> entry : records.entrySet()) {
+            index.put(entry.getKey(), entry.getValue().account, entry.getValue().page);
+        }
+        try {
+            index.write(fingerprint, key, aead);
+        } catch (Exception e) {
+            index.forget();
+        }
+    }
+
+    // An empty file: the header, the first directory page and the first free space map page
+    private void startLayout() {
+        pages = new ArrayList<>();
+        records = new HashMap<>();
+        directoryPages = new ArrayList<>();
+        freeMapPages = new ArrayList<>();
+        freePages = new TreeSet<>();
+        roomyPages = new TreeSet<>();
+        freeMap = new byte[0];
+        Page header = new Page();
+        header.type = HEADER;
+        pages.add(header);
+        for (byte type : new byte[] {DIRECTORY, FREE_MAP}) {
+            Page page = new Page();
+            page.type = type;
+            page.fresh = true;
+            pages.add(page);
+            dirty.add(pages.size() - 1);
+            touched.add(pages.size() - 1);
+        }
+        directoryPages.add(DIRECTORY_PAGE);
+        freeMapPages.add(FREE_MAP_PAGE);
+    }
+
+    private void addToDirectory(UUID recordKey, Record record) {
+        int tail = directoryPages.get(directoryPages.size() - 1);
+        if (pages.get(tail).keys.size() >= DIRECTORY_ENTRIES) {
+            int next = allocate(DIRECTORY);
+            pages.get(tail).next = next;
+            dirty.add(tail);
+            directoryPages.add(next);
+            tail = next;
+        }
+        pages.get(tail).keys.add(recordKey);
+        record.directoryPage = tail;
+        dirty.add(tail);
+    }
+
+    // Takes a record off its page; the page is rewritten without it, or freed
+    // if nothing else is on it
+    private void unplace(UUID recordKey, Record record) {
+        Page page = pages.get(record.page);
+        if (page.type == OVERFLOW) {
+            for (int p = record.page; p != 0; ) {
+                int next = pages.get(p).next;
+                release(p);
+                p = next;
+            }
+            return;
+        }
+        page.keys.remove(recordKey);
+        page.free += ENTRY_HEADER + record.length;
+        byte[] payload = pending.remove(recordKey);
+        if (payload != null) {
+            Arrays.fill(payload, (byte) 0);
+        }
+        if (page.keys.isEmpty()) {
+            release(record.page);
+        } else {
+            dirty.add(record.page);
+            touched.add(record.page);
+            updateRoomy(record.page);
+        }
+    }
+
+    private void place(UUID recordKey, Record record, ByteBuffer payload, int preferred, boolean incremental,
+            FileChannel channel, CryptoUtils.Aead aead, CryptoUtils key) throws Exception {
+        int length = payload.remaining();
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        pending.put(recordKey, bytes);
+        record.length = length;
+        if (length > MAX_INLINE) {
+            int previous = 0;
+            for (int offset = 0; offset < length; offset += OVERFLOW_CHUNK) {
+                int p = allocate(OVERFLOW);
+                Page page = pages.get(p);
+                page.keys.add(recordKey);
+                page.offset = offset;
+                if (previous == 0) {
+                    record.page = p;
+                } else {
+                    pages.get(previous).next = p;
+                }
+                previous = p;
+            }
+            return;
+        }
+
+        int needed = ENTRY_HEADER + length;
+        int p = -1;
+        if (!incremental) {
+            // A full write fills pages one after the other and writes each
+            // as soon as it is full, so payloads do not pile up in memory
+            if (fillPage >= 0 && pages.get(fillPage).free >= needed) {
+                p = fillPage;
+            } else {
+                if (fillPage >= 0) {
+                    writePage(channel, fillPage, aead, key);
+                    dirty.remove(fillPage);
+                }
+                p = fillPage = allocate(DATA);
+            }
+        } else if (preferred > 0 && pages.get(preferred).type == DATA && pages.get(preferred).free >= needed) {
+            // Rewritten where it was, in the page that has to be written anyway
+            p = preferred;
+        } else {
+            int tries = 0;
+            for (int candidate : roomyPages) {
+                if (pages.get(candidate).free >= needed) {
+                    p = candidate;
+                    break;
+                }
+                if (++tries == PLACEMENT_TRIES) {
+                    break;
+                }
+            }
+            if (p < 0) {
+                p = allocate(DATA);
+            }
+        }
+        Page page = pages.get(p);
+        page.keys.add(recordKey);
+        page.free -= needed;
+        record.page = p;
+        dirty.add(p);
+        touched.add(p);
+        updateRoomy(p);
+    }
+
+    private int allocate(byte type) {
+        int p;
+        if (!freePages.isEmpty()) {
+            p = freePages.pollFirst();
+        } else {
+            p = pages.size();
+            pages.add(new Page());
+            coverInFreeMap(p);
+        }
+        Page page = pages.get(p);
+        page.type = type;
+        page.fresh = true;
+        page.next = 0;
+        page.offset = 0;
+        page.keys = new ArrayList<>();
+        page.free = type == DATA ? CAPACITY - DATA_HEADER : 0;
+        dirty.add(p);
+        touched.add(p);
+        return p;
+    }
+
+    private void release(int p) {
+        Page page = pages.get(p);
+        page.type = FREE;
+        page.keys = new ArrayList<>();
+        page.next = 0;
+        freePages.add(p);
+        roomyPages.remove(p);
+        dirty.remove(p);
+        touched.add(p);
+    }
+
+    // Adds free space map pages until page p has an entry
+    private void coverInFreeMap(int p) {
+        while (p >= freeMapPages.size() * FREE_MAP_ENTRIES) {
+            int q = pages.size();
+            Page page = new Page();
+            page.type = FREE_MAP;
+            page.fresh = true;
+            pages.add(page);
+            int tail = freeMapPages.get(freeMapPages.size() - 1);
+            pages.get(tail).next = q;
+            dirty.add(tail);
+            freeMapPages.add(q);
+            dirty.add(q);
+            touched.add(q);
+        }
+    }
+
+    private void updateRoomy(int p) {
+        Page page = pages.get(p);
+        if (page.type == DATA && page.free >= ROOMY) {
+            roomyPages.add(p);
+        } else {
+            roomyPages.remove(p);
+        }
+    }
+
+    private static int classOf(Page page) {
+        switch (page.type) {
+            case FREE:
+                return CLASS_FREE;
+            case DATA:
+                return Math.min(page.free / 16, CLASS_UNAVAILABLE - 1);
+            default:
+                return CLASS_UNAVAILABLE;
+        }
+    }
+
+    // Marks the free space map pages whose entries changed in this save
+    private void updateFreeMap() {
+        if (freeMap.length < pages.size()) {
+            byte[] grown = Arrays.copyOf(freeMap, Math.max(pages.size(), freeMap.length * 2));
+            Arrays.fill(grown, freeMap.length, grown.length, (byte) CLASS_FREE);
+            freeMap = grown;
+        }
+        for (int p : touched) {
+            byte cls = (byte) classOf(pages.get(p));
+            if (freeMap[p] != cls) {
+                freeMap[p] = cls;
+                dirty.add(freeMapPages.get(p / FREE_MAP_ENTRIES));
+            }
+        }
+    }
+
+    // After a read: which pages are free or have room, from the pages themselves
+    private void rebuildFreeSpace() {
+        freePages = new TreeSet<>();
+        roomyPages = new TreeSet<>();
+        freeMap = new byte[pages.size()];
+        for (int p = 0; p < pages.size(); p++) {
+            Page page = pages.get(p);
+            if (p > FREE_MAP_PAGE && page.type == FREE) {
+                freePages.add(p);
+            }
+            updateRoomy(p);
+            freeMap[p] = (byte) classOf(page);
+        }
+    }
+
+    private void writePage(FileChannel channel, int p, CryptoUtils.Aead aead, CryptoUtils key) throws Exception {
+        Page page = pages.get(p);
+        ByteBuffer plain = ByteBuffer.allocate(CAPACITY);
+        try {
+            switch (page.type) {
+                case DATA:
+                    fillData(channel, p, page, plain, aead, key);
+                    break;
+                case OVERFLOW:
+                    byte[] payload = pending.get(page.keys.get(0));
+                    int length = Math.min(OVERFLOW_CHUNK, payload.length - page.offset);
+                    plain.put(OVERFLOW);
+                    putKey(plain, page.keys.get(0));
+                    plain.putInt(page.next);
+                    plain.putShort((short) length);
+                    plain.put(payload, page.offset, length);
+                    break;
+                case DIRECTORY:
+                    plain.put(DIRECTORY);
+                    plain.putInt(page.next);
+                    plain.putShort((short) page.keys.size());
+                    for (UUID recordKey : page.keys) {
+                        putKey(plain, recordKey);
+                        plain.putInt(records.get(recordKey).page);
+                    }
+                    break;
+                case FREE_MAP:
+                    plain.put(FREE_MAP);
+                    plain.putInt(page.next);
+                    int first = freeMapPages.indexOf(p) * FREE_MAP_ENTRIES;
+                    for (int i = first; i < first + FREE_MAP_ENTRIES; i++) {
+                        plain.put(i < freeMap.length ? freeMap[i] : (byte) CLASS_FREE);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot write page " + p + " of type " + page.type);
+            }
+            plain.clear();
+            byte[] sealed = key.encryptBytes(aead, plain, pageAad(p));
+            if (journaling) {
+                if (!previousSeals.containsKey(p)) {
+                    previousSeals.put(p, page.fresh ? null : page.seal);
+                }
+                staged.put(p, sealed);
+            } else {
+                writeSealed(channel, p, sealed);
+            }
+            page.seal = sealOf(sealed);
+        } finally {
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+    }
+
+    // The records on a data page: the ones placed in this save from their
+    // payloads, the others copied over from the page as it is on disk
+    private void fillData(FileChannel channel, int p, Page page, ByteBuffer plain, CryptoUtils.Aead aead,
+            CryptoUtils key) throws Exception {
+        plain.put(DATA);
+        plain.putShort((short) page.keys.size());
+        Map<UUID, ByteBuffer> kept = new HashMap<>();
+        ByteBuffer onDisk = null;
+        if (!page.fresh) {
+            byte[] raw = new byte[PAGE_SIZE];
+            readRaw(channel, p, raw);
+            onDisk = open(raw, p, aead, key);
+            if (onDisk.get() != DATA) {
+                throw new Exception("The vault file is damaged (page " + p + ")");
+            }
+            int entries = onDisk.getShort() & 0xFFFF;
+            for (int i = 0; i < entries; i++) {
+                UUID recordKey = new UUID(onDisk.getLong(), onDisk.getLong());
+                int length = onDisk.getInt();
+                kept.put(recordKey, onDisk.slice(onDisk.position(), length));
+                onDisk.position(onDisk.position() + length);
+            }
+        }
+        try {
+            for (UUID recordKey : page.keys) {
+                putKey(plain, recordKey);
+                byte[] payload = pending.remove(recordKey);
+                if (payload != null) {
+                    plain.putInt(payload.length);
+                    plain.put(payload);
+                    Arrays.fill(payload, (byte) 0);
+                    continue;
+                }
+                ByteBuffer previous = kept.get(recordKey);
+                if (previous == null) {
+                    throw new Exception("The vault file is damaged (missing record on page " + p + ")");
+                }
+                plain.putInt(previous.remaining());
+                plain.put(previous);
+            }
+        } finally {
+            if (onDisk != null) {
+                Arrays.fill(onDisk.array(), (byte) 0);
+            }
+        }
+    }
+
+    private static void writeSealed(FileChannel channel, int p, byte[] sealed) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(sealed);
+        while (out.hasRemaining()) {
+            channel.write(out, (long) p * PAGE_SIZE + out.position());
+        }
+    }
+
+    static Path journalFor(Path vault) {
+        return vault.resolveSibling(vault.getFileName() + ".journal");
+    }
+
+    // Writes the staged pages to the journal and forces it to disk, then
+    // over the vault; the journal goes once the vault is on disk as well.
+    // A journal that could not be written completely is removed, the vault
+    // has not been touched then.
+    private void commit(FileChannel channel, Path file) throws IOException {
+        Path journal = journalFor(file);
+        ByteBuffer out = ByteBuffer.allocate(JOURNAL_MAGIC.length + 4 + staged.size() * JOURNAL_ENTRY + JOURNAL_DIGEST);
+        out.put(JOURNAL_MAGIC).putInt(staged.size());
+        for (Map.Entry<Integer, byte[]> entry : staged.entrySet()) {
+            byte[] previous = previousSeals.get(entry.getKey());
+            out.putInt(entry.getKey());
+            out.put((byte) (previous != null ? 1 : 0));
+            out.put(previous != null ? previous : new byte[SEAL_LENGTH]);
+            out.put(entry.getValue());
+        }
+        out.put(digest(out.array(), out.position()));
+        out.flip();
+        try (FileChannel writer = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                writer.write(out);
+            }
+            writer.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(journal);
+            throw e;
+        }
+        for (Map.Entry<Integer, byte[]> entry : staged.entrySet()) {
+            writeSealed(channel, entry.getKey(), entry.getValue());
+        }
+        channel.force(true);
+        Files.delete(journal);
+    }
+
+    // Finishes a save cut short after its journal was complete by writing
+    // the journal's pages over the vault again. A torn journal is ignored:
+    // the vault was not touched, and the next save replaces it. So is one
+    // whose pages hold something other than what was there before the save
+    // or what the journal has, meaning the vault was replaced since.
+    private static void recover(Path file) throws IOException {
+        Path journal = journalFor(file);
+        if (!Files.exists(journal)) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journal));
+        int header = JOURNAL_MAGIC.length + 4;
+        if (in.remaining() < header + JOURNAL_DIGEST
+                || !Arrays.equals(in.array(), 0, JOURNAL_MAGIC.length, JOURNAL_MAGIC, 0, JOURNAL_MAGIC.length)) {
+            return;
+        }
+        int count = in.getInt(JOURNAL_MAGIC.length);
+        int end = in.remaining() - JOURNAL_DIGEST;
+        if (count < 0 || count > (end - header) / JOURNAL_ENTRY || header + (long) count * JOURNAL_ENTRY != end
+                || !Arrays.equals(digest(in.array(), end), 0, JOURNAL_DIGEST, in.array(), end, end + JOURNAL_DIGEST)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            byte[] raw = new byte[PAGE_SIZE];
+            byte[] previous = new byte[SEAL_LENGTH];
+            byte[] sealed = new byte[PAGE_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.position(header + i * JOURNAL_ENTRY);
+                int p = in.getInt();
+                boolean known = in.get() != 0;
+                in.get(previous).get(sealed);
+                if (p <= 0) {
+                    return;
+                }
+                if (!known) {
+                    continue;
+                }
+                if ((long) (p + 1) * PAGE_SIZE > size) {
+                    return;
+                }
+                readRaw(channel, p, raw);
+                byte[] seal = sealOf(raw);
+                if (!sealPartsFrom(seal, previous, sealOf(sealed))) {
+                    return;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                in.position(header + i * JOURNAL_ENTRY);
+                int p = in.getInt();
+                in.position(in.position() + 1 + SEAL_LENGTH).get(sealed);
+                writeSealed(channel, p, sealed);
+            }
+            channel.force(true);
+        }
+        Files.delete(journal);
+    }
+
+    // True if the nonce and the tag of a page on disk are each the one from
+    // before or after the save; a page torn by a crash mixes the two
+    private static boolean sealPartsFrom(byte[] seal, byte[] before, byte[] after) {
+        int[][] parts = {{0, NONCE_LENGTH}, {NONCE_LENGTH, SEAL_LENGTH}};
+        for (int[] part : parts) {
+            if (!Arrays.equals(seal, part[0], part[1], before, part[0], part[1])
+                    && !Arrays.equals(seal, part[0], part[1], after, part[0], part[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] digest(byte[] bytes, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeHeaderPage(FileChannel channel, String line) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        page.put(line.getBytes(StandardCharsets.US_ASCII));
+        page.put((byte) '\n');
+        page.clear();
+        while (page.hasRemaining()) {
+            channel.write(page, page.position());
+        }
+    }
+
+    // Page 0 holds nothing but the header, so it is rewritten in place with
+    // one write and forced to disk
+    @Override
+    public synchronized void writeHeader(String filename, VaultHeader header, CryptoUtils key) throws IOException {
+        String line = header.format();
+        if (line.length() >= PAGE_SIZE) {
+            throw new IOException("Vault header too long");
+        }
+        Path file = Paths.get(filename).toAbsolutePath().normalize();
+        VaultWatcher.Fingerprint before = VaultWatcher.Fingerprint.of(filename);
+        boolean known = file.equals(path) && Objects.equals(fingerprint, before);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            writeHeaderPage(channel, line);
+            channel.force(true);
+        }
+        // The records did not move, so the index still holds
+        index.retarget(VaultIndex.fileFor(file), before, VaultWatcher.Fingerprint.of(filename), key);
+        if (known) {
+            headerLine = line;
+            fingerprint = VaultWatcher.Fingerprint.of(filename);
+        } else {
+            path = null;
+        }
+    }
+
+    // Every live page is opened and sealed again into a temporary file that
+    // replaces the vault; free pages are written as zeros
+    @Override
+    public synchronized void reencrypt(String filename, VaultHeader header, CryptoUtils key, CryptoUtils.Aead target) throws Exception {
+        Path file = Paths.get(filename).toAbsolutePath().normalize();
+        if (!file.equals(path) || !Objects.equals(fingerprint, VaultWatcher.Fingerprint.of(filename))) {
+            read(filename, header, key);
+        }
+        path = null;
+        vaultId = header.getVaultId();
+        CryptoUtils.Aead source = header.getCipher();
+        VaultHeader rewritten = header.upgraded();
+        rewritten.put(VaultHeader.CIPHER, target.getId());
+        String line = rewritten.format();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] raw = new byte[PAGE_SIZE];
+        byte[][] seals = new byte[pages.size()][];
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeaderPage(out, line);
+            for (int p = 1; p < pages.size(); p++) {
+                ByteBuffer sealed;
+                if (pages.get(p).type == FREE) {
+                    sealed = ByteBuffer.allocate(PAGE_SIZE);
+                } else {
+                    readRaw(in, p, raw);
+                    ByteBuffer plain = open(raw, p, source, key);
+                    byte[] bytes = key.encryptBytes(target, plain, pageAad(p));
+                    Arrays.fill(plain.array(), (byte) 0);
+                    seals[p] = sealOf(bytes);
+                    sealed = ByteBuffer.wrap(bytes);
+                }
+                while (sealed.hasRemaining()) {
+                    out.write(sealed, (long) p * PAGE_SIZE + sealed.position());
+                }
+            }
+            out.force(true);
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.deleteIfExists(journalFor(file));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (int p = 1; p < pages.size(); p++) {
+            pages.get(p).seal = seals[p];
+        }
+        VaultWatcher.Fingerprint before = fingerprint;
+        path = file;
+        headerLine = line;
+        fingerprint = VaultWatcher.Fingerprint.of(filename);
+        // Every record is on the page it was on
+        index.retarget(VaultIndex.fileFor(file), before, fingerprint, key);
+    }
+
+    // Looks the entries up in the index and opens only the vault pages
+    // holding them
+    @Override
+    public synchronized List<Account> find(String filename, VaultHeader header, CryptoUtils key,
+            String website, String username) throws Exception {
+        checkHeader(header);
+        vaultId = header.getVaultId();
+        Path file = Paths.get(filename).toAbsolutePath().normalize();
+        if (Files.exists(journalFor(file))) {
+            // A save was cut short; a full read finishes it first
+            return null;
+        }
+        List<VaultIndex.Entry> entries = VaultIndex.find(VaultIndex.fileFor(file),
+                VaultWatcher.Fingerprint.of(filename), key, website, username);
+        if (entries == null) {
+            return null;
+        }
+        CryptoUtils.Aead aead = header.getCipher();
+        RecordCompressor compressor = header.newCompressor();
+        List<Account> found = new ArrayList<>(entries.size());
+        byte[] raw = new byte[PAGE_SIZE];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int count = (int) (channel.size() / PAGE_SIZE);
+            for (VaultIndex.Entry entry : entries) {
+                ByteBuffer payload = fetch(channel, entry.getPage(), count, entry.getId(), raw, aead, key);
+                if (payload == null) {
+                    // The vault changed under the index
+                    return null;
+                }
+                ByteBuffer decoded = compressor != null ? compressor.decompress(payload) : payload;
+                found.add(RecordCodec.decode(decoded));
+                Arrays.fill(payload.array(), (byte) 0);
+                Arrays.fill(decoded.array(), (byte) 0);
+            }
+        } catch (IOException e) {
+            throw new Exception("Error reading file: " + e.getMessage());
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+        return found;
+    }
+
+    // The payload of one record from its data page or overflow chain; null
+    // if it is not where the index says
+    private ByteBuffer fetch(FileChannel channel, int p, int count, UUID recordKey, byte[] raw,
+            CryptoUtils.Aead aead, CryptoUtils key) throws Exception {
+        if (p <= FREE_MAP_PAGE || p >= count) {
+            return null;
+        }
+        readRaw(channel, p, raw);
+        ByteBuffer plain = open(raw, p, aead, key);
+        try {
+            byte type = plain.get();
+            if (type == DATA) {
+                int entries = plain.getShort() & 0xFFFF;
+                for (int i = 0; i < entries; i++) {
+                    UUID entryKey = new UUID(plain.getLong(), plain.getLong());
+                    int length = plain.getInt();
+                    if (entryKey.equals(recordKey)) {
+                        byte[] payload = new byte[length];
+                        plain.get(payload);
+                        return ByteBuffer.wrap(payload);
+                    }
+                    plain.position(plain.position() + length);
+                }
+                return null;
+            }
+            if (type != OVERFLOW) {
+                return null;
+            }
+        } finally {
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+        ByteBuffer assembled = ByteBuffer.allocate(OVERFLOW_CHUNK * 2);
+        for (int q = p; q != 0; ) {
+            if (q <= FREE_MAP_PAGE || q >= count) {
+                return null;
+            }
+            readRaw(channel, q, raw);
+            ByteBuffer chunk = open(raw, q, aead, key);
+            if (chunk.get() != OVERFLOW || !new UUID(chunk.getLong(), chunk.getLong()).equals(recordKey)) {
+                return null;
+            }
+            q = chunk.getInt();
+            int length = chunk.getShort() & 0xFFFF;
+            if (assembled.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(assembled.capacity() * 2 + length);
+                assembled.flip();
+                larger.put(assembled);
+                Arrays.fill(assembled.array(), (byte) 0);
+                assembled = larger;
+            }
+            assembled.put(chunk.array(), chunk.position(), length);
+            Arrays.fill(chunk.array(), (byte) 0);
+        }
+        return assembled.flip();
+    }
+
+    private static void checkHeader(VaultHeader header) throws Exception {
+        if (header == null || !header.get(PAGE_SIZE_PROPERTY, "").equals(Integer.toString(PAGE_SIZE))) {
+            throw new Exception("Unsupported vault page size");
+        }
+    }
+
+    private static void readRaw(FileChannel channel, int p, byte[] raw) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, (long) p * PAGE_SIZE + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file in page " + p);
+            }
+        }
+    }
+
+    private ByteBuffer open(byte[] raw, int p, CryptoUtils.Aead aead, CryptoUtils key) throws Exception {
+        try {
+            return key.decryptBytes(aead, raw, pageAad(p));
+        } catch (Exception e) {
+            throw new Exception("Failed to decrypt page " + p + ". Incorrect master password or corrupted file.");
+        }
+    }
+
+    // Reads, opens and checks the type of a metadata page
+    private ByteBuffer openPage(FileChannel channel, int p, int count, byte[] raw, CryptoUtils.Aead aead,
+            CryptoUtils key, Page page, byte type) throws Exception {
+        if (p <= 0 || p >= count || page.type != FREE) {
+            throw new Exception("The vault file is damaged (page " + p + ")");
+        }
+        readRaw(channel, p, raw);
+        ByteBuffer plain = open(raw, p, aead, key);
+        if (plain.get() != type) {
+            throw new Exception("The vault file is damaged (page " + p + ")");
+        }
+        page.type = type;
+        page.seal = sealOf(raw);
+        return plain;
+    }
+
+    // The page number, after the vault id in files that have one
+    private byte[] pageAad(int p) {
+        if (vaultId == null) {
+            return ByteBuffer.allocate(8).putLong(p).array();
+        }
+        return ByteBuffer.allocate(16 + 8).putLong(vaultId.getMostSignificantBits())
+                .putLong(vaultId.getLeastSignificantBits()).putLong(p).array();
+    }
+
+    private static byte[] sealOf(byte[] sealed) {
+        byte[] seal = new byte[SEAL_LENGTH];
+        System.arraycopy(sealed, 0, seal, 0, NONCE_LENGTH);
+        System.arraycopy(sealed, sealed.length - TAG_LENGTH, seal, NONCE_LENGTH, TAG_LENGTH);
+        return seal;
+    }
+
+    private static void putKey(ByteBuffer buffer, UUID recordKey) {
+        buffer.putLong(recordKey.getMostSignificantBits());
+        buffer.putLong(recordKey.getLeastSignificantBits());
+    }
+}
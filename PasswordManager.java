@@ -1,34 +1,502 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class PasswordManager {
-    private List<Account> accounts;
-    private String masterPassword;
-    private CryptoUtils cryptoUtils;
+    // One background thread for the auto-saves of every open vault, so at
+    // most one of them writes at a time
+    private static final ScheduledExecutorService AUTO_SAVE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lockbox-autosave");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface AutoSaveListener {
+        // Called on the auto-save thread; error is null if the save succeeded
+        void autoSaved(String filename, Exception error);
+    }
+
+    // Copy-on-write store: readers take the current immutable snapshot without
+    // locking, writers serialize on writeLock and publish a fresh snapshot.
+    private volatile List<Account> accounts;
+    private final Object writeLock = new Object();
+    // Kept in step with the snapshot by every write below
+    private final TagIndex tagIndex = new TagIndex();
+    // Password history retention, applied whenever a password changes
+    private int historyMaxEntries = 10;
+    private long historyMaxAgeMillis = 365L * 24 * 60 * 60 * 1000;
+    // Keyed TOTP generators, built on first use and dropped on lock. Accounts
+    // have identity equality, so an edited account gets a fresh entry.
+    private final Map<Account, Totp> totpCache = Collections.synchronizedMap(new WeakHashMap<>());
+    // Records are Deflate-compressed before encryption unless turned off
+    private boolean compressionEnabled = true;
+    // Layout of the vault file. It remembers what it last read or wrote so
+    // that saves and reloads only touch records that changed, which holds
+    // for this key, cipher and compression setting only. A loaded vault
+    // keeps the layout it was written with.
+    private volatile VaultStorage storage = new LineVaultStorage();
+    // Writes since the last load or save, counted under writeLock
+    private long modCount;
+    private long savedModCount;
+    // The store as last loaded from or saved to disk, the base for merging
+    // changes someone else made to the file; and what the file looked like then
+    private volatile List<Account> syncedAccounts = Collections.emptyList();
+    private VaultWatcher.Fingerprint syncedFingerprint;
+    // Serializes whole-file reads and writes with the on-disk checks
+    private final Object fileLock = new Object();
+    // Auto-save: a burst of writes becomes one save once the store has been
+    // quiet for the delay. At most one check is scheduled at a time; it
+    // reschedules itself while writes keep coming.
+    private final Object autoSaveLock = new Object();
+    private String autoSaveFile;
+    private long autoSaveDelayMillis;
+    private long lastWriteAt;
+    private boolean autoSaveScheduled;
+    private AutoSaveListener autoSaveListener;
+    // Records are encrypted with a random data key (cryptoUtils); the key
+    // derived from the master password only seals that key in the header, so
+    // a new master password means a new header and nothing else. Both are
+    // replaced under fileLock.
+    private volatile CryptoUtils passwordKey;
+    private volatile CryptoUtils cryptoUtils;
+    // The data key sealed with passwordKey, as written to the header
+    private volatile String wrappedKey;
+    // Cipher the next save seals new records with; a loaded vault keeps the
+    // one it was written with
+    private volatile CryptoUtils.Aead cipher = CryptoUtils.Aead.AES_GCM;
+    // The file this manager was loaded from or saved to, absolute; other
+    // files are read without touching what the storage keeps for it
+    private volatile String heldFile;
+    // Set once the key was wiped; nothing is written afterwards
+    private volatile boolean keyDestroyed;
+    // Id the records are bound to, written to the header; a loaded vault
+    // keeps its own, one from before vault ids gets this one on its next save
+    private volatile UUID vaultId = UUID.randomUUID();
 
     public PasswordManager(String masterPassword) {
-        this.masterPassword = masterPassword;
-        this.accounts = new ArrayList<>();
-        this.cryptoUtils = new CryptoUtils(masterPassword);
+        this(SecretBuffer.of(masterPassword));
+    }
+
+    // Copies the characters; the caller wipes its array
+    public PasswordManager(char[] masterPassword) {
+        this(SecretBuffer.of(masterPassword));
+    }
+
+    private PasswordManager(SecretBuffer masterPassword) {
+        this.accounts = Collections.emptyList();
+        this.passwordKey = new CryptoUtils(masterPassword);
+        // Only the derived key is needed from here on
+        masterPassword.wipe();
+        // A new vault gets a new data key; loading a vault takes its key instead
+        this.cryptoUtils = CryptoUtils.generate();
+        this.wrappedKey = wrap(passwordKey, cryptoUtils);
+    }
+
+    private static String wrap(CryptoUtils passwordKey, CryptoUtils dataKey) {
+        try {
+            return Base64.getEncoder().encodeToString(passwordKey.wrap(dataKey));
+        } catch (Exception e) {
+            throw new IllegalStateException("Error sealing the vault key", e);
+        }
+    }
+
+    // True if password is the one this vault is unlocked with
+    public boolean isMasterPassword(char[] password) {
+        CryptoUtils candidate = new CryptoUtils(SecretBuffer.of(password));
+        try {
+            candidate.unwrap(Base64.getDecoder().decode(wrappedKey)).destroy();
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            candidate.destroy();
+        }
+    }
+
+    // Seals the data key with a key derived from newPassword. With a
+    // filename, the vault file is switched over right away by rewriting its
+    // header; the records stay as they are, so this takes the same time for
+    // any vault size and unsaved changes stay unsaved. A file from before
+    // data keys is saved in full once instead.
+    public void changeMasterPassword(char[] newPassword, String filename) throws Exception {
+        synchronized (fileLock) {
+            if (filename != null && hasChangedOnDisk(filename)) {
+                throw new IllegalStateException("The vault was changed by another program, reload it first");
+            }
+            VaultHeader header = filename == null ? null : readHeader(filename);
+            boolean sealedWithDataKey = header != null && wrappedKey.equals(header.get(VaultHeader.KEY, null));
+
+            CryptoUtils newPasswordKey = new CryptoUtils(SecretBuffer.of(newPassword));
+            String rewrapped = wrap(newPasswordKey, cryptoUtils);
+            CryptoUtils oldPasswordKey = passwordKey;
+            passwordKey = newPasswordKey;
+            wrappedKey = rewrapped;
+            oldPasswordKey.destroy();
+
+            if (filename == null) {
+                return;
+            }
+            if (sealedWithDataKey) {
+                header.put(VaultHeader.KEY, rewrapped);
+                storageFor(header).writeHeader(filename, header, cryptoUtils);
+                syncedFingerprint = VaultWatcher.Fingerprint.of(filename);
+            } else {
+                saveToFile(filename);
+            }
+        }
     }
 
     public void addAccount(Account account) {
-        accounts.add(account);
+        synchronized (writeLock) {
+            List<Account> updated = new ArrayList<>(accounts.size() + 1);
+            updated.addAll(accounts);
+            updated.add(account);
+            publish(updated);
+            tagIndex.add(account);
+        }
     }
 
+    public void addAccounts(Collection<Account> newAccounts) {
+        if (newAccounts.isEmpty()) {
+            return;
+        }
+        synchronized (writeLock) {
+            List<Account> updated = new ArrayList<>(accounts.size() + newAccounts.size());
+            updated.addAll(accounts);
+            updated.addAll(newAccounts);
+            publish(updated);
+            for (Account account : newAccounts) {
+                tagIndex.add(account);
+            }
+        }
+    }
+
+    // Replaces an entry in place; returns false if it is no longer in the store.
+    // If the password changed, the stored entry is the replacement with the old
+    // password added to its history, so callers re-read it from getAccounts().
+    public boolean updateAccount(Account existing, Account replacement) {
+        synchronized (writeLock) {
+            int index = accounts.indexOf(existing);
+            if (index < 0) {
+                return false;
+            }
+            if (!existing.samePassword(replacement)) {
+                replacement = withPreviousPassword(existing, replacement);
+            }
+            List<Account> updated = new ArrayList<>(accounts);
+            updated.set(index, replacement);
+            publish(updated);
+            Totp totp = totpCache.remove(existing);
+            if (totp != null && existing.secretTotp().contentEquals(replacement.secretTotp())) {
+                // Same secret, keep the keyed Mac
+                totpCache.put(replacement, totp);
+            }
+            tagIndex.replace(existing, replacement);
+            return true;
+        }
+    }
+
+    public boolean removeAccount(Account account) {
+        synchronized (writeLock) {
+            int index = accounts.indexOf(account);
+            if (index < 0) {
+                return false;
+            }
+            List<Account> updated = new ArrayList<>(accounts);
+            updated.remove(index);
+            publish(updated);
+            totpCache.remove(account);
+            tagIndex.remove(account);
+            return true;
+        }
+    }
+
+    public void replaceAccounts(Collection<Account> newAccounts) {
+        synchronized (writeLock) {
+            publish(new ArrayList<>(newAccounts));
+            tagIndex.rebuild(newAccounts);
+        }
+    }
+
+    // Returns an immutable, consistent snapshot; later writes do not affect it
     public List<Account> getAccounts() {
         return accounts;
     }
 
-    public String generatePassword(int length) {
+    // Returns the cached generator for the account, or null if it has no TOTP
+    public Totp getTotp(Account account) throws GeneralSecurityException {
+        if (account.secretTotp().isEmpty()) {
+            return null;
+        }
+        Totp totp = totpCache.get(account);
+        if (totp == null) {
+            totp = new Totp(account.getTotp());
+            totpCache.put(account, totp);
+        }
+        return totp;
+    }
+
+    // Stops auto-saving, wipes the key, the master password and every
+    // decrypted account and empties the store; flush() first to keep pending
+    // changes. The manager cannot be used afterwards.
+    public void lock() {
+        setAutoSave(null, 0);
+        synchronized (fileLock) {
+            // An auto-save that is already writing finishes first
+            destroyKey();
+            synchronized (writeLock) {
+                Set<Account> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+                stored.addAll(accounts);
+                stored.addAll(syncedAccounts);
+                for (Account account : stored) {
+                    account.wipe();
+                }
+                publish(new ArrayList<>());
+                tagIndex.rebuild(Collections.emptyList());
+                markSynced(accounts, modCount);
+            }
+            storage.invalidate();
+        }
+    }
+
+    // Stops auto-saving and wipes the key material but leaves the accounts
+    // alone, for when another manager takes them over. Waits for a save that
+    // is already writing, which still needs the key.
+    public void destroyKey() {
+        setAutoSave(null, 0);
+        synchronized (fileLock) {
+            keyDestroyed = true;
+            totpCache.clear();
+            cryptoUtils.destroy();
+            passwordKey.destroy();
+        }
+    }
+
+    // Saves to filename in the background once no write happened for
+    // delayMillis; a null filename turns auto-save off
+    public void setAutoSave(String filename, long delayMillis) {
+        synchronized (autoSaveLock) {
+            autoSaveFile = filename;
+            autoSaveDelayMillis = Math.max(0, delayMillis);
+        }
+        scheduleAutoSave(false);
+    }
+
+    public void setAutoSaveListener(AutoSaveListener listener) {
+        synchronized (autoSaveLock) {
+            autoSaveListener = listener;
+        }
+    }
+
+    public boolean isAutoSaveEnabled() {
+        synchronized (autoSaveLock) {
+            return autoSaveFile != null;
+        }
+    }
+
+    // Writes pending changes to the auto-save file now, on the calling
+    // thread, e.g. before locking or exiting. Waits for a background save
+    // that is already running.
+    public void flush() throws Exception {
+        String filename;
+        synchronized (autoSaveLock) {
+            filename = autoSaveFile;
+        }
+        if (filename != null && isDirty()) {
+            saveToFile(filename);
+        }
+    }
+
+    private void scheduleAutoSave(boolean written) {
+        synchronized (autoSaveLock) {
+            if (written) {
+                lastWriteAt = System.currentTimeMillis();
+            }
+            if (autoSaveFile != null && !autoSaveScheduled) {
+                autoSaveScheduled = true;
+                AUTO_SAVE.schedule(this::autoSave, autoSaveDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void autoSave() {
+        String filename;
+        AutoSaveListener listener;
+        synchronized (autoSaveLock) {
+            if (autoSaveFile == null) {
+                autoSaveScheduled = false;
+                return;
+            }
+            long quiet = System.currentTimeMillis() - lastWriteAt;
+            if (quiet < autoSaveDelayMillis) {
+                AUTO_SAVE.schedule(this::autoSave, autoSaveDelayMillis - quiet, TimeUnit.MILLISECONDS);
+                return;
+            }
+            autoSaveScheduled = false;
+            filename = autoSaveFile;
+            listener = autoSaveListener;
+        }
+        // Someone else wrote the file; it is saved again once their change
+        // has been merged or ignored
+        if (!isDirty() || hasChangedOnDisk(filename)) {
+            return;
+        }
+        Exception error = null;
+        try {
+            saveToFile(filename);
+        } catch (Exception e) {
+            error = e;
+        }
+        if (listener != null) {
+            listener.autoSaved(filename, error);
+        }
+    }
+
+    // For a new vault; an existing one is switched with changeCipher
+    public void setCipher(CryptoUtils.Aead cipher) {
+        if (this.cipher != cipher) {
+            storage.invalidate();
+        }
+        this.cipher = cipher;
+    }
+
+    public CryptoUtils.Aead getCipher() {
+        return cipher;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        if (this.compressionEnabled != compressionEnabled) {
+            storage.invalidate();
+        }
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    // For a new vault: one record per line, or fixed-size pages that a save
+    // rewrites only where records changed. A loaded vault keeps its layout.
+    public void setPagedStorage(boolean paged) {
+        String name = paged ? PagedVaultStorage.NAME : LineVaultStorage.NAME;
+        if (!storage.getName().equals(name)) {
+            storage = newStorage(name);
+        }
+    }
+
+    public boolean isPagedStorage() {
+        return storage.getName().equals(PagedVaultStorage.NAME);
+    }
+
+    // True if the store was written since it was last loaded or saved
+    public boolean isDirty() {
+        synchronized (writeLock) {
+            return modCount != savedModCount;
+        }
+    }
+
+    // The accounts as they were last loaded from or saved to disk
+    public List<Account> getSyncedAccounts() {
+        return syncedAccounts;
+    }
+
+    // True if the file no longer is what this manager last loaded, saved or
+    // adopted, i.e. someone else wrote it since
+    public boolean hasChangedOnDisk(String filename) {
+        synchronized (fileLock) {
+            return !Objects.equals(VaultWatcher.Fingerprint.of(filename), syncedFingerprint);
+        }
+    }
+
+    // Takes the file as it is on disk as the new sync base without changing
+    // the store, for merging it with unsaved local edits; returns its accounts
+    public List<Account> adoptDiskVersion(String filename) throws Exception {
+        synchronized (fileLock) {
+            VaultWatcher.Fingerprint fingerprint = VaultWatcher.Fingerprint.of(filename);
+            heldFile = absolute(filename);
+            List<Account> onDisk = readAccounts(filename);
+            syncedAccounts = Collections.unmodifiableList(onDisk);
+            syncedFingerprint = fingerprint;
+            return onDisk;
+        }
+    }
+
+    // Accepts the current file without reading it; the next save overwrites it
+    public void ignoreDiskVersion(String filename) {
+        synchronized (fileLock) {
+            syncedFingerprint = VaultWatcher.Fingerprint.of(filename);
+        }
+        // An auto-save held back by the external change can go ahead now
+        scheduleAutoSave(false);
+    }
+
+    // maxAgeDays of 0 keeps entries regardless of age
+    public void setHistoryRetention(int maxEntries, int maxAgeDays) {
+        this.historyMaxEntries = Math.max(0, maxEntries);
+        this.historyMaxAgeMillis = maxAgeDays > 0 ? maxAgeDays * 24L * 60 * 60 * 1000 : 0;
+    }
+
+    private Account withPreviousPassword(Account existing, Account replacement) {
+        long now = System.currentTimeMillis();
+        List<Account.HistoryEntry> history = new ArrayList<>();
+        history.add(new Account.HistoryEntry(existing.secretPassword(), now));
+        history.addAll(replacement.getPasswordHistory());
+
+        List<Account.HistoryEntry> retained = new ArrayList<>();
+        for (Account.HistoryEntry entry : history) {
+            if (retained.size() >= historyMaxEntries) {
+                break;
+            }
+            if (historyMaxAgeMillis > 0 && now - entry.getChangedAt() > historyMaxAgeMillis) {
+                continue;
+            }
+            // A restored password is current again, not history
+            if (!entry.secretPassword().contentEquals(replacement.secretPassword())) {
+                retained.add(entry);
+            }
+        }
+        return replacement.toBuilder().passwordHistory(retained).build();
+    }
+
+    // Accounts whose tags satisfy a filter such as "team-a AND prod AND NOT legacy";
+    // throws IllegalArgumentException for a malformed filter
+    public Set<Account> selectByTags(String tagFilter) {
+        return tagIndex.select(tagFilter);
+    }
+
+    public List<String> getTags() {
+        return tagIndex.getTags();
+    }
+
+    private void publish(List<Account> updated) {
+        accounts = Collections.unmodifiableList(updated);
+        modCount++;
+        scheduleAutoSave(true);
+    }
+
+    // Caller holds writeLock
+    private void markSynced(List<Account> snapshot, long snapshotModCount) {
+        savedModCount = snapshotModCount;
+        syncedAccounts = snapshot;
+    }
+
+    public static String generatePassword(int length) {
         if (length < 8) {
             length = 8;
         }
@@ -66,52 +534,389 @@ public class PasswordManager {
     }
 
     public void saveToFile(String filename) throws Exception {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            for (Account account : accounts) {
-                String plainText = account.toDataString();
-                String encrypted = cryptoUtils.encrypt(plainText);
-                writer.write(encrypted);
-                writer.newLine();
+        synchronized (fileLock) {
+            // An auto-save that was waiting for the lock would write an empty vault
+            if (keyDestroyed) {
+                throw new IllegalStateException("The vault is locked");
+            }
+            List<Account> snapshot;
+            long snapshotModCount;
+            synchronized (writeLock) {
+                snapshot = accounts;
+                snapshotModCount = modCount;
             }
+            writeVault(filename, snapshot);
+            heldFile = absolute(filename);
+            synchronized (writeLock) {
+                markSynced(snapshot, snapshotModCount);
+            }
+            syncedFingerprint = VaultWatcher.Fingerprint.of(filename);
+        }
+    }
+
+    private void writeVault(String filename, List<Account> snapshot) throws Exception {
+        storage.write(filename, newHeader(), snapshot, cryptoUtils);
+    }
+
+    private VaultHeader newHeader() {
+        VaultHeader header = new VaultHeader(VaultHeader.CURRENT_VERSION);
+        if (compressionEnabled) {
+            header.put(VaultHeader.COMPRESSION, RecordCompressor.NAME);
+        }
+        header.put(VaultHeader.CIPHER, cipher.getId());
+        header.put(VaultHeader.KEY, wrappedKey);
+        header.put(VaultHeader.VAULT, vaultId.toString());
+        return header;
+    }
+
+    // Where savePending keeps the unsaved changes of a vault
+    public static String pendingFileFor(String filename) {
+        return filename + ".pending";
+    }
+
+    // Seals the current accounts with the vault key into a file next to the
+    // vault, e.g. for a lock that cannot wait for the user to decide about
+    // unsaved changes. The vault and what this manager holds stay as they are.
+    public void savePending(String filename) throws Exception {
+        synchronized (fileLock) {
+            if (keyDestroyed) {
+                throw new IllegalStateException("The vault is locked");
+            }
+            List<Account> snapshot;
+            synchronized (writeLock) {
+                snapshot = accounts;
+            }
+            new LineVaultStorage().write(pendingFileFor(filename), newHeader(), snapshot, cryptoUtils);
         }
     }
 
+    // The accounts savePending kept for filename, or null if there are none
+    public List<Account> readPending(String filename) throws Exception {
+        String pending = pendingFileFor(filename);
+        return Files.exists(Paths.get(pending)) ? readAccounts(pending) : null;
+    }
+
+    public static void discardPending(String filename) throws IOException {
+        Files.deleteIfExists(Paths.get(pendingFileFor(filename)));
+    }
+
     public void loadFromFile(String filename) throws Exception {
-        accounts.clear();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                try {
-                    String decrypted = cryptoUtils.decrypt(line);
-                    Account account = Account.fromString(decrypted);
-                    accounts.add(account);
-                } catch (Exception e) {
-                    throw new Exception("Failed to decrypt data. Incorrect master password or corrupted file.");
+        synchronized (fileLock) {
+            VaultWatcher.Fingerprint fingerprint = VaultWatcher.Fingerprint.of(filename);
+            VaultHeader header = readHeader(filename);
+            adoptStorage(header);
+            setCipher(cipherOf(header));
+            adoptDataKey(header);
+            adoptVaultId(header);
+            heldFile = absolute(filename);
+            List<Account> loaded = readAccounts(filename);
+            synchronized (writeLock) {
+                replaceAccounts(loaded);
+                markSynced(accounts, modCount);
+            }
+            syncedFingerprint = fingerprint;
+        }
+    }
+
+    // What an incremental reload changed in the store
+    public static class Reload {
+        private final List<Account> added = new ArrayList<>();
+        private final List<Account> removed = new ArrayList<>();
+        private final Map<Account, Account> changed = new LinkedHashMap<>();
+
+        public List<Account> getAdded() {
+            return added;
+        }
+
+        public List<Account> getRemoved() {
+            return removed;
+        }
+
+        // Previous entry to the one that replaced it
+        public Map<Account, Account> getChanged() {
+            return changed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+    }
+
+    // Brings a store without unsaved edits up to date with its file after
+    // someone else wrote it. Records whose encrypted line is unchanged keep
+    // their Account and are not decrypted again; entries are matched by id,
+    // keep their place in the store and new ones go to the end.
+    public Reload reloadChanged(String filename) throws Exception {
+        synchronized (fileLock) {
+            VaultWatcher.Fingerprint fingerprint = VaultWatcher.Fingerprint.of(filename);
+            // Another copy may have switched the cipher or the key; follow it
+            VaultHeader header = readHeader(filename);
+            adoptStorage(header);
+            setCipher(cipherOf(header));
+            adoptDataKey(header);
+            adoptVaultId(header);
+            heldFile = absolute(filename);
+            List<Account> onDisk = readVault(filename);
+
+            Reload reload = new Reload();
+            synchronized (writeLock) {
+                if (modCount != savedModCount) {
+                    throw new IllegalStateException("The vault has unsaved changes, merge them instead");
+                }
+                Map<UUID, Account> diskById = new LinkedHashMap<>(onDisk.size() * 2);
+                for (Account account : onDisk) {
+                    diskById.put(account.getId(), account);
+                }
+                List<Account> updated = new ArrayList<>(onDisk.size());
+                for (Account current : accounts) {
+                    Account disk = diskById.remove(current.getId());
+                    if (disk == null) {
+                        reload.removed.add(current);
+                    } else {
+                        updated.add(disk);
+                        if (disk != current) {
+                            reload.changed.put(current, disk);
+                        }
+                    }
                 }
+                reload.added.addAll(diskById.values());
+                updated.addAll(reload.added);
+
+                if (!reload.isEmpty()) {
+                    publish(updated);
+                    for (Account account : reload.removed) {
+                        totpCache.remove(account);
+                        tagIndex.remove(account);
+                    }
+                    for (Map.Entry<Account, Account> entry : reload.changed.entrySet()) {
+                        totpCache.remove(entry.getKey());
+                        tagIndex.replace(entry.getKey(), entry.getValue());
+                    }
+                    for (Account account : reload.added) {
+                        tagIndex.add(account);
+                    }
+                }
+                markSynced(accounts, modCount);
             }
-            
-            // Sort accounts by website name for better organization
-            sortAccountsByWebsite();
+            syncedFingerprint = fingerprint;
+            return reload;
+        }
+    }
+
+    // The entries of a vault file for a website (and username, if not null)
+    // read through the file's index, decrypting only the records found;
+    // null if the file has no usable index and has to be loaded instead.
+    // Case is ignored as in equalsIgnoreCase, but the match is loose, so
+    // callers compare the entries they get. The store is not touched.
+    public List<Account> findInFile(String filename, String website, String username) throws Exception {
+        synchronized (fileLock) {
+            VaultHeader header = readHeader(filename);
+            CryptoUtils recordKey = recordKey(header);
+            try {
+                return storageFor(header).find(filename, header, recordKey, website, username);
+            } finally {
+                if (recordKey != cryptoUtils && recordKey != passwordKey) {
+                    recordKey.destroy();
+                }
+            }
+        }
+    }
+
+    // Decrypts a vault file with this manager's key without touching the
+    // store, e.g. to merge another copy of the vault; sorted by website
+    public List<Account> readAccounts(String filename) throws Exception {
+        List<Account> loaded = readVault(filename);
+        // Sort accounts by website name for better organization
+        loaded.sort(Comparator.comparing(Account::getWebsite, String.CASE_INSENSITIVE_ORDER));
+        return loaded;
+    }
+
+    // Accounts in file order. Records the storage still knows from the
+    // last read or write come back as the same Account without being
+    // decrypted again.
+    private List<Account> readVault(String filename) throws Exception {
+        VaultHeader header = readHeader(filename);
+        VaultStorage reader = absolute(filename).equals(heldFile) ? storageFor(header) : otherStorage(header);
+        CryptoUtils recordKey = recordKey(header);
+        try {
+            List<Account> loaded = reader.read(filename, header, recordKey);
+            // What was read can be written back as it is only in the format a save would use
+            boolean reusable = reader == storage && header != null
+                    && header.get(VaultHeader.COMPRESSION, "none").equals(RecordCompressor.NAME) == compressionEnabled
+                    && cipherOf(header) == cipher && recordKey == cryptoUtils
+                    && vaultId.equals(header.getVaultId());
+            if (!reusable) {
+                reader.invalidate();
+            }
+            return loaded;
+        } finally {
+            if (recordKey != cryptoUtils && recordKey != passwordKey) {
+                recordKey.destroy();
+            }
+        }
+    }
+
+    // The storage for a file with this header: ours if the layout matches
+    private VaultStorage storageFor(VaultHeader header) {
+        String name = header == null ? LineVaultStorage.NAME : header.get(VaultHeader.STORAGE, LineVaultStorage.NAME);
+        return storage.getName().equals(name) ? storage : newStorage(name);
+    }
+
+    private static VaultStorage newStorage(String name) {
+        return name.equals(PagedVaultStorage.NAME) ? new PagedVaultStorage() : new LineVaultStorage();
+    }
+
+    // A storage for reading some other file, e.g. a copy to merge with; it
+    // keeps no index next to it
+    private static VaultStorage otherStorage(VaultHeader header) throws Exception {
+        String name = header == null ? LineVaultStorage.NAME : header.get(VaultHeader.STORAGE, LineVaultStorage.NAME);
+        if (name.equals(PagedVaultStorage.NAME)) {
+            return new PagedVaultStorage(false);
+        }
+        if (!name.equals(LineVaultStorage.NAME)) {
+            throw new Exception("Unsupported vault storage: " + name);
+        }
+        return new LineVaultStorage();
+    }
+
+    private static String absolute(String filename) {
+        return Paths.get(filename).toAbsolutePath().normalize().toString();
+    }
+
+    // Switches to the layout of a file this manager is about to hold.
+    // Caller holds fileLock.
+    private void adoptStorage(VaultHeader header) throws Exception {
+        String name = header == null ? LineVaultStorage.NAME : header.get(VaultHeader.STORAGE, LineVaultStorage.NAME);
+        if (!name.equals(LineVaultStorage.NAME) && !name.equals(PagedVaultStorage.NAME)) {
+            throw new Exception("Unsupported vault storage: " + name);
+        }
+        storage = storageFor(header);
+    }
+
+    // null for a file in the original format without a header
+    private static VaultHeader readHeader(String filename) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line = reader.readLine();
+            return VaultHeader.isHeader(line) ? VaultHeader.parse(line) : null;
         } catch (IOException e) {
             throw new Exception("Error reading file: " + e.getMessage());
         }
     }
-    
+
+    // The key the records of a file with this header are encrypted with: the
+    // data key in the header, or the key derived from the master password in
+    // files from before data keys. A data key other than this manager's is
+    // unsealed for the caller, who destroys it.
+    private CryptoUtils recordKey(VaultHeader header) throws Exception {
+        String key = header == null ? null : header.get(VaultHeader.KEY, null);
+        if (key == null) {
+            return passwordKey;
+        }
+        if (key.equals(wrappedKey)) {
+            return cryptoUtils;
+        }
+        try {
+            return passwordKey.unwrap(Base64.getDecoder().decode(key));
+        } catch (Exception e) {
+            throw new Exception("Failed to decrypt data. Incorrect master password or corrupted file.");
+        }
+    }
+
+    // Takes over the data key of a file whose records this manager is about
+    // to hold; records sealed with the old key cannot be written back as
+    // they are. Caller holds fileLock.
+    private void adoptDataKey(VaultHeader header) throws Exception {
+        String key = header == null ? null : header.get(VaultHeader.KEY, null);
+        if (key == null || key.equals(wrappedKey)) {
+            return;
+        }
+        CryptoUtils dataKey = recordKey(header);
+        CryptoUtils previous = cryptoUtils;
+        cryptoUtils = dataKey;
+        wrappedKey = key;
+        storage.invalidate();
+        previous.destroy();
+    }
+
+    // Takes over the vault id of a file this manager is about to hold, so
+    // that its records can be written back as they are. Caller holds fileLock.
+    private void adoptVaultId(VaultHeader header) throws Exception {
+        UUID id = header == null ? null : header.getVaultId();
+        if (id == null || id.equals(vaultId)) {
+            return;
+        }
+        vaultId = id;
+        storage.invalidate();
+    }
+
+    private static CryptoUtils.Aead cipherOf(VaultHeader header) throws Exception {
+        return header == null ? CryptoUtils.Aead.AES_GCM : header.getCipher();
+    }
+
+    // Re-encrypts the vault file with another cipher, one record or page at
+    // a time into a temporary file that then replaces the vault. Records are
+    // never decoded and memory use does not grow with the vault. Unsaved
+    // changes are saved first.
+    public void changeCipher(String filename, CryptoUtils.Aead target) throws Exception {
+        synchronized (fileLock) {
+            if (hasChangedOnDisk(filename)) {
+                throw new IllegalStateException("The vault was changed by another program, reload it first");
+            }
+            if (isDirty()) {
+                saveToFile(filename);
+            }
+            VaultHeader header = readHeader(filename);
+            if (header == null || !wrappedKey.equals(header.get(VaultHeader.KEY, null))) {
+                // Files from before data keys are rewritten completely anyway
+                setCipher(target);
+                saveToFile(filename);
+                return;
+            }
+            CryptoUtils.Aead source = cipherOf(header);
+            if (source == target) {
+                setCipher(target);
+                return;
+            }
+
+            storageFor(header).reencrypt(filename, header, cryptoUtils, target);
+            // The storage resealed what it knows, so nothing is invalidated
+            cipher = target;
+            syncedFingerprint = VaultWatcher.Fingerprint.of(filename);
+        }
+    }
+
     public void sortAccountsByWebsite() {
-        Collections.sort(accounts, Comparator.comparing(Account::getWebsite, String.CASE_INSENSITIVE_ORDER));
+        synchronized (writeLock) {
+            List<Account> sorted = new ArrayList<>(accounts);
+            sorted.sort(Comparator.comparing(Account::getWebsite, String.CASE_INSENSITIVE_ORDER));
+            publish(sorted);
+        }
     }
     
     public List<Account> searchAccounts(String searchTerm) {
         List<Account> results = new ArrayList<>();
         String lowerSearchTerm = searchTerm.toLowerCase();
         
-        for (Account account : accounts) {
-            if (account.getWebsite().toLowerCase().contains(lowerSearchTerm) ||
-                account.getUsername().toLowerCase().contains(lowerSearchTerm)) {
+        for (Account account : getAccounts()) {
+            if (matches(account, lowerSearchTerm)) {
                 results.add(account);
             }
         }
         
         return results;
     }
+    
+    // Only looks at hot fields, so searching never decodes notes or custom fields
+    public static boolean matches(Account account, String lowerSearchTerm) {
+        if (account.getWebsite().toLowerCase().contains(lowerSearchTerm) ||
+            account.getUsername().toLowerCase().contains(lowerSearchTerm)) {
+            return true;
+        }
+        for (String tag : account.getTags()) {
+            if (tag.toLowerCase().contains(lowerSearchTerm)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
\ No newline at end of file
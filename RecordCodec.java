@@ -0,0 +1,416 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Binary encoding of a single Account:
+//
+//   record := fieldCount:u16 { length:u32 bytes }*
+//
+// Fields are positional. Decoders ignore fields past the ones they know and
+// treat missing trailing fields as empty, so new optional fields can be
+// appended without breaking older vaults or older readers. Encoding writes
+// UTF-8 straight into the target buffer and decoding reads straight out of
+// it, so the only allocations are the Strings of the resulting Account.
+//
+// The id is 16 bytes, most significant half first.
+//
+// Strings are UTF-8, lists are count:u16 { length:u32 utf8 }*, timestamps are
+// 8-byte millis. The cold field is itself a record (notes, urls, custom
+// fields as alternating keys and values, password history, TOTP, attachments)
+// and is kept encoded until needed. History entries are list items holding
+// changedAt:u64 followed by the UTF-8 password; attachments are list items
+// holding hash[32] key[32] size:u64 followed by the UTF-8 file name.
+public final class RecordCodec {
+    static final int FIELD_WEBSITE = 0;
+    static final int FIELD_USERNAME = 1;
+    static final int FIELD_PASSWORD = 2;
+    static final int FIELD_TAGS = 3;
+    static final int FIELD_CREATED = 4;
+    static final int FIELD_MODIFIED = 5;
+    static final int FIELD_LAST_USED = 6;
+    static final int FIELD_COLD = 7;
+    static final int FIELD_ID = 8;
+    static final int FIELD_COUNT = 9;
+
+    static final int COLD_NOTES = 0;
+    static final int COLD_URLS = 1;
+    static final int COLD_CUSTOM_FIELDS = 2;
+    static final int COLD_HISTORY = 3;
+    static final int COLD_TOTP = 4;
+    static final int COLD_ATTACHMENTS = 5;
+    static final int COLD_FIELD_COUNT = 6;
+
+    private static final int ATTACHMENT_FIXED_SIZE = 32 + 32 + 8;
+    // Lists are counted in an unsigned 16-bit field
+    private static final int MAX_COUNT = 0xFFFF;
+
+    private RecordCodec() {
+    }
+
+    // Upper bound of the encoded size, for sizing buffers
+    public static int maxEncodedSize(Account account) {
+        int size = 2 + 4 * FIELD_COUNT + 3 * 8 + 16
+                + 3 * (account.getWebsite().length() + account.getUsername().length()) + account.secretPassword().length()
+                + maxListSize(account.getTags());
+        byte[] coldData = account.getColdData();
+        if (coldData != null) {
+            size += coldData.length;
+        } else {
+            Account.Cold cold = account.cold();
+            size += 2 + 4 * COLD_FIELD_COUNT + 3 * cold.notes.length() + maxListSize(cold.urls)
+                    + 2 + 8 * cold.customFields.size();
+            for (Map.Entry<String, String> entry : cold.customFields.entrySet()) {
+                size += 3 * (entry.getKey().length() + entry.getValue().length());
+            }
+            size += 4 + cold.totp.length();
+            for (Account.HistoryEntry entry : cold.history) {
+                size += 4 + 8 + entry.secretPassword().length();
+            }
+            size += 2;
+            for (Account.Attachment attachment : cold.attachments) {
+                size += 4 + ATTACHMENT_FIXED_SIZE + 3 * attachment.getName().length();
+            }
+        }
+        return size;
+    }
+
+    // Throws IllegalArgumentException for an entry whose lists do not fit
+    // the format's 16-bit counts, before anything is written
+    public static void encode(Account account, ByteBuffer buffer) {
+        checkCount(account.getTags().size(), MAX_COUNT, "tags");
+        if (account.getColdData() == null) {
+            Account.Cold cold = account.cold();
+            checkCount(cold.urls.size(), MAX_COUNT, "URLs");
+            // Keys and values are counted separately
+            checkCount(cold.customFields.size(), MAX_COUNT / 2, "custom fields");
+            checkCount(cold.history.size(), MAX_COUNT, "password history entries");
+            checkCount(cold.attachments.size(), MAX_COUNT, "attachments");
+        }
+        buffer.putShort((short) FIELD_COUNT);
+        putField(buffer, account.getWebsite());
+        putField(buffer, account.getUsername());
+        // Straight from off-heap memory into the record buffer
+        buffer.putInt(account.secretPassword().length());
+        account.secretPassword().copyTo(buffer);
+        putListField(buffer, account.getTags());
+        putLongField(buffer, account.getCreated());
+        putLongField(buffer, account.getModified());
+        putLongField(buffer, account.getLastUsed());
+
+        byte[] coldData = account.getColdData();
+        if (coldData != null) {
+            // Untouched since load, write the bytes back without decoding them
+            buffer.putInt(coldData.length);
+            buffer.put(coldData);
+        } else {
+            int lengthPosition = buffer.position();
+            buffer.putInt(0);
+            encodeCold(account.cold(), buffer);
+            buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+        }
+
+        buffer.putInt(16);
+        buffer.putLong(account.getId().getMostSignificantBits());
+        buffer.putLong(account.getId().getLeastSignificantBits());
+    }
+
+    // Encodes account into buffer, or into a larger one if it does not fit,
+    // and returns the buffer holding the record ready to read
+    public static ByteBuffer encodeReusing(Account account, ByteBuffer buffer) {
+        int needed = maxEncodedSize(account);
+        if (buffer.capacity() < needed) {
+            Arrays.fill(buffer.array(), (byte) 0);
+            buffer = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        encode(account, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static Account decode(ByteBuffer buffer) {
+        int fieldCount = buffer.getShort() & 0xFFFF;
+        // Records from before timestamps existed have unknown (zero) times, and
+        // records from before ids existed get a content-derived id on build()
+        Account.Builder builder = Account.builder().id(null).created(0).modified(0);
+        for (int i = 0; i < fieldCount; i++) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid account record");
+            }
+            switch (i) {
+                case FIELD_WEBSITE:
+                    builder.website(getString(buffer, length));
+                    break;
+                case FIELD_USERNAME:
+                    builder.username(getString(buffer, length));
+                    break;
+                case FIELD_PASSWORD:
+                    builder.password(SecretBuffer.copyOf(buffer, length));
+                    break;
+                case FIELD_TAGS:
+                    builder.tags(getList(buffer, length));
+                    break;
+                case FIELD_CREATED:
+                    builder.created(getLong(buffer, length));
+                    break;
+                case FIELD_MODIFIED:
+                    builder.modified(getLong(buffer, length));
+                    break;
+                case FIELD_LAST_USED:
+                    builder.lastUsed(getLong(buffer, length));
+                    break;
+                case FIELD_COLD:
+                    byte[] coldData = new byte[length];
+                    buffer.get(coldData);
+                    builder.coldData(coldData);
+                    break;
+                case FIELD_ID:
+                    if (length == 16) {
+                        builder.id(new UUID(buffer.getLong(), buffer.getLong()));
+                    } else {
+                        buffer.position(buffer.position() + length);
+                    }
+                    break;
+                default:
+                    // Written by a newer version, skip it
+                    buffer.position(buffer.position() + length);
+            }
+        }
+        return builder.build();
+    }
+
+    static void encodeCold(Account.Cold cold, ByteBuffer buffer) {
+        buffer.putShort((short) COLD_FIELD_COUNT);
+        putField(buffer, cold.notes);
+        putListField(buffer, cold.urls);
+
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.putShort((short) (cold.customFields.size() * 2));
+        for (Map.Entry<String, String> entry : cold.customFields.entrySet()) {
+            putField(buffer, entry.getKey());
+            putField(buffer, entry.getValue());
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+
+        lengthPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.putShort((short) cold.history.size());
+        for (Account.HistoryEntry entry : cold.history) {
+            int entryPosition = buffer.position();
+            buffer.putInt(0);
+            buffer.putLong(entry.getChangedAt());
+            entry.secretPassword().copyTo(buffer);
+            buffer.putInt(entryPosition, buffer.position() - entryPosition - 4);
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+
+        buffer.putInt(cold.totp.length());
+        cold.totp.copyTo(buffer);
+
+        lengthPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.putShort((short) cold.attachments.size());
+        for (Account.Attachment attachment : cold.attachments) {
+            int entryPosition = buffer.position();
+            buffer.putInt(0);
+            buffer.put(attachment.hashBytes());
+            buffer.put(attachment.key());
+            buffer.putLong(attachment.getSize());
+            putUtf8(buffer, attachment.getName());
+            buffer.putInt(entryPosition, buffer.position() - entryPosition - 4);
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    static Account.Cold decodeCold(byte[] data) {
+        if (data == null || data.length == 0) {
+            return Account.Cold.EMPTY;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int fieldCount = buffer.getShort() & 0xFFFF;
+        String notes = "";
+        List<String> urls = Collections.emptyList();
+        Map<String, String> customFields = Collections.emptyMap();
+        List<Account.HistoryEntry> history = Collections.emptyList();
+        SecretBuffer totp = SecretBuffer.EMPTY;
+        List<Account.Attachment> attachments = Collections.emptyList();
+        for (int i = 0; i < fieldCount; i++) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid account record");
+            }
+            switch (i) {
+                case COLD_NOTES:
+                    notes = getString(buffer, length);
+                    break;
+                case COLD_URLS:
+                    urls = Collections.unmodifiableList(getList(buffer, length));
+                    break;
+                case COLD_CUSTOM_FIELDS:
+                    List<String> pairs = getList(buffer, length);
+                    Map<String, String> fields = new LinkedHashMap<>();
+                    for (int p = 0; p + 1 < pairs.size(); p += 2) {
+                        fields.put(pairs.get(p), pairs.get(p + 1));
+                    }
+                    customFields = Collections.unmodifiableMap(fields);
+                    break;
+                case COLD_HISTORY:
+                    history = Collections.unmodifiableList(getHistory(buffer, length));
+                    break;
+                case COLD_TOTP:
+                    totp = SecretBuffer.copyOf(buffer, length);
+                    break;
+                case COLD_ATTACHMENTS:
+                    attachments = Collections.unmodifiableList(getAttachments(buffer, length));
+                    break;
+                default:
+                    buffer.position(buffer.position() + length);
+            }
+        }
+        return new Account.Cold(notes, urls, customFields, history, totp, attachments);
+    }
+
+    private static List<Account.Attachment> getAttachments(ByteBuffer buffer, int length) {
+        int end = buffer.position() + length;
+        int count = buffer.getShort() & 0xFFFF;
+        List<Account.Attachment> attachments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int entryLength = buffer.getInt();
+            if (entryLength < ATTACHMENT_FIXED_SIZE || buffer.position() + entryLength > end) {
+                throw new IllegalArgumentException("Invalid account record");
+            }
+            byte[] hash = new byte[32];
+            byte[] key = new byte[32];
+            buffer.get(hash);
+            buffer.get(key);
+            long size = buffer.getLong();
+            String name = getString(buffer, entryLength - ATTACHMENT_FIXED_SIZE);
+            attachments.add(new Account.Attachment(name, hash, size, key));
+        }
+        buffer.position(end);
+        return attachments;
+    }
+
+    private static List<Account.HistoryEntry> getHistory(ByteBuffer buffer, int length) {
+        int end = buffer.position() + length;
+        int count = buffer.getShort() & 0xFFFF;
+        List<Account.HistoryEntry> history = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int entryLength = buffer.getInt();
+            if (entryLength < 8 || buffer.position() + entryLength > end) {
+                throw new IllegalArgumentException("Invalid account record");
+            }
+            long changedAt = buffer.getLong();
+            history.add(new Account.HistoryEntry(SecretBuffer.copyOf(buffer, entryLength - 8), changedAt));
+        }
+        buffer.position(end);
+        return history;
+    }
+
+    private static int maxListSize(List<String> values) {
+        int size = 2 + 4 * values.size();
+        for (String value : values) {
+            size += 3 * value.length();
+        }
+        return size;
+    }
+
+    private static void checkCount(int count, int max, String what) {
+        if (count > max) {
+            throw new IllegalArgumentException("An entry cannot have more than " + max + " " + what
+                    + " (has " + count + ")");
+        }
+    }
+
+    static void putField(ByteBuffer buffer, String value) {
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        putUtf8(buffer, value);
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    static void putListField(ByteBuffer buffer, List<String> values) {
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.putShort((short) values.size());
+        for (String value : values) {
+            putField(buffer, value);
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    static void putLongField(ByteBuffer buffer, long value) {
+        buffer.putInt(8);
+        buffer.putLong(value);
+    }
+
+    static long getLong(ByteBuffer buffer, int length) {
+        if (length != 8) {
+            buffer.position(buffer.position() + length);
+            return 0;
+        }
+        return buffer.getLong();
+    }
+
+    static List<String> getList(ByteBuffer buffer, int length) {
+        int end = buffer.position() + length;
+        int count = buffer.getShort() & 0xFFFF;
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int itemLength = buffer.getInt();
+            if (itemLength < 0 || buffer.position() + itemLength > end) {
+                throw new IllegalArgumentException("Invalid account record");
+            }
+            values.add(getString(buffer, itemLength));
+        }
+        buffer.position(end);
+        return values;
+    }
+
+    static String getString(ByteBuffer buffer, int length) {
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static void putUtf8(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, same replacement String.getBytes would use
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
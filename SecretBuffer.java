@@ -0,0 +1,220 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Secret bytes (UTF-8 text or key material) kept outside the Java heap: the
+// garbage collector never copies them around, they are not part of a heap
+// dump and wipe() really overwrites them. Small secrets are carved out of
+// shared 64 KiB direct slabs instead of paying for a direct buffer each; a
+// slab is released once every secret in it is gone. A secret that becomes
+// unreachable without being wiped is wiped by a Cleaner.
+//
+// Reading a wiped secret throws IllegalStateException; that is a use after
+// lock, not something to recover from.
+public final class SecretBuffer {
+    public static final SecretBuffer EMPTY = new SecretBuffer(0);
+
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static ByteBuffer slab;
+
+    private final ByteBuffer memory;
+    private final Cleaner.Cleanable cleanable;
+    private volatile boolean wiped;
+
+    private SecretBuffer(int length) {
+        this.memory = allocate(length);
+        this.cleanable = length == 0 ? null : CLEANER.register(this, new Wipe(memory));
+    }
+
+    // Must not refer to the SecretBuffer, or it would never become unreachable
+    private static final class Wipe implements Runnable {
+        private final ByteBuffer memory;
+
+        Wipe(ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < memory.capacity(); i++) {
+                memory.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private static synchronized ByteBuffer allocate(int length) {
+        if (length == 0) {
+            return ByteBuffer.allocateDirect(0);
+        }
+        if (length > SLAB_SIZE / 4) {
+            return ByteBuffer.allocateDirect(length);
+        }
+        if (slab == null || slab.remaining() < length) {
+            slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+        ByteBuffer memory = slab.slice(slab.position(), length);
+        slab.position(slab.position() + length);
+        return memory;
+    }
+
+    // The caller still owns chars and should wipe it
+    public static SecretBuffer of(char[] chars) {
+        if (chars.length == 0) {
+            return EMPTY;
+        }
+        SecretBuffer secret = new SecretBuffer(utf8Length(chars));
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder.encode(CharBuffer.wrap(chars), secret.memory.duplicate(), true);
+        encoder.flush(secret.memory.duplicate());
+        return secret;
+    }
+
+    // For secrets that already are Strings (imports, the command line); the
+    // String itself stays on the heap until it is collected
+    public static SecretBuffer of(String text) {
+        if (text.isEmpty()) {
+            return EMPTY;
+        }
+        char[] chars = text.toCharArray();
+        try {
+            return of(chars);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    // Copies the next length bytes of source, e.g. a field of a decrypted record
+    public static SecretBuffer copyOf(ByteBuffer source, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        SecretBuffer secret = new SecretBuffer(length);
+        ByteBuffer slice = source.slice(source.position(), length);
+        secret.memory.duplicate().put(slice);
+        source.position(source.position() + length);
+        return secret;
+    }
+
+    // Length in bytes
+    public int length() {
+        return memory.capacity();
+    }
+
+    public boolean isEmpty() {
+        return memory.capacity() == 0;
+    }
+
+    // Writes the bytes to target; nothing is copied to the heap on the way
+    // unless target is a heap buffer
+    public void copyTo(ByteBuffer target) {
+        target.put(view());
+    }
+
+    // A fresh heap copy, for the few APIs that insist on arrays; wipe it after use
+    public byte[] toBytes() {
+        byte[] bytes = new byte[memory.capacity()];
+        view().get(bytes);
+        return bytes;
+    }
+
+    // Decoded text; the caller wipes the array after use
+    public char[] toChars() {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(memory.capacity());
+        decoder.decode(view(), chars, true);
+        decoder.flush(chars);
+        char[] result = Arrays.copyOf(chars.array(), chars.position());
+        Arrays.fill(chars.array(), '\0');
+        return result;
+    }
+
+    // As a String for Swing text fields, the clipboard and output; the
+    // String lives on the heap like any other, so keep it short-lived
+    public String reveal() {
+        char[] chars = toChars();
+        try {
+            return new String(chars);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    // Constant time in the content, so comparing secrets leaks only their lengths
+    public boolean contentEquals(SecretBuffer other) {
+        ByteBuffer a = view();
+        ByteBuffer b = other.view();
+        if (a.remaining() != b.remaining()) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < a.remaining(); i++) {
+            difference |= a.get(i) ^ b.get(i);
+        }
+        return difference == 0;
+    }
+
+    public boolean contentEquals(String text) {
+        SecretBuffer other = of(text);
+        try {
+            return contentEquals(other);
+        } finally {
+            other.wipe();
+        }
+    }
+
+    public void wipe() {
+        if (cleanable == null) {
+            // EMPTY is shared and has nothing to wipe
+            return;
+        }
+        wiped = true;
+        cleanable.clean();
+    }
+
+    public boolean isWiped() {
+        return wiped;
+    }
+
+    @Override
+    public String toString() {
+        return "SecretBuffer[" + memory.capacity() + " bytes" + (wiped ? ", wiped" : "") + "]";
+    }
+
+    private ByteBuffer view() {
+        if (wiped) {
+            throw new IllegalStateException("The secret has been wiped");
+        }
+        return memory.duplicate().clear();
+    }
+
+    // Bytes CharsetEncoder produces, with a lone surrogate replaced by '?'
+    private static int utf8Length(char[] chars) {
+        int length = 0;
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length && Character.isLowSurrogate(chars[i + 1])) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
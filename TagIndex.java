@@ -0,0 +1,262 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Inverted index from tag to the accounts carrying it. Every account gets a
+// dense ordinal (freed ordinals are reused), and each tag keeps one
+// CompressedBitmap of ordinals, so a filter like "team-a AND prod AND NOT
+// legacy" is a couple of bitmap operations instead of a scan of every entry.
+//
+// Tags match case-insensitively. Folders are plain tags; "work/*" selects
+// every tag starting with "work/", i.e. a folder and its subfolders.
+//
+// Query syntax: tags combined with AND, OR and NOT (upper case) and
+// parentheses. Adjacent tags without an operator are ANDed, NOT binds
+// tighter than AND, AND tighter than OR. Tags containing spaces are quoted.
+public class TagIndex {
+    private final Map<Account, Integer> ordinals = new IdentityHashMap<>();
+    private final ArrayDeque<Integer> freeOrdinals = new ArrayDeque<>();
+    private Account[] byOrdinal = new Account[64];
+    private int nextOrdinal;
+
+    private CompressedBitmap live = new CompressedBitmap();
+    private final Map<String, CompressedBitmap> tags = new HashMap<>();
+
+    public synchronized void add(Account account) {
+        if (ordinals.containsKey(account)) {
+            return;
+        }
+        int ordinal = allocateOrdinal();
+        ordinals.put(account, ordinal);
+        byOrdinal[ordinal] = account;
+        live.add(ordinal);
+        for (String tag : account.getTags()) {
+            tags.computeIfAbsent(normalize(tag), t -> new CompressedBitmap()).add(ordinal);
+        }
+    }
+
+    public synchronized void remove(Account account) {
+        Integer ordinal = ordinals.remove(account);
+        if (ordinal == null) {
+            return;
+        }
+        for (String tag : account.getTags()) {
+            clearTag(normalize(tag), ordinal);
+        }
+        live.remove(ordinal);
+        byOrdinal[ordinal] = null;
+        freeOrdinals.push(ordinal);
+    }
+
+    // The replacement takes over the ordinal; only tags that changed are touched
+    public synchronized void replace(Account existing, Account replacement) {
+        Integer ordinal = ordinals.remove(existing);
+        if (ordinal == null) {
+            add(replacement);
+            return;
+        }
+        ordinals.put(replacement, ordinal);
+        byOrdinal[ordinal] = replacement;
+
+        Set<String> before = normalizedTags(existing);
+        Set<String> after = normalizedTags(replacement);
+        for (String tag : before) {
+            if (!after.contains(tag)) {
+                clearTag(tag, ordinal);
+            }
+        }
+        for (String tag : after) {
+            if (!before.contains(tag)) {
+                tags.computeIfAbsent(tag, t -> new CompressedBitmap()).add(ordinal);
+            }
+        }
+    }
+
+    public synchronized void rebuild(Collection<Account> accounts) {
+        ordinals.clear();
+        freeOrdinals.clear();
+        byOrdinal = new Account[Math.max(64, accounts.size())];
+        nextOrdinal = 0;
+        tags.clear();
+        live = new CompressedBitmap();
+        for (Account account : accounts) {
+            add(account);
+        }
+    }
+
+    // Every tag in use, lower-cased and sorted
+    public synchronized List<String> getTags() {
+        return new ArrayList<>(new TreeSet<>(tags.keySet()));
+    }
+
+    // Accounts matching the expression, as an identity set for cheap lookups
+    public synchronized Set<Account> select(String expression) {
+        CompressedBitmap result = new Parser(tokenize(expression)).parse();
+        Set<Account> selected = Collections.newSetFromMap(new IdentityHashMap<>(result.cardinality()));
+        result.forEach(ordinal -> selected.add(byOrdinal[ordinal]));
+        return selected;
+    }
+
+    private int allocateOrdinal() {
+        if (!freeOrdinals.isEmpty()) {
+            return freeOrdinals.pop();
+        }
+        if (nextOrdinal == byOrdinal.length) {
+            Account[] grown = new Account[byOrdinal.length * 2];
+            System.arraycopy(byOrdinal, 0, grown, 0, byOrdinal.length);
+            byOrdinal = grown;
+        }
+        return nextOrdinal++;
+    }
+
+    private void clearTag(String tag, int ordinal) {
+        CompressedBitmap bitmap = tags.get(tag);
+        if (bitmap != null) {
+            bitmap.remove(ordinal);
+            if (bitmap.isEmpty()) {
+                tags.remove(tag);
+            }
+        }
+    }
+
+    private static Set<String> normalizedTags(Account account) {
+        Set<String> normalized = new TreeSet<>();
+        for (String tag : account.getTags()) {
+            normalized.add(normalize(tag));
+        }
+        return normalized;
+    }
+
+    private static String normalize(String tag) {
+        return tag.trim().toLowerCase();
+    }
+
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '"') {
+                int end = expression.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated quote in tag filter");
+                }
+                // Leading quote marks the token as a tag, never an operator
+                tokens.add("\"" + expression.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+                        && "()\"".indexOf(expression.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(expression.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    // Recursive descent over the tokens, evaluating bitmaps as it goes.
+    // Called with the index lock held.
+    private class Parser {
+        private final List<String> tokens;
+        private int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        CompressedBitmap parse() {
+            if (tokens.isEmpty()) {
+                return live.copy();
+            }
+            CompressedBitmap result = parseOr();
+            if (position < tokens.size()) {
+                throw new IllegalArgumentException("Unexpected '" + tokens.get(position) + "' in tag filter");
+            }
+            return result;
+        }
+
+        private CompressedBitmap parseOr() {
+            CompressedBitmap result = parseAnd();
+            while (accept("OR")) {
+                result = result.or(parseAnd());
+            }
+            return result;
+        }
+
+        private CompressedBitmap parseAnd() {
+            CompressedBitmap result = parseUnary();
+            while (position < tokens.size() && !peek("OR") && !peek(")")) {
+                accept("AND");
+                if (accept("NOT")) {
+                    result = result.andNot(parseUnary());
+                } else {
+                    result = result.and(parseUnary());
+                }
+            }
+            return result;
+        }
+
+        private CompressedBitmap parseUnary() {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Incomplete tag filter");
+            }
+            if (accept("NOT")) {
+                return live.andNot(parseUnary());
+            }
+            if (accept("(")) {
+                CompressedBitmap result = parseOr();
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("Missing ')' in tag filter");
+                }
+                return result;
+            }
+            String token = tokens.get(position++);
+            if (token.equals("AND") || token.equals("OR") || token.equals(")")) {
+                throw new IllegalArgumentException("Unexpected '" + token + "' in tag filter");
+            }
+            return lookup(token.startsWith("\"") ? token.substring(1) : token);
+        }
+
+        private CompressedBitmap lookup(String token) {
+            String tag = normalize(token);
+            if (tag.endsWith("*")) {
+                String prefix = tag.substring(0, tag.length() - 1);
+                CompressedBitmap result = new CompressedBitmap();
+                for (Map.Entry<String, CompressedBitmap> entry : tags.entrySet()) {
+                    if (entry.getKey().startsWith(prefix)) {
+                        result = result.or(entry.getValue());
+                    }
+                }
+                return result;
+            }
+            CompressedBitmap bitmap = tags.get(tag);
+            return bitmap == null ? new CompressedBitmap() : bitmap;
+        }
+
+        private boolean peek(String token) {
+            return position < tokens.size() && tokens.get(position).equals(token);
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+    }
+}
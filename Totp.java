@@ -0,0 +1,141 @@
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// RFC 6238 time-based one-time passwords. Accepts either a bare Base32 secret
+// or an otpauth://totp/... URI (secret, algorithm, digits, period).
+//
+// The Mac is keyed once in the constructor and reused for every code, so an
+// instance is meant to be cached for as long as the vault stays unlocked.
+public class Totp {
+    private static final String BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+    private final Mac mac;
+    private final int digits;
+    private final int periodSeconds;
+
+    public Totp(String secretOrUri) throws GeneralSecurityException {
+        String secret = secretOrUri.trim();
+        String algorithm = "SHA1";
+        int digits = 6;
+        int period = 30;
+        if (secret.regionMatches(true, 0, "otpauth://", 0, 10)) {
+            Map<String, String> params = queryParams(secret);
+            secret = params.getOrDefault("secret", "");
+            algorithm = params.getOrDefault("algorithm", algorithm).toUpperCase();
+            digits = parseInt(params.get("digits"), digits);
+            period = parseInt(params.get("period"), period);
+        }
+        if (digits < 6 || digits > 9 || period <= 0) {
+            throw new GeneralSecurityException("Unsupported TOTP parameters");
+        }
+        byte[] key = decodeBase32(secret);
+        if (key.length == 0) {
+            throw new GeneralSecurityException("Missing TOTP secret");
+        }
+
+        this.mac = Mac.getInstance("Hmac" + algorithm);
+        this.mac.init(new SecretKeySpec(key, "Hmac" + algorithm));
+        this.digits = digits;
+        this.periodSeconds = period;
+    }
+
+    public int getPeriodSeconds() {
+        return periodSeconds;
+    }
+
+    // Index of the time step containing the given instant
+    public long window(long timeMillis) {
+        return Math.floorDiv(timeMillis / 1000, periodSeconds);
+    }
+
+    public int secondsRemaining(long timeMillis) {
+        return (int) (periodSeconds - Math.floorMod(timeMillis / 1000, (long) periodSeconds));
+    }
+
+    public String generate(long timeMillis) {
+        long counter = window(timeMillis);
+        byte[] message = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            message[i] = (byte) counter;
+            counter >>>= 8;
+        }
+
+        byte[] hash;
+        synchronized (mac) {
+            hash = mac.doFinal(message);
+        }
+        int offset = hash[hash.length - 1] & 0x0F;
+        int binary = ((hash[offset] & 0x7F) << 24)
+                | ((hash[offset + 1] & 0xFF) << 16)
+                | ((hash[offset + 2] & 0xFF) << 8)
+                | (hash[offset + 3] & 0xFF);
+        long code = binary % (long) Math.pow(10, digits);
+
+        StringBuilder result = new StringBuilder(Long.toString(code));
+        while (result.length() < digits) {
+            result.insert(0, '0');
+        }
+        return result.toString();
+    }
+
+    static byte[] decodeBase32(String encoded) throws GeneralSecurityException {
+        byte[] out = new byte[encoded.length() * 5 / 8];
+        int buffer = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = Character.toUpperCase(encoded.charAt(i));
+            if (c == '=' || c == ' ' || c == '-') {
+                continue;
+            }
+            int value = BASE32.indexOf(c);
+            if (value < 0) {
+                throw new GeneralSecurityException("Invalid Base32 character in TOTP secret");
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                out[count++] = (byte) (buffer >> (bits - 8));
+                bits -= 8;
+            }
+        }
+        byte[] key = new byte[count];
+        System.arraycopy(out, 0, key, 0, count);
+        return key;
+    }
+
+    private static Map<String, String> queryParams(String uri) throws GeneralSecurityException {
+        Map<String, String> params = new HashMap<>();
+        String query;
+        try {
+            query = new URI(uri).getRawQuery();
+        } catch (Exception e) {
+            throw new GeneralSecurityException("Invalid otpauth URI");
+        }
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(pair.substring(0, eq).toLowerCase(),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
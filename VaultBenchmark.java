@@ -0,0 +1,87 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Measures vault file size and save/load time with and without record
+// compression on a synthetic vault. "save" seals every record, "resave" is a
+// second save with nothing changed, which writes the sealed lines back.
+//
+//   java VaultBenchmark [entries] [runs]
+public class VaultBenchmark {
+    private static final String[] DOMAINS = {"github.com", "google.com", "amazon.com", "microsoft.com",
+            "paypal.com", "dropbox.com", "linkedin.com", "gitlab.com", "netflix.com", "example.org"};
+    private static final String[] MAIL_DOMAINS = {"gmail.com", "outlook.com", "yahoo.com", "company.com"};
+    private static final String[] TAGS = {"work", "personal", "finance", "social", "dev", "prod", "staging"};
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        List<Account> accounts = generate(entries);
+
+        System.out.printf("%d entries, median of %d runs%n", entries, runs);
+        System.out.printf("%-12s %12s %8s %10s %10s %10s%n", "compression", "file bytes", "ratio", "save ms",
+                "resave ms", "load ms");
+        long baseline = 0;
+        for (boolean compressed : new boolean[] {false, true}) {
+            File file = File.createTempFile("lockbox-bench", ".lbx");
+            file.deleteOnExit();
+            long[] saveTimes = new long[runs];
+            long[] resaveTimes = new long[runs];
+            long[] loadTimes = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                // A fresh manager each run, so no record is sealed yet
+                PasswordManager manager = new PasswordManager("benchmark");
+                manager.setCompressionEnabled(compressed);
+                manager.addAccounts(accounts);
+                long start = System.nanoTime();
+                manager.saveToFile(file.getPath());
+                saveTimes[run] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                manager.saveToFile(file.getPath());
+                resaveTimes[run] = System.nanoTime() - start;
+
+                PasswordManager reader = new PasswordManager("benchmark");
+                start = System.nanoTime();
+                reader.loadFromFile(file.getPath());
+                loadTimes[run] = System.nanoTime() - start;
+            }
+
+            long size = file.length();
+            if (!compressed) {
+                baseline = size;
+            }
+            System.out.printf("%-12s %12d %8.2f %10.1f %10.1f %10.1f%n", compressed ? RecordCompressor.NAME : "none",
+                    size, (double) baseline / size, median(saveTimes) / 1e6, median(resaveTimes) / 1e6,
+                    median(loadTimes) / 1e6);
+        }
+    }
+
+    private static List<Account> generate(int count) {
+        Random random = new Random(42);
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String domain = DOMAINS[random.nextInt(DOMAINS.length)];
+            String user = "user" + random.nextInt(500);
+            List<String> tags = new ArrayList<>();
+            tags.add(TAGS[random.nextInt(TAGS.length)]);
+            accounts.add(Account.builder()
+                    .website(i % 3 == 0 ? domain : "app" + i + "." + domain)
+                    .username(user + "@" + MAIL_DOMAINS[random.nextInt(MAIL_DOMAINS.length)])
+                    .password(PasswordManager.generatePassword(16 + random.nextInt(8)))
+                    .tags(tags)
+                    .urls(List.of("https://www." + domain + "/login"))
+                    .notes(i % 10 == 0 ? "Recovery codes stored in the safe, security question: first pet" : "")
+                    .build());
+        }
+        return accounts;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Writes the vault out record by record, either as plaintext CSV/JSON or as a
+// password-protected portable archive. Nothing ever builds the whole export
+// in memory, so a large vault exports in constant space.
+//
+// Archive layout: "LBXA" version:u8 salt[16] iterations:u32 <ChunkedCipher stream>
+// The encrypted payload is the same CSV the plaintext export produces, so
+// CsvImporter can read an archive back once it is decrypted. Besides the
+// columns other password managers understand, the CSV has every URL, one per
+// line, and the custom fields as a JSON object, so nothing is lost.
+public class VaultExporter {
+    public static final String ARCHIVE_EXTENSION = "lbxa";
+    private static final byte[] ARCHIVE_MAGIC = {'L', 'B', 'X', 'A'};
+    private static final byte ARCHIVE_VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int PBKDF2_ITERATIONS = 210_000;
+
+    private final PasswordManager manager;
+
+    public VaultExporter(PasswordManager manager) {
+        this.manager = manager;
+    }
+
+    public int exportCsv(Path target) throws IOException {
+        try (Writer writer = plaintextWriter(target)) {
+            return writeCsv(writer, manager.getAccounts());
+        }
+    }
+
+    public int exportJson(Path target) throws IOException {
+        try (Writer writer = plaintextWriter(target)) {
+            List<Account> accounts = manager.getAccounts();
+            writer.write("[\n");
+            for (int i = 0; i < accounts.size(); i++) {
+                Account account = accounts.get(i);
+                writer.write("  {\"website\": ");
+                writeJsonString(writer, account.getWebsite());
+                writer.write(", \"username\": ");
+                writeJsonString(writer, account.getUsername());
+                writer.write(", \"password\": ");
+                writeJsonString(writer, account.getPassword());
+                writer.write(", \"tags\": ");
+                writeJsonArray(writer, account.getTags());
+                writer.write(", \"urls\": ");
+                writeJsonArray(writer, account.getUrls());
+                writer.write(", \"notes\": ");
+                writeJsonString(writer, account.getNotes());
+                writer.write(", \"totp\": ");
+                writeJsonString(writer, account.getTotp());
+                writer.write(", \"customFields\": ");
+                writeJsonObject(writer, account.getCustomFields());
+                writer.write(", \"created\": " + account.getCreated());
+                writer.write(", \"modified\": " + account.getModified());
+                writer.write(", \"lastUsed\": " + account.getLastUsed());
+                writer.write(i + 1 < accounts.size() ? "},\n" : "}\n");
+            }
+            writer.write("]\n");
+            return accounts.size();
+        }
+    }
+
+    public int exportArchive(Path target, char[] archivePassword) throws IOException {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        SecretKey key = deriveArchiveKey(archivePassword, salt, PBKDF2_ITERATIONS);
+
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(ARCHIVE_MAGIC.length + 1 + SALT_LENGTH + 4);
+        header.put(ARCHIVE_MAGIC).put(ARCHIVE_VERSION).put(salt).putInt(PBKDF2_ITERATIONS).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        // ChunkedCipher already buffers a full chunk, the writer only batches chars
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                ChunkedCipher.encrypting(channel, key), StandardCharsets.UTF_8))) {
+            return writeCsv(writer, manager.getAccounts());
+        }
+    }
+
+    // Opens an archive for reading; the returned reader yields the CSV payload
+    public static Reader openArchive(Path source, char[] archivePassword) throws IOException {
+        FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+            byte[] magic = new byte[ARCHIVE_MAGIC.length];
+            header.readFully(magic);
+            if (!Arrays.equals(magic, ARCHIVE_MAGIC) || header.readByte() != ARCHIVE_VERSION) {
+                throw new IOException("Not a LockBox archive");
+            }
+            byte[] salt = new byte[SALT_LENGTH];
+            header.readFully(salt);
+            int iterations = header.readInt();
+
+            SecretKey key = deriveArchiveKey(archivePassword, salt, iterations);
+            InputStream payload = ChunkedCipher.decrypting(channel, key);
+            return new InputStreamReader(payload, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static boolean isArchive(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith("." + ARCHIVE_EXTENSION);
+    }
+
+    private static SecretKey deriveArchiveKey(char[] password, byte[] salt, int iterations) throws IOException {
+        try {
+            KeySpec spec = new PBEKeySpec(password, salt, iterations, 256);
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+        } catch (Exception e) {
+            throw new IOException("Error deriving archive key", e);
+        }
+    }
+
+    // Plaintext exports are created owner-only where the file system allows it
+    private static Writer plaintextWriter(Path target) throws IOException {
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Non-POSIX file system
+        }
+        OutputStream out = Channels.newOutputStream(channel);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private static int writeCsv(Writer writer, List<Account> accounts) throws IOException {
+        writer.write("name,url,username,password,notes,tags,totp,urls,custom_fields\r\n");
+        for (Account account : accounts) {
+            writeCsvField(writer, account.getWebsite());
+            writer.write(',');
+            List<String> urls = account.getUrls();
+            writeCsvField(writer, urls.isEmpty() ? "" : urls.get(0));
+            writer.write(',');
+            writeCsvField(writer, account.getUsername());
+            writer.write(',');
+            writeCsvField(writer, account.getPassword());
+            writer.write(',');
+            writeCsvField(writer, account.getNotes());
+            writer.write(',');
+            writeCsvField(writer, joinTags(account.getTags()));
+            writer.write(',');
+            writeCsvField(writer, account.getTotp());
+            writer.write(',');
+            writeCsvField(writer, String.join("\n", urls));
+            writer.write(',');
+            Map<String, String> fields = account.getCustomFields();
+            if (!fields.isEmpty()) {
+                StringWriter json = new StringWriter();
+                writeJsonObject(json, fields);
+                writeCsvField(writer, json.toString());
+            }
+            writer.write("\r\n");
+        }
+        return accounts.size();
+    }
+
+    // Tags are separated by ';'; a ';' or '\' inside a tag is escaped with
+    // a backslash, see CsvImporter.splitTags
+    static String joinTags(List<String> tags) {
+        StringBuilder joined = new StringBuilder();
+        for (String tag : tags) {
+            if (joined.length() > 0) {
+                joined.append(';');
+            }
+            joined.append(tag.replace("\\", "\\\\").replace(";", "\\;"));
+        }
+        return joined.toString();
+    }
+
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!needsQuotes) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    private static void writeJsonArray(Writer writer, List<String> values) throws IOException {
+        writer.write('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(", ");
+            }
+            writeJsonString(writer, values.get(i));
+        }
+        writer.write(']');
+    }
+
+    private static void writeJsonObject(Writer writer, Map<String, String> values) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!first) {
+                writer.write(", ");
+            }
+            first = false;
+            writeJsonString(writer, entry.getKey());
+            writer.write(": ");
+            writeJsonString(writer, entry.getValue());
+        }
+        writer.write('}');
+    }
+
+    private static void writeJsonString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
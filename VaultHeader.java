@@ -0,0 +1,118 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// First line of a versioned .lbx file: "#LBX<version>" followed by
+// space-separated key=value pairs. Files without it are the original format
+// where every line is an encrypted "website,username,password" string. The
+// '#' can never start a Base64 line, so the two formats cannot be confused.
+//
+// Version 3 added the "compression" property; older readers refuse it rather
+// than misreading compressed records. Version 4 added "cipher"; files
+// without it are AES-GCM. Version 5 added "key", the random data key the
+// records are encrypted with, sealed with the key derived from the master
+// password; in files without it the records use the derived key directly.
+// Version 6 added "storage", the layout of the rest of the file: one record
+// per line (the default) or fixed-size pages (see PagedVaultStorage).
+// Version 7 added "vault", a random id the records are bound to: they are
+// sealed with it as associated data, so a record copied in from another
+// vault fails to open. Files without it seal records without associated data.
+public class VaultHeader {
+    static final String MAGIC = "#LBX";
+    static final int CURRENT_VERSION = 7;
+
+    static final String COMPRESSION = "compression";
+    static final String CIPHER = "cipher";
+    static final String KEY = "key";
+    static final String STORAGE = "storage";
+    static final String VAULT = "vault";
+
+    private final int version;
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+    public VaultHeader(int version) {
+        this.version = version;
+    }
+
+    public static boolean isHeader(String line) {
+        return line != null && line.startsWith(MAGIC);
+    }
+
+    public static VaultHeader parse(String line) throws Exception {
+        String[] tokens = line.trim().split(" +");
+        int version;
+        try {
+            version = Integer.parseInt(tokens[0].substring(MAGIC.length()));
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid vault header");
+        }
+        if (version > CURRENT_VERSION) {
+            throw new Exception("This vault was written by a newer version of LockBox");
+        }
+
+        VaultHeader header = new VaultHeader(version);
+        for (int i = 1; i < tokens.length; i++) {
+            int eq = tokens[i].indexOf('=');
+            if (eq > 0) {
+                header.properties.put(tokens[i].substring(0, eq), tokens[i].substring(eq + 1));
+            }
+        }
+        return header;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String get(String key, String defaultValue) {
+        return properties.getOrDefault(key, defaultValue);
+    }
+
+    public void put(String key, String value) {
+        properties.put(key, value);
+    }
+
+    public CryptoUtils.Aead getCipher() throws Exception {
+        return CryptoUtils.Aead.forId(get(CIPHER, CryptoUtils.Aead.AES_GCM.getId()));
+    }
+
+    // null for files from before vault ids
+    public UUID getVaultId() throws Exception {
+        String id = get(VAULT, null);
+        if (id == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Invalid vault id: " + id);
+        }
+    }
+
+    // A compressor for the records of this file, or null if they are stored as they are
+    public RecordCompressor newCompressor() throws Exception {
+        String compression = get(COMPRESSION, "none");
+        if (compression.equals(RecordCompressor.NAME)) {
+            return new RecordCompressor();
+        }
+        if (!compression.equals("none")) {
+            throw new Exception("Unsupported vault compression: " + compression);
+        }
+        return null;
+    }
+
+    // The same properties under the current version, for rewriting a file
+    public VaultHeader upgraded() {
+        VaultHeader header = new VaultHeader(CURRENT_VERSION);
+        header.properties.putAll(properties);
+        return header;
+    }
+
+    public String format() {
+        StringBuilder line = new StringBuilder(MAGIC).append(version);
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            line.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return line.toString();
+    }
+}
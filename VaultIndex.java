@@ -0,0 +1,690 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+// Sorted index of a paged vault, kept next to it as <vault>.idx: a B+-tree
+// over website and username, case-folded, that points at the record's key
+// and the vault page holding it. A lookup opens the pages on one path down
+// the tree and the vault pages it lands on instead of the whole vault.
+//
+// The index is a cache. It is sealed with the vault's data key, its meta page
+// names the state of the vault it describes (the vault's fingerprint), and it
+// is rebuilt from the records whenever it is missing, stale or unreadable, so
+// nothing is lost with it. PagedVaultStorage keeps a copy of the leaves in
+// memory once it has written the index, so a save that changes a few records
+// writes only the leaves holding them, any inner pages whose separators
+// moved, and the meta page.
+//
+// Page 0 is "#LBXI1 page=4096 cipher=<id>" in plain text; every other page is
+// sealed like a vault page, with "LBXI" and its number as associated data.
+//
+//   meta  type:u8 fingerprint root:u32 height:u8 count:u32
+//   leaf  type:u8 next:u32 count:u16 { keyLength:u8 key id[16] page:u32 }*
+//   inner type:u8 count:u16 child:u32 { keyLength:u8 key id[16] child:u32 }*
+//
+// A key is the website, a zero byte and the username, folded the way
+// equalsIgnoreCase compares them and cut to 255 bytes; ties are broken by id.
+public class VaultIndex {
+    static final String MAGIC = "#LBXI";
+    static final int VERSION = 1;
+
+    private static final int PAGE_SIZE = PagedVaultStorage.PAGE_SIZE;
+    private static final int CAPACITY = PAGE_SIZE - 12 - 16;
+    private static final int META_PAGE = 1;
+
+    private static final byte META = 1;
+    private static final byte LEAF = 2;
+    private static final byte INNER = 3;
+
+    private static final int NODE_HEADER = 1 + 4 + 2;
+    private static final int MAX_KEY = 255;
+    // A rebuilt index fills leaves this far, leaving room for inserts
+    private static final int BUILD_FILL = CAPACITY * 7 / 8;
+    private static final byte[] AAD_PREFIX = "LBXI".getBytes(StandardCharsets.US_ASCII);
+
+    static final class Entry {
+        final byte[] key;
+        final UUID id;
+        // Vault page holding the record
+        int page;
+
+        Entry(byte[] key, UUID id, int page) {
+            this.key = key;
+            this.id = id;
+            this.page = page;
+        }
+
+        UUID getId() {
+            return id;
+        }
+
+        int getPage() {
+            return page;
+        }
+
+        int size() {
+            return 1 + key.length + 16 + 4;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = (a, b) -> {
+        int c = Arrays.compareUnsigned(a.key, b.key);
+        return c != 0 ? c : a.id.compareTo(b.id);
+    };
+
+    private static final class Leaf {
+        int page;
+        final List<Entry> entries = new ArrayList<>();
+        int bytes = NODE_HEADER;
+    }
+
+    // The leaves as last written, in key order, and how to find an entry's
+    // leaf; null when the index was not written by this instance. While
+    // rebuilding, the entries are only collected.
+    private Path file;
+    private List<Leaf> leaves;
+    private Map<UUID, Entry> byId;
+    private boolean rebuilding;
+    private CryptoUtils.Aead aead;
+    private VaultWatcher.Fingerprint writtenFor;
+    private int pageCount;
+    private TreeSet<Integer> freePages;
+    // Inner pages as last written, level by level from the leaves up
+    private List<Integer> innerPages;
+    private Map<Integer, byte[]> innerWritten;
+    private final Set<Leaf> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static Path fileFor(Path vault) {
+        return vault.resolveSibling(vault.getFileName() + ".idx");
+    }
+
+    // True if edits can be applied to the leaves in memory
+    boolean isLoadedFor(Path indexFile) {
+        return leaves != null && indexFile.equals(file);
+    }
+
+    // True if the index file describes the vault as of vault. A copy in
+    // memory that no longer matches the file is dropped.
+    boolean isCurrent(Path indexFile, VaultWatcher.Fingerprint vault, CryptoUtils key) {
+        if (isLoadedFor(indexFile)) {
+            if (Objects.equals(writtenFor, vault)) {
+                return true;
+            }
+            forget();
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            Meta meta = readMeta(channel, key);
+            return meta != null && meta.vault.equals(vault);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Takes the leaves of an index file that describes the vault as of
+    // vault into memory, so the next write patches it instead of building
+    // it again; false if there is no such file
+    boolean load(Path indexFile, VaultWatcher.Fingerprint vault, CryptoUtils key) {
+        forget();
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            Meta meta = readMeta(channel, key);
+            if (meta == null || !meta.vault.equals(vault)) {
+                return false;
+            }
+            int count = (int) (channel.size() / PAGE_SIZE);
+            List<Leaf> loadedLeaves = new ArrayList<>();
+            Map<UUID, Entry> loadedById = new HashMap<>();
+            Set<Integer> used = new TreeSet<>();
+            // Inner levels from the root down, each left to right
+            List<List<Integer>> levels = new ArrayList<>();
+            List<Integer> level = List.of(meta.root);
+            for (int depth = meta.height; depth > 0; depth--) {
+                levels.add(0, level);
+                List<Integer> below = new ArrayList<>();
+                for (int page : level) {
+                    ByteBuffer plain = readPage(channel, page, meta.aead, key);
+                    if (plain.get() != INNER) {
+                        return false;
+                    }
+                    int children = plain.getShort() & 0xFFFF;
+                    below.add(plain.getInt());
+                    for (int i = 0; i < children; i++) {
+                        below.add(getEntry(plain).page);
+                    }
+                    Arrays.fill(plain.array(), (byte) 0);
+                }
+                level = below;
+            }
+            for (int page : level) {
+                ByteBuffer plain = readPage(channel, page, meta.aead, key);
+                if (plain.get() != LEAF) {
+                    return false;
+                }
+                plain.getInt();
+                Leaf leaf = new Leaf();
+                leaf.page = page;
+                int entries = plain.getShort() & 0xFFFF;
+                for (int i = 0; i < entries; i++) {
+                    Entry entry = getEntry(plain);
+                    leaf.entries.add(entry);
+                    leaf.bytes += entry.size();
+                    loadedById.put(entry.id, entry);
+                }
+                Arrays.fill(plain.array(), (byte) 0);
+                loadedLeaves.add(leaf);
+                used.add(page);
+            }
+            innerPages = new ArrayList<>();
+            for (List<Integer> inner : levels) {
+                innerPages.addAll(inner);
+                used.addAll(inner);
+            }
+            freePages = new TreeSet<>();
+            for (int page = META_PAGE + 1; page < count; page++) {
+                if (!used.contains(page)) {
+                    freePages.add(page);
+                }
+            }
+            pageCount = count;
+            innerWritten = new HashMap<>();
+            aead = meta.aead;
+            leaves = loadedLeaves;
+            byId = loadedById;
+            file = indexFile;
+            writtenFor = vault;
+            return true;
+        } catch (Exception e) {
+            forget();
+            return false;
+        }
+    }
+
+    void forget() {
+        file = null;
+        leaves = null;
+        byId = null;
+        rebuilding = false;
+        innerWritten = null;
+        dirty.clear();
+    }
+
+    // Starts over from nothing; put() then collects every record and
+    // write() builds the tree in one pass
+    void startRebuild(Path indexFile) {
+        forget();
+        file = indexFile;
+        leaves = new ArrayList<>();
+        byId = new HashMap<>();
+        rebuilding = true;
+    }
+
+    void put(UUID id, Account account, int page) {
+        if (leaves == null) {
+            return;
+        }
+        byte[] key = keyOf(account.getWebsite(), account.getUsername());
+        Entry existing = byId.get(id);
+        if (existing != null && Arrays.equals(existing.key, key)) {
+            if (existing.page != page) {
+                existing.page = page;
+                if (!rebuilding) {
+                    dirty.add(leaves.get(leafOf(existing)));
+                }
+            }
+            return;
+        }
+        if (existing != null) {
+            remove(id);
+        }
+        Entry entry = new Entry(key, id, page);
+        byId.put(id, entry);
+        if (!rebuilding) {
+            insert(entry);
+        }
+    }
+
+    void remove(UUID id) {
+        if (leaves == null) {
+            return;
+        }
+        Entry entry = byId.remove(id);
+        if (entry == null || rebuilding) {
+            return;
+        }
+        int index = leafOf(entry);
+        Leaf leaf = leaves.get(index);
+        int at = Collections.binarySearch(leaf.entries, entry, ORDER);
+        leaf.entries.remove(at);
+        leaf.bytes -= entry.size();
+        if (leaf.entries.isEmpty() && leaves.size() > 1) {
+            leaves.remove(index);
+            dirty.remove(leaf);
+            freePages.add(leaf.page);
+            if (index > 0) {
+                // Its next pointer skips the page now
+                dirty.add(leaves.get(index - 1));
+            }
+        } else {
+            dirty.add(leaf);
+        }
+    }
+
+    private void insert(Entry entry) {
+        int index = leafOf(entry);
+        Leaf leaf = leaves.get(index);
+        int at = Collections.binarySearch(leaf.entries, entry, ORDER);
+        leaf.entries.add(-at - 1, entry);
+        leaf.bytes += entry.size();
+        dirty.add(leaf);
+        if (leaf.bytes > CAPACITY) {
+            // Upper half to a new leaf right after it
+            Leaf upper = new Leaf();
+            upper.page = allocate();
+            List<Entry> moved = leaf.entries.subList(leaf.entries.size() / 2, leaf.entries.size());
+            for (Entry e : moved) {
+                upper.entries.add(e);
+                upper.bytes += e.size();
+                leaf.bytes -= e.size();
+            }
+            moved.clear();
+            leaves.add(index + 1, upper);
+            dirty.add(upper);
+        }
+    }
+
+    // The leaf that holds or would hold entry: the last one starting at or before it
+    private int leafOf(Entry entry) {
+        int low = 0;
+        int high = leaves.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            Leaf leaf = leaves.get(mid);
+            if (!leaf.entries.isEmpty() && ORDER.compare(leaf.entries.get(0), entry) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private int allocate() {
+        Integer free = freePages.pollFirst();
+        return free != null ? free : pageCount++;
+    }
+
+    // Writes what changed since the last write, or the whole index after
+    // startRebuild(), and records that it describes the vault as of vault
+    void write(VaultWatcher.Fingerprint vault, CryptoUtils key, CryptoUtils.Aead cipher) throws Exception {
+        if (leaves == null) {
+            return;
+        }
+        // Only the file written last can be patched; one deleted or copied
+        // over since is written again from the entries in memory
+        boolean patchable;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Meta meta = readMeta(channel, key);
+            patchable = meta != null && meta.vault.equals(writtenFor);
+        } catch (IOException e) {
+            patchable = false;
+        }
+        if (rebuilding || !patchable) {
+            writeAll(vault, key, cipher);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            writeLeaves(channel, dirty, key);
+            int[] root = writeInner(channel, key);
+            writePage(channel, META_PAGE, metaPage(vault, root[0], root[1]), key);
+            channel.force(true);
+        } catch (Exception e) {
+            forget();
+            throw e;
+        }
+        dirty.clear();
+        writtenFor = vault;
+    }
+
+    // The given leaves, or all of them if only is null, in key order
+    private void writeLeaves(FileChannel channel, Set<Leaf> only, CryptoUtils key) throws Exception {
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.get(i);
+            if (only == null || only.contains(leaf)) {
+                int next = i + 1 < leaves.size() ? leaves.get(i + 1).page : 0;
+                writePage(channel, leaf.page, leafPage(leaf, next), key);
+            }
+        }
+    }
+
+    private void writeAll(VaultWatcher.Fingerprint vault, CryptoUtils key, CryptoUtils.Aead cipher) throws Exception {
+        List<Entry> entries = new ArrayList<>(byId.values());
+        entries.sort(ORDER);
+        leaves = new ArrayList<>();
+        rebuilding = false;
+        aead = cipher;
+        pageCount = META_PAGE + 1;
+        freePages = new TreeSet<>();
+        innerPages = new ArrayList<>();
+        innerWritten = new HashMap<>();
+        dirty.clear();
+        Leaf leaf = new Leaf();
+        leaf.page = pageCount++;
+        leaves.add(leaf);
+        for (Entry entry : entries) {
+            if (leaf.bytes + entry.size() > BUILD_FILL) {
+                leaf = new Leaf();
+                leaf.page = pageCount++;
+                leaves.add(leaf);
+            }
+            leaf.entries.add(entry);
+            leaf.bytes += entry.size();
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.put((MAGIC + VERSION + " page=" + PAGE_SIZE + " cipher=" + cipher.getId() + "\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            writeLeaves(channel, null, key);
+            int[] root = writeInner(channel, key);
+            writePage(channel, META_PAGE, metaPage(vault, root[0], root[1]), key);
+            channel.force(true);
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            forget();
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenFor = vault;
+    }
+
+    // Builds the inner levels over the leaves, reusing the pages they had
+    // and writing only the ones whose contents changed. Returns the root
+    // page and the height of the tree.
+    private int[] writeInner(FileChannel channel, CryptoUtils key) throws Exception {
+        List<Entry> firsts = new ArrayList<>(leaves.size());
+        List<Integer> children = new ArrayList<>(leaves.size());
+        for (Leaf leaf : leaves) {
+            firsts.add(leaf.entries.isEmpty() ? null : leaf.entries.get(0));
+            children.add(leaf.page);
+        }
+        List<Integer> used = new ArrayList<>();
+        int reuse = 0;
+        int height = 0;
+        while (children.size() > 1) {
+            List<Entry> nextFirsts = new ArrayList<>();
+            List<Integer> nextChildren = new ArrayList<>();
+            int start = 0;
+            while (start < children.size()) {
+                int bytes = NODE_HEADER;
+                int end = start + 1;
+                while (end < children.size() && bytes + firsts.get(end).size() <= CAPACITY) {
+                    bytes += firsts.get(end).size();
+                    end++;
+                }
+                int page = reuse < innerPages.size() ? innerPages.get(reuse++) : allocate();
+                used.add(page);
+                byte[] plain = innerPage(firsts, children, start, end);
+                if (!Arrays.equals(plain, innerWritten.get(page))) {
+                    writePage(channel, page, ByteBuffer.wrap(plain.clone()), key);
+                    innerWritten.put(page, plain);
+                }
+                nextFirsts.add(firsts.get(start));
+                nextChildren.add(page);
+                start = end;
+            }
+            firsts = nextFirsts;
+            children = nextChildren;
+            height++;
+        }
+        for (int i = reuse; i < innerPages.size(); i++) {
+            freePages.add(innerPages.get(i));
+            innerWritten.remove(innerPages.get(i));
+        }
+        innerPages = used;
+        return new int[] {children.get(0), height};
+    }
+
+    private static byte[] innerPage(List<Entry> firsts, List<Integer> children, int start, int end) {
+        ByteBuffer plain = ByteBuffer.allocate(CAPACITY);
+        plain.put(INNER);
+        plain.putShort((short) (end - start - 1));
+        plain.putInt(children.get(start));
+        for (int i = start + 1; i < end; i++) {
+            putEntry(plain, firsts.get(i), children.get(i));
+        }
+        return plain.array();
+    }
+
+    private static ByteBuffer leafPage(Leaf leaf, int next) {
+        ByteBuffer plain = ByteBuffer.allocate(CAPACITY);
+        plain.put(LEAF);
+        plain.putInt(next);
+        plain.putShort((short) leaf.entries.size());
+        for (Entry entry : leaf.entries) {
+            putEntry(plain, entry, entry.page);
+        }
+        return plain.clear();
+    }
+
+    private ByteBuffer metaPage(VaultWatcher.Fingerprint vault, int root, int height) {
+        ByteBuffer plain = ByteBuffer.allocate(CAPACITY);
+        plain.put(META);
+        vault.writeTo(plain);
+        plain.putInt(root);
+        plain.put((byte) height);
+        plain.putInt(byId.size());
+        return plain.clear();
+    }
+
+    private static void putEntry(ByteBuffer plain, Entry entry, int pointer) {
+        plain.put((byte) entry.key.length);
+        plain.put(entry.key);
+        plain.putLong(entry.id.getMostSignificantBits());
+        plain.putLong(entry.id.getLeastSignificantBits());
+        plain.putInt(pointer);
+    }
+
+    private static Entry getEntry(ByteBuffer plain) {
+        byte[] key = new byte[plain.get() & 0xFF];
+        plain.get(key);
+        UUID id = new UUID(plain.getLong(), plain.getLong());
+        return new Entry(key, id, plain.getInt());
+    }
+
+    private void writePage(FileChannel channel, int page, ByteBuffer plain, CryptoUtils key) throws Exception {
+        byte[] sealed = key.encryptBytes(aead, plain, aad(page));
+        Arrays.fill(plain.array(), (byte) 0);
+        ByteBuffer out = ByteBuffer.wrap(sealed);
+        while (out.hasRemaining()) {
+            channel.write(out, (long) page * PAGE_SIZE + out.position());
+        }
+    }
+
+    // After the vault changed in a way that leaves the records where they
+    // are (a new header, a new cipher): an index that described the vault as
+    // it was describes it as it is now
+    void retarget(Path indexFile, VaultWatcher.Fingerprint before, VaultWatcher.Fingerprint after, CryptoUtils key) {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Meta meta = readMeta(channel, key);
+            if (meta == null || !meta.vault.equals(before)) {
+                return;
+            }
+            ByteBuffer plain = ByteBuffer.allocate(CAPACITY);
+            plain.put(META);
+            after.writeTo(plain);
+            plain.putInt(meta.root);
+            plain.put((byte) meta.height);
+            plain.putInt(meta.count);
+            byte[] sealed = key.encryptBytes(meta.aead, plain.clear(), aad(META_PAGE));
+            ByteBuffer out = ByteBuffer.wrap(sealed);
+            while (out.hasRemaining()) {
+                channel.write(out, (long) META_PAGE * PAGE_SIZE + out.position());
+            }
+            channel.force(true);
+            if (isLoadedFor(indexFile) && Objects.equals(writtenFor, before)) {
+                writtenFor = after;
+            }
+        } catch (Exception e) {
+            // Left stale, rebuilt on the next read
+            if (isLoadedFor(indexFile)) {
+                forget();
+            }
+        }
+    }
+
+    private static final class Meta {
+        CryptoUtils.Aead aead;
+        VaultWatcher.Fingerprint vault;
+        int root;
+        int height;
+        int count;
+    }
+
+    // null if the file is not an index this key opens
+    private static Meta readMeta(FileChannel channel, CryptoUtils key) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(PAGE_SIZE);
+        while (head.hasRemaining() && channel.read(head, head.position()) >= 0) {
+            // Until the page is read or the file ends
+        }
+        String line = new String(head.array(), StandardCharsets.US_ASCII);
+        line = line.substring(0, Math.max(0, line.indexOf('\n')));
+        String[] tokens = line.split(" ");
+        if (tokens.length != 3 || !tokens[0].equals(MAGIC + VERSION) || !tokens[1].equals("page=" + PAGE_SIZE)
+                || !tokens[2].startsWith("cipher=")) {
+            return null;
+        }
+        try {
+            Meta meta = new Meta();
+            meta.aead = CryptoUtils.Aead.forId(tokens[2].substring("cipher=".length()));
+            ByteBuffer plain = readPage(channel, META_PAGE, meta.aead, key);
+            if (plain.get() != META) {
+                return null;
+            }
+            meta.vault = VaultWatcher.Fingerprint.readFrom(plain);
+            meta.root = plain.getInt();
+            meta.height = plain.get();
+            meta.count = plain.getInt();
+            return meta;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer readPage(FileChannel channel, int page, CryptoUtils.Aead aead, CryptoUtils key) throws Exception {
+        ByteBuffer raw = ByteBuffer.allocate(PAGE_SIZE);
+        while (raw.hasRemaining()) {
+            if (channel.read(raw, (long) page * PAGE_SIZE + raw.position()) < 0) {
+                throw new IOException("Unexpected end of index in page " + page);
+            }
+        }
+        return key.decryptBytes(aead, raw.array(), aad(page));
+    }
+
+    // The entries for a website, and a username if one is given, from the
+    // index file alone; null if there is no index for the vault as described
+    // by vault. Case is folded as in equalsIgnoreCase; long keys are cut, so
+    // callers check the records they fetch.
+    static List<Entry> find(Path indexFile, VaultWatcher.Fingerprint vault, CryptoUtils key,
+            String website, String username) {
+        byte[] target = username != null ? keyOf(website, username) : prefixOf(website);
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            Meta meta = readMeta(channel, key);
+            if (meta == null || !meta.vault.equals(vault)) {
+                return null;
+            }
+            int page = meta.root;
+            for (int level = meta.height; level > 0; level--) {
+                ByteBuffer plain = readPage(channel, page, meta.aead, key);
+                if (plain.get() != INNER) {
+                    return null;
+                }
+                int count = plain.getShort() & 0xFFFF;
+                page = plain.getInt();
+                // Equal keys can reach back into the previous child
+                for (int i = 0; i < count; i++) {
+                    Entry separator = getEntry(plain);
+                    if (Arrays.compareUnsigned(separator.key, target) >= 0) {
+                        break;
+                    }
+                    page = separator.page;
+                }
+                Arrays.fill(plain.array(), (byte) 0);
+            }
+            List<Entry> found = new ArrayList<>();
+            while (page != 0) {
+                ByteBuffer plain = readPage(channel, page, meta.aead, key);
+                if (plain.get() != LEAF) {
+                    return null;
+                }
+                page = plain.getInt();
+                int count = plain.getShort() & 0xFFFF;
+                for (int i = 0; i < count; i++) {
+                    Entry entry = getEntry(plain);
+                    boolean match = username != null ? Arrays.equals(entry.key, target) : startsWith(entry.key, target);
+                    if (match) {
+                        found.add(entry);
+                    } else if (Arrays.compareUnsigned(entry.key, target) > 0) {
+                        page = 0;
+                        break;
+                    }
+                }
+                Arrays.fill(plain.array(), (byte) 0);
+            }
+            return found;
+        } catch (Exception e) {
+            // Missing or damaged; the caller reads the vault instead
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        return key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    static byte[] keyOf(String website, String username) {
+        return cut((fold(website) + '\0' + fold(username)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] prefixOf(String website) {
+        return cut((fold(website) + '\0').getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] cut(byte[] key) {
+        return key.length > MAX_KEY ? Arrays.copyOf(key, MAX_KEY) : key;
+    }
+
+    // Character by character, as equalsIgnoreCase compares
+    private static String fold(String value) {
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    private static byte[] aad(int page) {
+        return ByteBuffer.allocate(AAD_PREFIX.length + 8).put(AAD_PREFIX).putLong(page).array();
+    }
+}
@@ -0,0 +1,196 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// Record-by-record three-way merge of two copies of a vault that diverged from
+// a common base. Entries are matched by id. A side that left an entry as it
+// was in the base takes the other side's change (including a deletion); when
+// both sides changed it differently the entry is a conflict. Without a base,
+// entries found on one side only are kept and differing entries conflict.
+//
+// lastUsed is bookkeeping, not content: it never causes a conflict and the
+// merged entry keeps the later of the two values.
+public class VaultMerger {
+    private VaultMerger() {
+    }
+
+    public static class Conflict {
+        private final Account base;
+        private final Account local;
+        private final Account remote;
+        private Account resolution;
+
+        Conflict(Account base, Account local, Account remote) {
+            this.base = base;
+            this.local = local;
+            this.remote = remote;
+            // Until someone decides, the more recently modified side wins
+            this.resolution = modifiedAt(remote) > modifiedAt(local) ? remote : local;
+        }
+
+        // Any of these is null where the entry does not exist (deleted or not yet added)
+        public Account getBase() {
+            return base;
+        }
+
+        public Account getLocal() {
+            return local;
+        }
+
+        public Account getRemote() {
+            return remote;
+        }
+
+        public Account getResolution() {
+            return resolution;
+        }
+
+        public void resolveLocal() {
+            resolution = local;
+        }
+
+        public void resolveRemote() {
+            resolution = remote;
+        }
+
+        private static long modifiedAt(Account account) {
+            return account == null ? Long.MIN_VALUE : account.getModified();
+        }
+    }
+
+    public static class Result {
+        private final List<Account> merged;
+        private final List<Conflict> conflicts;
+        private final int remoteChanges;
+
+        Result(List<Account> merged, List<Conflict> conflicts, int remoteChanges) {
+            this.merged = merged;
+            this.conflicts = conflicts;
+            this.remoteChanges = remoteChanges;
+        }
+
+        public List<Conflict> getConflicts() {
+            return conflicts;
+        }
+
+        // Entries where the remote side's change (edit, addition or deletion) was taken
+        public int getRemoteChanges() {
+            return remoteChanges;
+        }
+
+        // The merged vault with every conflict settled by its current resolution
+        public List<Account> resolve() {
+            List<Account> accounts = new ArrayList<>(merged.size() + conflicts.size());
+            accounts.addAll(merged);
+            for (Conflict conflict : conflicts) {
+                if (conflict.resolution != null) {
+                    accounts.add(withLatestUse(conflict.resolution, conflict.local, conflict.remote));
+                }
+            }
+            accounts.sort(Comparator.comparing(Account::getWebsite, String.CASE_INSENSITIVE_ORDER));
+            return accounts;
+        }
+    }
+
+    // base may be null when no common ancestor is available
+    public static Result merge(List<Account> base, List<Account> local, List<Account> remote) {
+        Map<UUID, Account> baseById = index(base == null ? Collections.emptyList() : base);
+        Map<UUID, Account> localById = index(local);
+        Map<UUID, Account> remoteById = index(remote);
+
+        Set<UUID> ids = new LinkedHashSet<>(localById.keySet());
+        ids.addAll(remoteById.keySet());
+        ids.addAll(baseById.keySet());
+
+        Comparison comparison = new Comparison();
+
+        List<Account> merged = new ArrayList<>(Math.max(localById.size(), remoteById.size()));
+        List<Conflict> conflicts = new ArrayList<>();
+        int remoteChanges = 0;
+        for (UUID id : ids) {
+            Account b = baseById.get(id);
+            Account l = localById.get(id);
+            Account r = remoteById.get(id);
+
+            Account result;
+            if (comparison.same(l, r)) {
+                result = l;
+            } else if (b == null && (l == null || r == null)) {
+                // Added on one side only
+                result = l != null ? l : r;
+                remoteChanges += l == null ? 1 : 0;
+            } else if (b != null && comparison.same(l, b)) {
+                result = r;
+                remoteChanges++;
+            } else if (b != null && comparison.same(r, b)) {
+                result = l;
+            } else {
+                conflicts.add(new Conflict(b, l, r));
+                continue;
+            }
+            if (result != null) {
+                merged.add(withLatestUse(result, l, r));
+            }
+        }
+        return new Result(merged, conflicts, remoteChanges);
+    }
+
+    private static Map<UUID, Account> index(List<Account> accounts) {
+        Map<UUID, Account> byId = new HashMap<>(accounts.size() * 2);
+        for (Account account : accounts) {
+            byId.put(account.getId(), account);
+        }
+        return byId;
+    }
+
+    private static Account withLatestUse(Account result, Account local, Account remote) {
+        long lastUsed = Math.max(local == null ? 0 : local.getLastUsed(), remote == null ? 0 : remote.getLastUsed());
+        return lastUsed > result.getLastUsed() ? result.toBuilder().lastUsed(lastUsed).build() : result;
+    }
+
+    // Same modification time and same content through the record encoding,
+    // ignoring lastUsed. Cheap hot fields are checked first, so most differing
+    // pairs never get encoded.
+    private static class Comparison {
+        private ByteBuffer first = ByteBuffer.allocate(1024);
+        private ByteBuffer second = ByteBuffer.allocate(1024);
+
+        boolean same(Account a, Account b) {
+            if (a == b) {
+                return true;
+            }
+            if (a == null || b == null) {
+                return false;
+            }
+            if (a.getModified() != b.getModified()
+                    || !a.getWebsite().equals(b.getWebsite())
+                    || !a.getUsername().equals(b.getUsername())
+                    || !a.samePassword(b)
+                    || !a.getTags().equals(b.getTags())) {
+                return false;
+            }
+            first = encode(a, first);
+            second = encode(b, second);
+            return first.equals(second);
+        }
+
+        private static ByteBuffer encode(Account account, ByteBuffer buffer) {
+            Account normalized = account.getLastUsed() == 0 ? account : account.toBuilder().lastUsed(0).build();
+            int needed = RecordCodec.maxEncodedSize(normalized);
+            if (buffer.capacity() < needed) {
+                buffer = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+            }
+            buffer.clear();
+            RecordCodec.encode(normalized, buffer);
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
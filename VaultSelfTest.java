@@ -0,0 +1,555 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.crypto.spec.SecretKeySpec;
+
+// Regression checks for the on-disk formats and the algorithms behind them:
+// record encoding, both vault layouts and the index, TOTP against the RFC 6238
+// vectors, the tag bitmap against BitSet, the CSV reader and the export round
+// trip, chunked encryption, backups and the three-way merge. Works in a
+// temporary directory and exits with status 1 on the first failed check.
+//
+//   java VaultSelfTest
+public class VaultSelfTest {
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("lockbox-selftest");
+        boolean failed = false;
+        try {
+            recordCodec();
+            totp();
+            bitmap();
+            csv(dir);
+            chunkedCipher(dir);
+            lineVault(dir);
+            pagedVault(dir);
+            backups(dir);
+            merge();
+        } catch (AssertionError e) {
+            System.err.println("FAILED: " + e.getMessage());
+            failed = true;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+        System.out.println(checks + " checks passed");
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private static void check(boolean condition, String what) {
+        checks++;
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    private static void fails(Action action, String what) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            check(true, what);
+            return;
+        }
+        check(false, what);
+    }
+
+    private static boolean sameContent(Account a, Account b) {
+        return a.getId().equals(b.getId()) && a.getWebsite().equals(b.getWebsite())
+                && a.getUsername().equals(b.getUsername()) && a.getPassword().equals(b.getPassword())
+                && a.getTags().equals(b.getTags()) && a.getNotes().equals(b.getNotes())
+                && a.getUrls().equals(b.getUrls()) && a.getCustomFields().equals(b.getCustomFields())
+                && a.getTotp().equals(b.getTotp()) && a.getCreated() == b.getCreated()
+                && a.getModified() == b.getModified() && a.getLastUsed() == b.getLastUsed()
+                && a.getPasswordHistory().size() == b.getPasswordHistory().size()
+                && a.getAttachments().size() == b.getAttachments().size();
+    }
+
+    private static Account fullAccount() {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("PIN", " 12\"34 ");
+        fields.put("Recovery, codes", "a\nb\tü");
+        byte[] hash = new byte[32];
+        byte[] key = new byte[32];
+        Arrays.fill(hash, (byte) 7);
+        Arrays.fill(key, (byte) 9);
+        return Account.builder()
+                .website("example.com").username("alice").password(" p,\"ä\n ")
+                .tags(List.of("work", "folder/sub", "Clients, EU", "a;b\\c")).notes("line 1\nline 2")
+                .urls(List.of("https://example.com/login", "https://m.example.com"))
+                .customFields(fields).totp("otpauth://totp/x?secret=JBSWY3DPEHPK3PXP")
+                .passwordHistory(List.of(new Account.HistoryEntry("old", 1_000L)))
+                .attachments(List.of(new Account.Attachment("doc.pdf", hash, 1234, key)))
+                .created(1_000L).modified(2_000L).lastUsed(3_000L)
+                .build();
+    }
+
+    private static List<Account> accounts(int count, String prefix) {
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(Account.builder().website(prefix + i + ".com").username("user" + (i % 7))
+                    .password("password" + i).tags(List.of("tag" + (i % 5))).build());
+        }
+        return accounts;
+    }
+
+    private static void recordCodec() {
+        Account account = fullAccount();
+        ByteBuffer encoded = RecordCodec.encodeReusing(account, ByteBuffer.allocate(16));
+        byte[] bytes = Arrays.copyOf(encoded.array(), encoded.limit());
+        Account decoded = RecordCodec.decode(ByteBuffer.wrap(bytes));
+        check(sameContent(account, decoded), "record round trip");
+        check(decoded.getPasswordHistory().get(0).getPassword().equals("old"), "record history");
+        check(decoded.getAttachments().get(0).getName().equals("doc.pdf")
+                && decoded.getAttachments().get(0).getSize() == 1234, "record attachment");
+        ByteBuffer again = RecordCodec.encodeReusing(decoded, ByteBuffer.allocate(16));
+        check(Arrays.equals(bytes, Arrays.copyOf(again.array(), again.limit())), "record encoding is stable");
+
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i <= 0xFFFF; i++) {
+            tags.add("t" + i);
+        }
+        Account tooMany = Account.builder().website("w").password("p").tags(tags).build();
+        try {
+            RecordCodec.encodeReusing(tooMany, ByteBuffer.allocate(16));
+            check(false, "record count overflow refused");
+        } catch (IllegalArgumentException e) {
+            check(true, "record count overflow refused");
+        }
+
+        // Locking wipes the old passwords and the TOTP secret along with the password
+        PasswordManager manager = new PasswordManager("selftest");
+        manager.addAccount(decoded);
+        Account.HistoryEntry entry = decoded.getPasswordHistory().get(0);
+        SecretBuffer totp = decoded.secretTotp();
+        Account.Attachment attachment = decoded.getAttachments().get(0);
+        manager.lock();
+        check(decoded.secretPassword().isWiped() && entry.secretPassword().isWiped() && totp.isWiped()
+                && Arrays.equals(attachment.key(), new byte[32]), "lock wipes history and TOTP secrets");
+    }
+
+    private static void totp() throws Exception {
+        long[] times = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+        String[][] vectors = {
+                {"SHA1", "12345678901234567890",
+                        "94287082", "07081804", "14050471", "89005924", "69279037", "65353130"},
+                {"SHA256", "12345678901234567890123456789012",
+                        "46119246", "68084774", "67062674", "91819424", "90698825", "77737706"},
+                {"SHA512", "1234567890123456789012345678901234567890123456789012345678901234",
+                        "90693936", "25091201", "99943326", "93441116", "38618901", "47863826"},
+        };
+        for (String[] vector : vectors) {
+            String secret = base32(vector[1].getBytes(StandardCharsets.US_ASCII));
+            Totp totp = new Totp("otpauth://totp/test?secret=" + secret + "&digits=8&algorithm=" + vector[0]);
+            for (int i = 0; i < times.length; i++) {
+                check(totp.generate(times[i] * 1000).equals(vector[i + 2]),
+                        "TOTP " + vector[0] + " at " + times[i]);
+            }
+        }
+        check(new Totp("GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ").generate(59_000L).equals("287082"),
+                "TOTP from a bare secret");
+    }
+
+    private static String base32(byte[] data) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        StringBuilder out = new StringBuilder();
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : data) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                out.append(alphabet.charAt((buffer >> (bits - 5)) & 31));
+                bits -= 5;
+            }
+        }
+        if (bits > 0) {
+            out.append(alphabet.charAt((buffer << (5 - bits)) & 31));
+        }
+        return out.toString();
+    }
+
+    private static void bitmap() {
+        Random random = new Random(7);
+        CompressedBitmap[] bitmaps = new CompressedBitmap[3];
+        BitSet[] sets = new BitSet[3];
+        for (int n = 0; n < bitmaps.length; n++) {
+            bitmaps[n] = new CompressedBitmap();
+            sets[n] = new BitSet();
+            // Sparse, dense and mixed ranges, so every container kind is used
+            int range = n == 0 ? 1 << 20 : n == 1 ? 5000 : 200_000;
+            for (int i = 0; i < 20_000; i++) {
+                int value = random.nextInt(range);
+                if (random.nextInt(4) == 0) {
+                    check(bitmaps[n].remove(value) == sets[n].get(value), "bitmap remove");
+                    sets[n].clear(value);
+                } else {
+                    check(bitmaps[n].add(value) == !sets[n].get(value), "bitmap add");
+                    sets[n].set(value);
+                }
+            }
+            check(same(bitmaps[n], sets[n]), "bitmap contents");
+        }
+        for (int a = 0; a < bitmaps.length; a++) {
+            for (int b = 0; b < bitmaps.length; b++) {
+                BitSet and = (BitSet) sets[a].clone();
+                and.and(sets[b]);
+                BitSet or = (BitSet) sets[a].clone();
+                or.or(sets[b]);
+                BitSet andNot = (BitSet) sets[a].clone();
+                andNot.andNot(sets[b]);
+                check(same(bitmaps[a].and(bitmaps[b]), and), "bitmap and");
+                check(same(bitmaps[a].or(bitmaps[b]), or), "bitmap or");
+                check(same(bitmaps[a].andNot(bitmaps[b]), andNot), "bitmap andNot");
+            }
+        }
+    }
+
+    private static boolean same(CompressedBitmap bitmap, BitSet set) {
+        BitSet seen = new BitSet();
+        int[] last = {-1};
+        boolean[] ordered = {true};
+        bitmap.forEach(value -> {
+            ordered[0] &= value > last[0];
+            last[0] = value;
+            seen.set(value);
+        });
+        return ordered[0] && seen.equals(set) && bitmap.cardinality() == set.cardinality()
+                && bitmap.isEmpty() == set.isEmpty();
+    }
+
+    private static void csv(Path dir) throws Exception {
+        String text = "﻿name,notes\r\n\"a,b\",\"line 1\nline \"\"2\"\"\"\r\n\r\nplain,\n";
+        CsvImporter.CsvReader reader = new CsvImporter.CsvReader(new StringReader(text));
+        check(reader.readRecord().equals(List.of("name", "notes")), "CSV header with BOM");
+        check(reader.readRecord().equals(List.of("a,b", "line 1\nline \"2\"")), "CSV quoted newline and quotes");
+        check(reader.readRecord().equals(List.of("plain", "")), "CSV blank line and empty field");
+        check(reader.readRecord() == null, "CSV end");
+
+        PasswordManager manager = new PasswordManager("selftest");
+        Account account = fullAccount();
+        manager.addAccount(account);
+        Path csv = dir.resolve("export.csv");
+        Path archive = dir.resolve("export.lbxa");
+        new VaultExporter(manager).exportCsv(csv);
+        new VaultExporter(manager).exportArchive(archive, "archive".toCharArray());
+        for (Path file : new Path[] {csv, archive}) {
+            PasswordManager target = new PasswordManager("selftest");
+            CsvImporter importer = new CsvImporter(target);
+            if (VaultExporter.isArchive(file)) {
+                importer.importArchive(file, "archive".toCharArray(), false);
+            } else {
+                importer.importFile(file, false);
+            }
+            Account imported = target.getAccounts().get(0);
+            check(imported.getPassword().equals(account.getPassword()) && imported.getNotes().equals(account.getNotes())
+                    && imported.getTags().equals(account.getTags()) && imported.getUrls().equals(account.getUrls())
+                    && imported.getCustomFields().equals(account.getCustomFields())
+                    && imported.getTotp().equals(account.getTotp()), "export round trip through " + file.getFileName());
+        }
+        fails(() -> new CsvImporter(new PasswordManager("selftest"))
+                .importArchive(archive, "wrong".toCharArray(), false), "archive with a wrong password");
+        check(CsvImporter.splitTags("Work, Personal; home ;work").equals(List.of("Work, Personal", "home", "work")),
+                "CSV tags split on semicolons only");
+    }
+
+    private static void chunkedCipher(Path dir) throws Exception {
+        byte[] data = new byte[ChunkedCipher.CHUNK_SIZE * 3 + 1234];
+        new Random(3).nextBytes(data);
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        Path file = dir.resolve("chunked.bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             OutputStream out = ChunkedCipher.encrypting(channel, key)) {
+            out.write(data);
+        }
+        check(Arrays.equals(decryptChunked(file, key), data), "chunked round trip");
+
+        byte[] sealed = Files.readAllBytes(file);
+        byte[] flipped = sealed.clone();
+        flipped[flipped.length / 2] ^= 1;
+        Files.write(file, flipped);
+        fails(() -> decryptChunked(file, key), "chunked tampering detected");
+        Files.write(file, Arrays.copyOf(sealed, sealed.length - 100));
+        fails(() -> decryptChunked(file, key), "chunked truncation detected");
+    }
+
+    private static byte[] decryptChunked(Path file, SecretKeySpec key) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = ChunkedCipher.decrypting(channel, key)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void lineVault(Path dir) throws Exception {
+        String file = dir.resolve("lines.lbx").toString();
+        PasswordManager manager = new PasswordManager("selftest");
+        manager.addAccount(fullAccount());
+        manager.addAccounts(accounts(200, "site"));
+        manager.saveToFile(file);
+        List<String> lines = Files.readAllLines(Path.of(file));
+        VaultHeader header = VaultHeader.parse(lines.get(0));
+        check(header.getVersion() == VaultHeader.CURRENT_VERSION && header.getVaultId() != null, "line vault header");
+
+        PasswordManager reader = new PasswordManager("selftest");
+        reader.loadFromFile(file);
+        check(reader.getAccounts().size() == 201, "line vault entries");
+        for (Account account : reader.getAccounts()) {
+            Account original = manager.getAccounts().stream()
+                    .filter(a -> a.getId().equals(account.getId())).findFirst().orElseThrow();
+            check(sameContent(original, account), "line vault entry " + account.getWebsite());
+        }
+        fails(() -> new PasswordManager("wrong").loadFromFile(file), "line vault with a wrong password");
+
+        Account first = reader.getAccounts().get(0);
+        reader.updateAccount(first, first.toBuilder().password("changed").build());
+        reader.saveToFile(file);
+        List<String> edited = Files.readAllLines(Path.of(file));
+        long changed = edited.stream().filter(line -> !lines.contains(line)).count();
+        check(changed == 1, "line vault save rewrites only the edited record");
+        check(edited.stream().anyMatch(line -> line.startsWith(first.getId() + ":2:")), "line vault version bump");
+
+        List<String> duplicated = new ArrayList<>(edited);
+        duplicated.add(edited.get(1));
+        Path copy = dir.resolve("duplicated.lbx");
+        Files.write(copy, duplicated);
+        fails(() -> new PasswordManager("selftest").loadFromFile(copy.toString()), "duplicated record refused");
+        // The same copy reloaded by the manager that wrote the line
+        Files.write(Path.of(file), duplicated);
+        fails(() -> reader.reloadChanged(file), "duplicated known record refused on reload");
+        Files.write(Path.of(file), edited);
+        List<String> moved = new ArrayList<>(edited);
+        moved.set(0, edited.get(0).replaceAll("vault=\\S+", "vault=" + UUID.randomUUID()));
+        Files.write(copy, moved);
+        fails(() -> new PasswordManager("selftest").loadFromFile(copy.toString()), "record of another vault refused");
+
+        // Changes an auto-lock could not save come back only with the vault key
+        PasswordManager locked = new PasswordManager("selftest");
+        locked.loadFromFile(file);
+        Account kept = locked.getAccounts().get(1);
+        UUID keptId = kept.getId();
+        locked.updateAccount(kept, kept.toBuilder().password("pending").build());
+        locked.savePending(file);
+        locked.lock();
+        check(Files.readAllLines(Path.of(file)).equals(edited), "pending changes leave the vault alone");
+        fails(() -> new PasswordManager("wrong").readPending(file), "pending changes with a wrong password");
+        PasswordManager unlocked = new PasswordManager("selftest");
+        unlocked.loadFromFile(file);
+        List<Account> pending = unlocked.readPending(file);
+        check(pending != null && pending.size() == 201
+                && pending.stream().anyMatch(a -> a.getId().equals(keptId) && a.getPassword().equals("pending")),
+                "pending changes restored");
+        PasswordManager.discardPending(file);
+        check(unlocked.readPending(file) == null, "pending changes discarded");
+    }
+
+    private static void pagedVault(Path dir) throws Exception {
+        Path path = dir.resolve("paged.lbx");
+        String file = path.toString();
+        PasswordManager manager = new PasswordManager("selftest");
+        manager.setPagedStorage(true);
+        manager.addAccount(fullAccount());
+        manager.addAccounts(accounts(3000, "site"));
+        // One record too large for a page, so it goes to overflow pages
+        manager.addAccount(Account.builder().website("big.com").password("p").notes("x".repeat(20_000)).build());
+        manager.saveToFile(file);
+
+        PasswordManager reader = new PasswordManager("selftest");
+        reader.loadFromFile(file);
+        check(reader.getAccounts().size() == 3002, "paged vault entries");
+        for (Account account : reader.getAccounts()) {
+            Account original = manager.getAccounts().stream()
+                    .filter(a -> a.getId().equals(account.getId())).findFirst().orElseThrow();
+            check(sameContent(original, account), "paged vault entry " + account.getWebsite());
+        }
+
+        byte[] before = Files.readAllBytes(path);
+        Account first = reader.getAccounts().get(0);
+        reader.updateAccount(first, first.toBuilder().password("changed").build());
+        reader.saveToFile(file);
+        byte[] after = Files.readAllBytes(path);
+        int pageSize = 4096;
+        int changed = 0;
+        for (int p = 0; p < Math.min(before.length, after.length) / pageSize; p++) {
+            if (!Arrays.equals(before, p * pageSize, (p + 1) * pageSize, after, p * pageSize, (p + 1) * pageSize)) {
+                changed++;
+            }
+        }
+        check(before.length == after.length && changed <= 3, "paged vault save writes only changed pages");
+
+        PasswordManager lookup = new PasswordManager("selftest");
+        List<Account> found = lookup.findInFile(file, "SITE17.com", null);
+        check(found != null && found.size() == 1 && found.get(0).getPassword().equals("password17"), "index lookup");
+        found = lookup.findInFile(file, first.getWebsite(), first.getUsername());
+        check(found != null && found.size() == 1 && found.get(0).getPassword().equals("changed"), "index after an edit");
+
+        Path copy = dir.resolve("paged-copy.lbx");
+        Files.copy(path, copy);
+        check(manager.readAccounts(copy.toString()).size() == 3002
+                && !Files.exists(VaultIndex.fileFor(copy.toAbsolutePath())), "no index next to another copy");
+
+        byte[] swapped = after.clone();
+        System.arraycopy(after, 3 * pageSize, swapped, 4 * pageSize, pageSize);
+        System.arraycopy(after, 4 * pageSize, swapped, 3 * pageSize, pageSize);
+        Files.write(copy, swapped);
+        fails(() -> new PasswordManager("selftest").loadFromFile(copy.toString()), "swapped pages refused");
+
+        // The edit above cut short by a crash: its journal complete, the first
+        // changed page torn halfway and the others not written yet
+        Path crashed = dir.resolve("crashed.lbx");
+        Path journal = PagedVaultStorage.journalFor(crashed.toAbsolutePath());
+        byte[] entries = journal(before, after, pageSize);
+        byte[] torn = before.clone();
+        for (int p = 1; p < before.length / pageSize; p++) {
+            if (!Arrays.equals(before, p * pageSize, (p + 1) * pageSize, after, p * pageSize, (p + 1) * pageSize)) {
+                System.arraycopy(after, p * pageSize, torn, p * pageSize, pageSize / 2);
+                break;
+            }
+        }
+        Files.write(crashed, torn);
+        Files.write(journal, entries);
+        PasswordManager recovered = new PasswordManager("selftest");
+        recovered.loadFromFile(crashed.toString());
+        check(recovered.getAccounts().size() == 3002 && !Files.exists(journal)
+                && passwordOf(recovered, first).equals("changed"), "paged vault recovered from its journal");
+
+        // A journal torn by the crash: the vault was not touched yet
+        Files.write(crashed, before);
+        Files.write(journal, Arrays.copyOf(entries, entries.length - 1));
+        recovered = new PasswordManager("selftest");
+        recovered.loadFromFile(crashed.toString());
+        check(passwordOf(recovered, first).equals(first.getPassword()), "torn journal ignored");
+
+        // A journal next to a vault replaced since is not replayed over it
+        Path other = dir.resolve("paged-other.lbx");
+        manager.saveToFile(other.toString());
+        Files.copy(other, crashed, StandardCopyOption.REPLACE_EXISTING);
+        Files.write(journal, entries);
+        recovered = new PasswordManager("selftest");
+        recovered.loadFromFile(crashed.toString());
+        check(passwordOf(recovered, first).equals(first.getPassword()), "stale journal not replayed");
+    }
+
+    private static String passwordOf(PasswordManager manager, Account account) {
+        return manager.getAccounts().stream().filter(a -> a.getId().equals(account.getId()))
+                .findFirst().orElseThrow().getPassword();
+    }
+
+    // The journal of a save that turned the pages of one file into another,
+    // as PagedVaultStorage writes it
+    private static byte[] journal(byte[] before, byte[] after, int pageSize) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        List<Integer> changed = new ArrayList<>();
+        for (int p = 1; p < after.length / pageSize; p++) {
+            if ((p + 1) * pageSize > before.length
+                    || !Arrays.equals(before, p * pageSize, (p + 1) * pageSize, after, p * pageSize, (p + 1) * pageSize)) {
+                changed.add(p);
+            }
+        }
+        data.write("LBXJOURNAL1\n".getBytes(StandardCharsets.US_ASCII));
+        data.writeInt(changed.size());
+        for (int p : changed) {
+            data.writeInt(p);
+            data.writeByte(1);
+            data.write(before, p * pageSize, 12);
+            data.write(before, (p + 1) * pageSize - 16, 16);
+            data.write(after, p * pageSize, pageSize);
+        }
+        data.write(MessageDigest.getInstance("SHA-256").digest(out.toByteArray()));
+        return out.toByteArray();
+    }
+
+    private static void backups(Path dir) throws Exception {
+        String file = dir.resolve("backed-up.lbx").toString();
+        Path source = dir.resolve("attachment.bin");
+        byte[] content = new byte[100_000];
+        new Random(5).nextBytes(content);
+        Files.write(source, content);
+
+        PasswordManager manager = new PasswordManager("selftest");
+        AttachmentStore attachments = new AttachmentStore(file);
+        Account.Attachment attachment = attachments.add(source, manager.getAccounts());
+        manager.addAccount(Account.builder().website("files.com").password("p").attachments(List.of(attachment)).build());
+        manager.saveToFile(file);
+        Path store = AttachmentStore.directoryOf(file);
+        String name = AttachmentStore.storedName(attachment);
+        check(fileNames(store).equals(List.of(name)) && !name.contains(attachment.getHash().substring(0, 8)),
+                "attachment file not named by its content");
+        // A file of an older store, named by its content hash, moves to its new name
+        Files.move(store.resolve(name), store.resolve(attachment.getHash()));
+        attachments.prune(manager.getAccounts());
+        check(fileNames(store).equals(List.of(name)), "old attachment name replaced");
+        BackupStore backups = new BackupStore(file);
+        BackupStore.Version first = backups.backup();
+
+        // The attachment goes; its file is pruned but the backup keeps it
+        manager.replaceAccounts(accounts(3, "other"));
+        manager.saveToFile(file);
+        attachments.prune(manager.getAccounts());
+        backups.backup();
+        check(backups.listVersions().size() == 2, "backup versions");
+        check(backups.verify(first).isEmpty(), "backup verifies");
+
+        Path restored = dir.resolve("restored.lbx");
+        backups.restore(first, restored);
+        PasswordManager reader = new PasswordManager("selftest");
+        reader.loadFromFile(restored.toString());
+        Path out = dir.resolve("attachment.out");
+        new AttachmentStore(restored.toString()).save(reader.getAccounts().get(0).getAttachments().get(0), out);
+        check(Arrays.equals(Files.readAllBytes(out), content), "restored version keeps its attachment");
+    }
+
+    private static List<String> fileNames(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void merge() {
+        List<Account> base = accounts(3, "merge");
+        List<Account> local = new ArrayList<>(base);
+        List<Account> remote = new ArrayList<>(base);
+        local.set(0, base.get(0).toBuilder().password("local").build());
+        remote.remove(1);
+        remote.add(Account.builder().website("added.com").password("p").build());
+        VaultMerger.Result result = VaultMerger.merge(base, local, remote);
+        List<Account> merged = result.resolve();
+        check(result.getConflicts().isEmpty() && merged.size() == 3, "merge without conflicts");
+        check(merged.stream().anyMatch(a -> a.getPassword().equals("local"))
+                && merged.stream().anyMatch(a -> a.getWebsite().equals("added.com"))
+                && merged.stream().noneMatch(a -> a.getId().equals(base.get(1).getId())), "merge takes both sides");
+
+        remote.set(0, base.get(0).toBuilder().password("remote").build());
+        result = VaultMerger.merge(base, local, remote);
+        check(result.getConflicts().size() == 1, "merge conflict");
+    }
+}
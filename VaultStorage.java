@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// How the records of a vault file are laid out on disk. PasswordManager owns
+// the accounts, the keys and the sync state and decides what goes into the
+// header; a storage turns a snapshot into a file and back. A storage may
+// remember what it last read or wrote, so that a save only seals records that
+// changed and a reload only opens those, which is why every manager has an
+// instance of its own. Calls come in under the manager's file lock.
+public interface VaultStorage {
+    // The "storage" header property naming this layout
+    String getName();
+
+    // The records of the file in file order. header is its first line, or
+    // null for the original format; key opens the records. Records the
+    // storage still knows unchanged from its last read or write come back as
+    // the same Account instead of being decrypted again.
+    List<Account> read(String filename, VaultHeader header, CryptoUtils key) throws Exception;
+
+    // Writes snapshot as the vault, sealing records with key and the cipher
+    // and compression the header names
+    void write(String filename, VaultHeader header, List<Account> snapshot, CryptoUtils key) throws Exception;
+
+    // Replaces the header of a file this storage wrote, leaving the records
+    // alone, e.g. after the data key was sealed under a new master password;
+    // key is the data key the records are sealed with
+    void writeHeader(String filename, VaultHeader header, CryptoUtils key) throws IOException;
+
+    // Seals every record of the file again with another cipher, without
+    // decoding them and without holding the vault in memory
+    void reencrypt(String filename, VaultHeader header, CryptoUtils key, CryptoUtils.Aead target) throws Exception;
+
+    // The records for a website, and a username if one is given, read
+    // without opening the whole file; null if this storage cannot do that
+    // for the file as it is. The match is loose (case-folded, long names
+    // cut), so callers check what they get.
+    default List<Account> find(String filename, VaultHeader header, CryptoUtils key,
+            String website, String username) throws Exception {
+        return null;
+    }
+
+    // Records are keyed by id; copies of an entry sharing an id (an archive
+    // imported twice) get keys derived from it, in file order. occurrences
+    // counts the ids seen so far.
+    static UUID recordKey(Account account, Map<UUID, Integer> occurrences) {
+        UUID id = account.getId();
+        int occurrence = occurrences.merge(id, 1, Integer::sum) - 1;
+        if (occurrence == 0) {
+            return id;
+        }
+        ByteBuffer seed = ByteBuffer.allocate(20);
+        seed.putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).putInt(occurrence);
+        return UUID.nameUUIDFromBytes(seed.array());
+    }
+
+    // Forgets what was read or written, after the key, cipher or compression
+    // changed; the next write seals every record
+    void invalidate();
+}
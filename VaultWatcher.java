@@ -0,0 +1,209 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Watches the directories of open vault files and reports when one of them
+// was written. Events are debounced: editors and sync clients often write a
+// file in several steps or through a temporary file and a rename, and the
+// listener should hear about the result once. Whether the file really changed
+// (and was not just our own save) is decided with a Fingerprint.
+public class VaultWatcher implements Closeable {
+    private static final long QUIET_MILLIS = 500;
+
+    public interface Listener {
+        // Called on the watcher thread
+        void vaultChanged(String fileName);
+    }
+
+    // Size, modification time and a hash of the first bytes of a file. The
+    // head holds the vault header and the first records, so a rewrite is
+    // noticed even when it keeps the size and the clock is coarse, without
+    // decrypting or reading the whole file.
+    public static final class Fingerprint {
+        private static final int HEAD_BYTES = 4096;
+
+        private final long size;
+        private final long modified;
+        private final byte[] headHash;
+
+        private Fingerprint(long size, long modified, byte[] headHash) {
+            this.size = size;
+            this.modified = modified;
+            this.headHash = headHash;
+        }
+
+        // null if the file does not exist or cannot be read
+        public static Fingerprint of(String fileName) {
+            Path path = Paths.get(fileName);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                try (InputStream in = Files.newInputStream(path)) {
+                    digest.update(in.readNBytes(HEAD_BYTES));
+                }
+                return new Fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis(), digest.digest());
+            } catch (IOException e) {
+                return null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // For files that record which state of a vault they describe
+        void writeTo(ByteBuffer buffer) {
+            buffer.putLong(size);
+            buffer.putLong(modified);
+            buffer.put(headHash);
+        }
+
+        static Fingerprint readFrom(ByteBuffer buffer) {
+            long size = buffer.getLong();
+            long modified = buffer.getLong();
+            byte[] headHash = new byte[32];
+            buffer.get(headHash);
+            return new Fingerprint(size, modified, headHash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return size == other.size && modified == other.modified && Arrays.equals(headHash, other.headHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Arrays.hashCode(headHash);
+        }
+    }
+
+    private final WatchService watchService;
+    private final Listener listener;
+    // Watched file names per directory, and the key of each watched directory
+    private final Map<Path, Set<Path>> files = new HashMap<>();
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    // Files with recent events and when they are quiet enough to report
+    private final Map<Path, Long> pending = new HashMap<>();
+
+    public VaultWatcher(Listener listener) throws IOException {
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::run, "lockbox-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void watch(String fileName) throws IOException {
+        Path file = Paths.get(fileName).toAbsolutePath().normalize();
+        Path directory = file.getParent();
+        if (!keys.containsKey(directory)) {
+            // CREATE as well, for writers that replace the file by renaming over it
+            keys.put(directory, directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE));
+        }
+        files.computeIfAbsent(directory, d -> new HashSet<>()).add(file.getFileName());
+    }
+
+    public synchronized void unwatch(String fileName) {
+        Path file = Paths.get(fileName).toAbsolutePath().normalize();
+        Path directory = file.getParent();
+        Set<Path> names = files.get(directory);
+        if (names == null) {
+            return;
+        }
+        names.remove(file.getFileName());
+        pending.remove(file);
+        if (names.isEmpty()) {
+            files.remove(directory);
+            keys.remove(directory).cancel();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long next = nextDeadline();
+                WatchKey key = next == Long.MAX_VALUE ? watchService.take()
+                        : watchService.poll(Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    collect(key);
+                    key.reset();
+                }
+                for (Path file : due()) {
+                    listener.vaultChanged(file.toString());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed, stop watching
+        }
+    }
+
+    private synchronized void collect(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        Set<Path> names = files.get(directory);
+        if (names == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + QUIET_MILLIS;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, any of the files may have changed
+                for (Path name : names) {
+                    pending.put(directory.resolve(name), deadline);
+                }
+            } else if (names.contains((Path) event.context())) {
+                pending.put(directory.resolve((Path) event.context()), deadline);
+            }
+        }
+    }
+
+    private synchronized long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (long deadline : pending.values()) {
+            next = Math.min(next, deadline);
+        }
+        return next;
+    }
+
+    private synchronized List<Path> due() {
+        List<Path> due = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getValue() <= now) {
+                due.add(entry.getKey());
+                it.remove();
+            }
+        }
+        return due;
+    }
+}
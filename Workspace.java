@@ -0,0 +1,160 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// The set of vaults that are unlocked at the same time. Each vault keeps its
+// own PasswordManager (and therefore its own key) and its own file name.
+public class Workspace {
+    private static final ExecutorService SEARCH_POOL = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "lockbox-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private volatile List<Vault> vaults = Collections.emptyList();
+
+    public static class Vault {
+        private String fileName;
+        private PasswordManager manager;
+
+        Vault(String fileName, PasswordManager manager) {
+            this.fileName = fileName;
+            this.manager = manager;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public void setFileName(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public PasswordManager getManager() {
+            return manager;
+        }
+
+        public void setManager(PasswordManager manager) {
+            this.manager = manager;
+        }
+
+        public String getName() {
+            String name = new File(fileName).getName();
+            int dot = name.lastIndexOf('.');
+            return dot > 0 ? name.substring(0, dot) : name;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+
+    // A search result tagged with the vault it came from
+    public static class Hit {
+        private final Vault vault;
+        private final Account account;
+
+        Hit(Vault vault, Account account) {
+            this.vault = vault;
+            this.account = account;
+        }
+
+        public Vault getVault() {
+            return vault;
+        }
+
+        public Account getAccount() {
+            return account;
+        }
+    }
+
+    // Adds the vault, replacing one that is already open from the same file
+    public synchronized Vault open(String fileName, PasswordManager manager) {
+        Vault existing = find(fileName);
+        if (existing != null) {
+            existing.getManager().lock();
+            existing.setManager(manager);
+            return existing;
+        }
+        Vault vault = new Vault(fileName, manager);
+        List<Vault> updated = new ArrayList<>(vaults);
+        updated.add(vault);
+        vaults = Collections.unmodifiableList(updated);
+        return vault;
+    }
+
+    public synchronized void close(Vault vault) {
+        vault.getManager().lock();
+        List<Vault> updated = new ArrayList<>(vaults);
+        updated.remove(vault);
+        vaults = Collections.unmodifiableList(updated);
+    }
+
+    public synchronized void closeAll() {
+        for (Vault vault : vaults) {
+            vault.getManager().lock();
+        }
+        vaults = Collections.emptyList();
+    }
+
+    public Vault find(String fileName) {
+        String path = new File(fileName).getAbsolutePath();
+        for (Vault vault : vaults) {
+            if (new File(vault.getFileName()).getAbsolutePath().equals(path)) {
+                return vault;
+            }
+        }
+        return null;
+    }
+
+    public List<Vault> getVaults() {
+        return vaults;
+    }
+
+    public boolean isEmpty() {
+        return vaults.isEmpty();
+    }
+
+    // Queries every open vault in parallel; results keep the vault order. An
+    // empty tag filter matches everything.
+    public List<Hit> search(String searchTerm, String tagFilter) {
+        List<Vault> snapshot = vaults;
+        List<CompletableFuture<List<Hit>>> futures = new ArrayList<>(snapshot.size());
+        for (Vault vault : snapshot) {
+            PasswordManager manager = vault.getManager();
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                List<Account> matches = searchTerm.isEmpty() ? manager.getAccounts() : manager.searchAccounts(searchTerm);
+                Set<Account> tagged = tagFilter.isEmpty() ? null : manager.selectByTags(tagFilter);
+                List<Hit> hits = new ArrayList<>(matches.size());
+                for (Account account : matches) {
+                    if (tagged == null || tagged.contains(account)) {
+                        hits.add(new Hit(vault, account));
+                    }
+                }
+                return hits;
+            }, SEARCH_POOL));
+        }
+
+        List<Hit> results = new ArrayList<>();
+        for (CompletableFuture<List<Hit>> future : futures) {
+            try {
+                results.addAll(future.join());
+            } catch (CompletionException e) {
+                // Surface a malformed tag filter as itself, not wrapped
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+}